@@ -10,51 +10,97 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.List;
 import java.util.UUID;
 
-interface BleHrmMonitorListener {
-    public void onHrmDataReceived(int type, int data, String msg);
-}
-
 /**
  * A class that will connect with a BLE Heart Rate Monitor and send notifications to a BleHrmMonitorListener when heart rate data is received.
+ * Each instance manages one device with its own GATT connection and state, and reconnects to it
+ * on its own if the link is lost, so several monitors can run side by side (see LoggerService).
+ * Measurements are tagged with the monitor's source number.
+ *
+ * When the link is lost the monitor retries a direct connection after a jittered exponential
+ * backoff (see ReconnectBackoff); if DIRECT_CONNECT_ATTEMPTS attempts fail it leaves a background
+ * (autoConnect) connection pending, which the Bluetooth controller completes as soon as the strap
+ * is back in range without waking us meanwhile.   The time from losing the link to the first
+ * sample after it is back is measured - see getTimeToFirstSampleMs().
+ *
+ * GATT operations are run one at a time through a GattOperationQueue: heart rate notifications
+ * are enabled first, then the Body Sensor Location and Battery Level are read, and Battery Level
+ * notifications enabled, where the device has them.   These are reported to the listener as
+ * TYPE_BODY_SENSOR_LOCATION and TYPE_BATTERY messages.
+ *
+ * If given an EnergyPolicy.Link (see setEnergyLink()), the monitor requests the connection
+ * priority it chooses - high while connecting, low power once the signal is stable.
  * Created by graham on 01/10/15.
  */
-public class BleHrmMonitor {
-    public final static int TYPE_DATA = 1;   // A message containing HRM data
-    public final static int TYPE_CONNECTION = 2;  // A message describing the connection state.
-    public final static int TYPE_READY = 3;       // A message saying the device is ready (HRM service discovered).
-    public final static UUID UUID_HEART_RATE_MEASUREMENT =
-            UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+public class BleHrmMonitor implements HeartRateSource {
+    public final static UUID UUID_HEART_RATE_MEASUREMENT = GattAttributes.UUID_HEART_RATE_MEASUREMENT;
+    public final static UUID UUID_HEART_RATE_SERVICE = GattAttributes.UUID_HEART_RATE_SERVICE;
+
+    public final static int STATE_DISCONNECTED = 0;
+    public final static int STATE_CONNECTING = 1;
+    public final static int STATE_CONNECTED = 2;     // Connected, discovering services.
+    public final static int STATE_READY = 3;         // Heart rate notifications enabled.
+    public final static int DIRECT_CONNECT_ATTEMPTS = 3;   // Then wait for the device with autoConnect.
 
     private String TAG = "BleHrmMonitor";
     private String mHrmAddr = null;
     private String mHrmName = null;
     private Context mContext = null;
     private BleHrmMonitorListener mCallback = null;
+    private HrmPacketListener mPacketCallback = null;   // mCallback, if it takes raw packets.
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mAdapter;
     private BluetoothGatt mGatt;
     private List<BluetoothGattService> mGattServices;
     private BluetoothGattCharacteristic mHrmCharacteristic;
+    private final HrmMeasurement mMeasurement = new HrmMeasurement();  // re-used for every packet.
+    private final int mSource;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mStopped = true;
+    private volatile boolean mServicesListed = false;   // The device's services have been logged since start().
+    private final ReconnectBackoff mBackoff = new ReconnectBackoff();
+    private final GattOperationQueue mGattOps;
+    private volatile EnergyPolicy.Link mEnergyLink = null;
+    private volatile int mBatteryLevel = -1;        // %, -1 if not known.
+    private volatile int mBodySensorLocation = -1;  // See GattAttributes.BODY_SENSOR_LOCATIONS, -1 if not known.
 
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    private volatile boolean mAwaitingFirstSample = false;
+    private volatile long mGapStart = 0;            // elapsedRealtime() when we started waiting for data.
+    private volatile long mTimeToFirstSample = -1;  // The latest gap (ms), -1 if there has not been one.
+    private volatile long mMaxTimeToFirstSample = -1;
+    private volatile int mReconnectCount = 0;       // Links re-established after being lost.
 
+    private volatile int mConnectionState = STATE_DISCONNECTED;
 
 
     public BleHrmMonitor(Context context, String address, BleHrmMonitorListener callback) {
+        this(context, address, 0, callback);
+    }
+
+    /**
+     * @param source - the number used to tag this monitor's measurements (see HrmMeasurement.mSource).
+     */
+    public BleHrmMonitor(Context context, String address, int source, BleHrmMonitorListener callback) {
+        TAG = "BleHrmMonitor[" + source + "]";
         Log.v(TAG,"BleHrmMonitor() Constructor");
         mContext = context;
         mHrmAddr = address;
+        mSource = source;
         mCallback = callback;
+        if (callback instanceof HrmPacketListener) {
+            mPacketCallback = (HrmPacketListener) callback;
+        }
+        mMeasurement.mSource = source;
+        mGattOps = new GattOperationQueue(mGattTarget, mGattScheduler, mGattOpListener);
         if (mBluetoothManager == null) {
             Log.v(TAG,"Context.BLUETOOTH_SERVICE = "+ Context.BLUETOOTH_SERVICE);
             mBluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
@@ -78,56 +124,297 @@ public class BleHrmMonitor {
             Log.v(TAG,"Looking for a HRM device...(FIXME - not implemented yet!!!!)");
 
         }
-        start();
 
     }
 
+    public String getAddress() {
+        return mHrmAddr;
+    }
+
+    public int getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return the connection state (STATE_*).
+     */
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * Choose the connection priority with link (see EnergyPolicy) - call before start().
+     */
+    public void setEnergyLink(EnergyPolicy.Link link) {
+        mEnergyLink = link;
+    }
+
+    /**
+     * @return the battery level (%) reported by the device, or -1 if it has not reported one.
+     */
+    public int getBatteryLevel() {
+        return mBatteryLevel;
+    }
+
+    /**
+     * @return where the device says it is worn (an index into GattAttributes.BODY_SENSOR_LOCATIONS),
+     * or -1 if it has not said.
+     */
+    public int getBodySensorLocation() {
+        return mBodySensorLocation;
+    }
+
+    /**
+     * @return the GATT operation queue (for its latency and retry statistics).
+     */
+    public GattOperationQueue getGattOperations() {
+        return mGattOps;
+    }
+
+    /**
+     * @return the time (ms) from losing the link (or from start()) to the first sample once it
+     * was re-established, for the latest connection - or -1 if there has been no sample yet.
+     */
+    public long getTimeToFirstSampleMs() {
+        return mTimeToFirstSample;
+    }
+
+    /**
+     * @return the longest time to first sample (ms) since start(), or -1.
+     */
+    public long getMaxTimeToFirstSampleMs() {
+        return mMaxTimeToFirstSample;
+    }
+
+    /**
+     * @return the number of times the link has been re-established after it was lost.
+     */
+    public int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    @Override
     public void start() {
         Log.v(TAG,"start()");
-        BluetoothDevice device = mAdapter.getRemoteDevice(mHrmAddr);
-        mGatt = device.connectGatt(mContext, false, mGattCallback);
+        mStopped = false;
+        mBackoff.reset();
+        mReconnectCount = 0;
+        mMaxTimeToFirstSample = -1;
+        mServicesListed = false;
+        startGap();
+        connect();
     }
 
+    @Override
     public void stop() {
         Log.v(TAG,"stop()");
-        mGatt.disconnect();
+        mStopped = true;
+        mHandler.removeCallbacks(mReconnect);
+        BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+            if (mConnectionState == STATE_CONNECTING) {
+                // A pending connection is cancelled without a callback, so release it here.
+                gatt.close();
+                mGatt = null;
+                mConnectionState = STATE_DISCONNECTED;
+            }
+        }
+        Log.v(TAG, "stop() - " + mReconnectCount + " reconnections, longest time to first sample "
+                + mMaxTimeToFirstSample + " ms, " + mGattOps.getCompletedCount() + " GATT operations, "
+                + mGattOps.getFailedCount() + " failed, " + mGattOps.getRetryCount() + " retries, mean latency "
+                + mGattOps.getMeanLatencyNanos() / 1000000 + " ms");
+    }
+
+    private void connect() {
+        if (mAdapter == null || mHrmAddr == null) {
+            Log.e(TAG, "connect() - no adapter or device address");
+            return;
+        }
+        // A direct connection is quickest if the device is in range, but times out after about
+        // 30 s; once a few have failed, let the controller look for the device in the background.
+        boolean autoConnect = mBackoff.getAttempts() >= DIRECT_CONNECT_ATTEMPTS;
+        Log.v(TAG, "connect() - autoConnect = " + autoConnect);
+        mConnectionState = STATE_CONNECTING;
+        BluetoothDevice device = mAdapter.getRemoteDevice(mHrmAddr);
+        mGatt = device.connectGatt(mContext, autoConnect, mGattCallback);
     }
 
+    private void startGap() {
+        mGapStart = SystemClock.elapsedRealtime();
+        mAwaitingFirstSample = true;
+    }
+
+    /**
+     * Called with the first sample after (re)connecting, to record how long the data stopped for.
+     */
+    private void endGap() {
+        mAwaitingFirstSample = false;
+        long gap = SystemClock.elapsedRealtime() - mGapStart;
+        mTimeToFirstSample = gap;
+        if (gap > mMaxTimeToFirstSample) {
+            mMaxTimeToFirstSample = gap;
+        }
+        Log.v(TAG, "First sample after " + gap + " ms without data");
+    }
+
+    /**
+     * Reconnects this device after the link was lost - independently of any other monitor.
+     */
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            if (!mStopped) {
+                Log.v(TAG, "Reconnecting to " + mHrmAddr);
+                connect();
+            }
+        }
+    };
+
     private void listServices() {
         Log.v(TAG,"listServices()");
         for (BluetoothGattService gattService : mGattServices) {
             Log.v(TAG,"Service "+gattService.toString());
-            Log.v(TAG,"Service - "+SampleGattAttributes.lookup(gattService.getUuid().toString(), "unknown"));
+            Log.v(TAG,"Service - "+GattAttributes.lookup(gattService.getUuid(), "unknown"));
             List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
             for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
                 Log.v(TAG,"  -  Characteristic "+gattCharacteristic.toString());
-                Log.v(TAG,"  -  Characteristic - "+SampleGattAttributes.lookup(gattCharacteristic.getUuid().toString(),"unknown"));
+                Log.v(TAG,"  -  Characteristic - "+GattAttributes.lookup(gattCharacteristic.getUuid(),"unknown"));
             }
         }
 
     }
 
 
+    /**
+     * Pass a Heart Rate Measurement packet to the listener - raw if it can take it (so it is
+     * parsed on the listener's thread, see ProcessingPipeline), otherwise parsed here.
+     */
+    private void deliver(byte[] value) {
+        long now = System.currentTimeMillis();
+        if (mAwaitingFirstSample) {
+            endGap();
+        }
+        EnergyPolicy.Link link = mEnergyLink;
+        if (link != null) {
+            int priority = link.onSample(now);
+            if (priority >= 0) {
+                requestConnectionPriority(priority);
+            }
+        }
+        if (mPacketCallback != null) {
+            mPacketCallback.onHrmPacketReceived(value, now);
+        } else if (HrmMeasurementParser.parse(value, mMeasurement)) {
+            mMeasurement.mTimestamp = now;
+            mCallback.onHrmMeasurementReceived(mMeasurement);
+        } else {
+            Log.w(TAG, "deliver() - invalid Heart Rate Measurement packet");
+        }
+    }
+
+    private void requestConnectionPriority(int priority) {
+        BluetoothGatt gatt = mGatt;
+        if (gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Log.v(TAG, "Requesting " + EnergyPolicy.PRIORITY_NAMES[priority] + " connection priority");
+            gatt.requestConnectionPriority(priority);
+        }
+    }
+
+    /**
+     * Pass on the value of a characteristic other than the Heart Rate Measurement.
+     */
+    private void deliverOther(int shortUuid, BluetoothGattCharacteristic characteristic) {
+        Integer value = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+        if (value == null) {
+            return;
+        }
+        if (shortUuid == GattAttributes.BATTERY_LEVEL) {
+            mBatteryLevel = value;
+            mCallback.onHrmDataReceived(TYPE_BATTERY, value, "Battery level " + value + "%");
+        } else if (shortUuid == GattAttributes.BODY_SENSOR_LOCATION) {
+            mBodySensorLocation = value;
+            String location = value < GattAttributes.BODY_SENSOR_LOCATIONS.length
+                    ? GattAttributes.BODY_SENSOR_LOCATIONS[value] : "Unknown";
+            mCallback.onHrmDataReceived(TYPE_BODY_SENSOR_LOCATION, value, "Sensor location " + location);
+        }
+    }
+
+    /**
+     * Starts queued GATT operations on the current connection.
+     */
+    private final GattOperationQueue.Target mGattTarget = new GattOperationQueue.Target() {
+        @Override
+        public boolean execute(GattOperationQueue.Operation op) {
+            BluetoothGatt gatt = mGatt;
+            BluetoothGattCharacteristic c = null;
+            if (op.mCharacteristic == GattAttributes.HEART_RATE_MEASUREMENT) {
+                c = mHrmCharacteristic;
+            } else if (gatt != null) {
+                BluetoothGattService service = gatt.getService(GattAttributes.fromShortUuid(op.mService));
+                c = service == null ? null : service.getCharacteristic(GattAttributes.fromShortUuid(op.mCharacteristic));
+            }
+            if (gatt == null || c == null) {
+                return false;
+            }
+            switch (op.mKind) {
+                case GattOperationQueue.OP_READ:
+                    return gatt.readCharacteristic(c);
+                case GattOperationQueue.OP_WRITE:
+                    c.setValue(op.mValue);
+                    return gatt.writeCharacteristic(c);
+                case GattOperationQueue.OP_ENABLE_NOTIFICATIONS:
+                    BluetoothGattDescriptor descriptor = c.getDescriptor(GattAttributes.UUID_CLIENT_CHARACTERISTIC_CONFIG);
+                    if (descriptor == null || !gatt.setCharacteristicNotification(c, true)) {
+                        return false;
+                    }
+                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                    return gatt.writeDescriptor(descriptor);
+            }
+            return false;
+        }
+    };
+
+    private final GattOperationQueue.Scheduler mGattScheduler = new GattOperationQueue.Scheduler() {
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            mHandler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    };
+
+    private final GattOperationQueue.Listener mGattOpListener = new GattOperationQueue.Listener() {
+        @Override
+        public void onGattOperationComplete(GattOperationQueue.Operation op, boolean success) {
+            if (op.mKind == GattOperationQueue.OP_ENABLE_NOTIFICATIONS
+                    && op.mCharacteristic == GattAttributes.HEART_RATE_MEASUREMENT) {
+                if (success) {
+                    mConnectionState = STATE_READY;
+                    if (mBackoff.getAttempts() > 0) {
+                        mReconnectCount++;
+                    }
+                    mBackoff.reset();
+                    mCallback.onHrmDataReceived(TYPE_READY, 1, "Ready - HRM Service found.");
+                } else {
+                    Log.e(TAG, "Failed to enable Heart Rate Measurement notifications");
+                }
+            } else if (!success) {
+                Log.w(TAG, "GATT operation failed - " + op);
+            }
+        }
+    };
+
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.v(TAG,"onCharacteristicChanged() - characteristic = "+characteristic.toString());
-            // This is special handling for the Heart Rate Measurement profile. Data
-            // parsing is carried out as per profile specifications.
-            Log.v(TAG, "UUID=" + characteristic.getUuid());
+            // This is called for every notification, so avoid building log strings here.
             if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-                int flag = characteristic.getProperties();
-                int format = -1;
-                if ((flag & 0x01) != 0) {
-                    format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                    Log.d(TAG, "Heart rate format UINT16.");
-                } else {
-                    format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                    Log.d(TAG, "Heart rate format UINT8.");
-                }
-                final int heartRate = characteristic.getIntValue(format, 1);
-                Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-                mCallback.onHrmDataReceived(TYPE_DATA, heartRate, String.format("Received heart rate: %d", heartRate));
+                deliver(characteristic.getValue());
+            } else {
+                deliverOther(GattAttributes.shortUuid(characteristic.getUuid()), characteristic);
             }
 
             super.onCharacteristicChanged(gatt, characteristic);
@@ -136,27 +423,35 @@ public class BleHrmMonitor {
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             Log.v(TAG, "onCharacteristicRead()");
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.v(TAG, "Characteristic Read OK - " + characteristic.toString());
-                // This is special handling for the Heart Rate Measurement profile. Data
-                // parsing is carried out as per profile specifications.
-                Log.v(TAG, "UUID=" + characteristic.getUuid());
-                if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-                    int flag = characteristic.getProperties();
-                    int format = -1;
-                    if ((flag & 0x01) != 0) {
-                        format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                        Log.d(TAG, "Heart rate format UINT16.");
-                    } else {
-                        format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                        Log.d(TAG, "Heart rate format UINT8.");
-                    }
-                    final int heartRate = characteristic.getIntValue(format, 1);
-                    Log.d(TAG, String.format("Received heart rate: %d", heartRate));
+            int shortUuid = GattAttributes.shortUuid(characteristic.getUuid());
+            boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            if (success) {
+                if (shortUuid == GattAttributes.HEART_RATE_MEASUREMENT) {
+                    deliver(characteristic.getValue());
+                } else {
+                    deliverOther(shortUuid, characteristic);
                 }
+            }
+            mGattOps.onComplete(GattOperationQueue.OP_READ, shortUuid, success);
+            super.onCharacteristicRead(gatt, characteristic, status);
+        }
 
-                super.onCharacteristicRead(gatt, characteristic, status);
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mGattOps.onComplete(GattOperationQueue.OP_WRITE, GattAttributes.shortUuid(characteristic.getUuid()),
+                    status == BluetoothGatt.GATT_SUCCESS);
+            super.onCharacteristicWrite(gatt, characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            Log.v(TAG, "onDescriptorWrite() - status " + status);
+            if (GattAttributes.is(descriptor.getUuid(), GattAttributes.CLIENT_CHARACTERISTIC_CONFIG)) {
+                mGattOps.onComplete(GattOperationQueue.OP_ENABLE_NOTIFICATIONS,
+                        GattAttributes.shortUuid(descriptor.getCharacteristic().getUuid()),
+                        status == BluetoothGatt.GATT_SUCCESS);
             }
+            super.onDescriptorWrite(gatt, descriptor, status);
         }
 
         /**
@@ -172,12 +467,36 @@ public class BleHrmMonitor {
                 Log.v(TAG,"Connected!");
                 mConnectionState = STATE_CONNECTED;
                 mCallback.onHrmDataReceived(TYPE_CONNECTION,1,"Connected");
+                EnergyPolicy.Link link = mEnergyLink;
+                if (link != null) {
+                    int priority = link.onConnected(System.currentTimeMillis());
+                    if (priority >= 0) {
+                        requestConnectionPriority(priority);
+                    }
+                }
                 // Start service discovery
-                mGatt.discoverServices();
+                gatt.discoverServices();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.v(TAG,"Disconnected");
+                if (!mAwaitingFirstSample) {
+                    startGap();
+                }
                 mConnectionState = STATE_DISCONNECTED;
+                mGattOps.clear();
+                if (mEnergyLink != null) {
+                    mEnergyLink.onDisconnected(System.currentTimeMillis());
+                }
                 mCallback.onHrmDataReceived(TYPE_CONNECTION,0,"Disconnected");
+                // Release this connection, and try again unless we were asked to stop.
+                gatt.close();
+                if (mGatt == gatt) {
+                    mGatt = null;
+                }
+                if (!mStopped) {
+                    long delay = mBackoff.nextDelay();
+                    Log.v(TAG, "Reconnecting in " + delay + " ms (attempt " + mBackoff.getAttempts() + ")");
+                    mHandler.postDelayed(mReconnect, delay);
+                }
             }
             super.onConnectionStateChange(gatt, status, newState);
         }
@@ -187,22 +506,39 @@ public class BleHrmMonitor {
             Log.v(TAG, "onservicesDiscovered()");
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.v(TAG,"Successful service discovery");
+                // Now we have discovered all the services, list them for debugging (only on
+                // the first connection - a reconnect finds the same ones), and find the Heart
+                // Rate Measurement.
                 mGattServices = gatt.getServices();
-                // Now we have discovered all the services, list them for debugging, and ask for
-                // notifications of Heart Rate Measurement changes.
-                listServices();
-                mHrmCharacteristic = getHrmCharacteristic();
-                if (UUID_HEART_RATE_MEASUREMENT.equals(mHrmCharacteristic.getUuid())) {
-                    Log.v(TAG,"Check OK - characteristic is a HRM UUID");
-                } else {
-                    Log.e(TAG,"****ERROR - characteristic does not have the HRM UUID!!");
+                if (!mServicesListed) {
+                    mServicesListed = true;
+                    listServices();
+                }
+                mHrmCharacteristic = getHrmCharacteristic(gatt);
+                if (mHrmCharacteristic == null) {
+                    Log.e(TAG, "onServicesDiscovered() - device has no Heart Rate Measurement characteristic");
+                    return;
+                }
+                // Ask for notifications of Heart Rate Measurement changes first, so data starts
+                // as soon as possible; we are ready once that has completed (see mGattOpListener).
+                mGattOps.clear();
+                mGattOps.enqueue(GattOperationQueue.OP_ENABLE_NOTIFICATIONS, GattAttributes.HEART_RATE_SERVICE,
+                        GattAttributes.HEART_RATE_MEASUREMENT, null);
+                if (mHrmCharacteristic.getService() != null
+                        && mHrmCharacteristic.getService().getCharacteristic(GattAttributes.UUID_BODY_SENSOR_LOCATION) != null) {
+                    mGattOps.enqueue(GattOperationQueue.OP_READ, GattAttributes.HEART_RATE_SERVICE,
+                            GattAttributes.BODY_SENSOR_LOCATION, null);
+                }
+                BluetoothGattService battery = gatt.getService(GattAttributes.UUID_BATTERY_SERVICE);
+                BluetoothGattCharacteristic level = battery == null ? null : battery.getCharacteristic(GattAttributes.UUID_BATTERY_LEVEL);
+                if (level != null) {
+                    mGattOps.enqueue(GattOperationQueue.OP_READ, GattAttributes.BATTERY_SERVICE,
+                            GattAttributes.BATTERY_LEVEL, null);
+                    if ((level.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                        mGattOps.enqueue(GattOperationQueue.OP_ENABLE_NOTIFICATIONS, GattAttributes.BATTERY_SERVICE,
+                                GattAttributes.BATTERY_LEVEL, null);
+                    }
                 }
-                mGatt.setCharacteristicNotification(mHrmCharacteristic, true);
-                BluetoothGattDescriptor descriptor = mHrmCharacteristic.getDescriptor(
-                        UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                mGatt.writeDescriptor(descriptor);
-                mCallback.onHrmDataReceived(TYPE_READY, 1, "Ready - HRM Service found.");
             } else {
                 Log.e(TAG,"Service discovery failed - something will not work!");
                 mGattServices = null;
@@ -210,20 +546,15 @@ public class BleHrmMonitor {
             super.onServicesDiscovered(gatt, status);
         }
 
-        private BluetoothGattCharacteristic getHrmCharacteristic() {
-            // Loop through the services and associated characteristics, and return the heart rate measurement
-            // characteristic.
-            Log.v(TAG, "getHrmCharacteristic()");
-            for (BluetoothGattService gattService : mGattServices) {
-                List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
-                for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                    if (SampleGattAttributes.lookup(gattCharacteristic.getUuid().toString(),"unknown").equals("Heart Rate Measurement")) {
-                        Log.v(TAG,"Returning HRM Characteristic - "+gattCharacteristic.toString());
-                        return gattCharacteristic;
-                    }
-                }
-            }
-            return null;
+        /**
+         * @return the Heart Rate Measurement characteristic of the Heart Rate service, or null if
+         * the device does not have one.
+         */
+        private BluetoothGattCharacteristic getHrmCharacteristic(BluetoothGatt gatt) {
+            BluetoothGattService service = gatt.getService(UUID_HEART_RATE_SERVICE);
+            BluetoothGattCharacteristic c = service == null ? null : service.getCharacteristic(UUID_HEART_RATE_MEASUREMENT);
+            Log.v(TAG, "getHrmCharacteristic() - " + c);
+            return c;
         }
 
 
@@ -0,0 +1,177 @@
+package uk.org.maps3.sleeplogger;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lists the recorded nights, newest first - tap one to open it in NightActivity.
+ *
+ * Only the file names are listed up front.   A night's summary (NightDetail.readSummary(), which
+ * reads its header and hourly rollups) is read on a background thread when its row is first
+ * shown, and the list recycles its row views - so opening a long history costs a directory
+ * listing, however many nights it holds.   The nights being recorded now are not read at all (their
+ * rollups would have to be built from the whole file, and would be out of date at once); a night
+ * that was not closed cleanly is read in full once, after which its rollups are kept with it.
+ */
+public class HistoryActivity extends AppCompatActivity implements AdapterView.OnItemClickListener {
+    public final static String EXTRA_SESSION_FILE = "sessionFile";
+    private final static String TAG = "HistoryActivity";
+
+    private SessionListAdapter mAdapter;
+    private ExecutorService mLoader;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        Log.v(TAG, "onCreate()");
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_history);
+        mLoader = Executors.newSingleThreadExecutor();
+        mAdapter = new SessionListAdapter(listSessions(LoggerService.getSessionDir(this)));
+        ListView listView = (ListView) findViewById(R.id.sessionList);
+        listView.setAdapter(mAdapter);
+        listView.setOnItemClickListener(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        Log.v(TAG, "onDestroy()");
+        mLoader.shutdownNow();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        Intent i = new Intent(this, NightActivity.class);
+        i.putExtra(EXTRA_SESSION_FILE, mAdapter.getItem(position).getPath());
+        startActivity(i);
+    }
+
+    /**
+     * @return the session files in dir, newest first.
+     */
+    private static File[] listSessions(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int n = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(SessionFile.EXTENSION)) {
+                files[n++] = f;
+            }
+        }
+        File[] sessions = Arrays.copyOf(files, n);
+        // Session file names are timestamps, so they sort by time.
+        Arrays.sort(sessions, Collections.reverseOrder());
+        return sessions;
+    }
+
+    private static class ViewHolder {
+        TextView mName;
+        TextView mSummary;
+    }
+
+    private class SessionListAdapter extends BaseAdapter {
+        private final File[] mFiles;
+        private final String[] mSummaries;      // null until read.
+        private final boolean[] mQueued;
+        private final SimpleDateFormat mDateFormat = new SimpleDateFormat("HH:mm", Locale.UK);
+
+        SessionListAdapter(File[] files) {
+            mFiles = files;
+            mSummaries = new String[files.length];
+            mQueued = new boolean[files.length];
+        }
+
+        @Override
+        public int getCount() {
+            return mFiles.length;
+        }
+
+        @Override
+        public File getItem(int position) {
+            return mFiles[position];
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            ViewHolder holder;
+            if (convertView == null) {
+                convertView = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_session, parent, false);
+                holder = new ViewHolder();
+                holder.mName = (TextView) convertView.findViewById(R.id.sessionName);
+                holder.mSummary = (TextView) convertView.findViewById(R.id.sessionSummary);
+                convertView.setTag(holder);
+            } else {
+                holder = (ViewHolder) convertView.getTag();
+            }
+            holder.mName.setText(mFiles[position].getName());
+            if (mSummaries[position] == null && LoggerService.getState().isSessionFile(mFiles[position])) {
+                mSummaries[position] = "Recording now";
+            }
+            if (mSummaries[position] != null) {
+                holder.mSummary.setText(mSummaries[position]);
+            } else {
+                holder.mSummary.setText("...");
+                loadSummary(position);
+            }
+            return convertView;
+        }
+
+        /**
+         * Read the summary of a night in the background, and show it when it is ready.
+         */
+        private void loadSummary(final int position) {
+            if (mQueued[position]) {
+                return;
+            }
+            mQueued[position] = true;
+            final File file = mFiles[position];
+            mLoader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final NightDetail.Summary s = NightDetail.readSummary(file);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mSummaries[position] = format(s);
+                            notifyDataSetChanged();
+                        }
+                    });
+                }
+            });
+        }
+
+        private String format(NightDetail.Summary s) {
+            if (s.mError.length() > 0) {
+                return s.mError;
+            }
+            String end = s.mEnd == 0 ? "(not closed)" : mDateFormat.format(new Date(s.mEnd));
+            return mDateFormat.format(new Date(s.mStart)) + " - " + end
+                    + String.format(Locale.UK, "   HR %.0f bpm (%d - %d)", s.mMeanHr, s.mMinHr, s.mMaxHr);
+        }
+    }
+}
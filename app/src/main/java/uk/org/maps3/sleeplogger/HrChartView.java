@@ -0,0 +1,347 @@
+package uk.org.maps3.sleeplogger;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * A scrolling chart of the last few minutes of heart rate, read from the service's HrHistory and
+ * RollupEngine (see setSource()).
+ *
+ * Nothing is allocated while drawing.   Each sample is converted to a point once, when it arrives,
+ * and appended to a reused Path (or preallocated float arrays) with x measured in pixels from a
+ * base time - so scrolling is only a translation of the canvas, and the points are only rebuilt
+ * when the scale changes or when the points that have scrolled off the left make up half of them.
+ *
+ * Spans that hold more heart rate samples than the chart has pixels are drawn from the finest
+ * rollup tier that fits (e.g. 30 second epochs for a few hours), as the mean with a bar from the
+ * minimum to the maximum of each bucket, so the cost of a frame depends on the width of the chart
+ * rather than the length of the span.   The heart rate of each beat (60000 / RR interval) is
+ * drawn as dots when the raw samples are shown.
+ */
+public class HrChartView extends View {
+    public final static int DEFAULT_WINDOW_MINUTES = 10;
+    public final static int MIN_HR = 30;     // The range of the y axis (bpm).
+    public final static int MAX_HR = 180;
+
+    private final static int LEVEL_RAW = -1;
+    private final static int RAW_PERIOD_MS = 1000;   // Heart rate monitors send about one sample a second.
+    private final static int SLACK = 16;             // Samples the writer may add while we take a snapshot.
+    private final static int[] GRID_HR = {60, 90, 120, 150};
+    private final static String[] GRID_LABELS = {"60", "90", "120", "150"};
+    private final static long MIN_REDRAW_MS = 16;
+
+    private HrHistory mHistory = null;
+    private RollupEngine mRollups = null;
+    private long mWindowMs = DEFAULT_WINDOW_MINUTES * 60000L;
+
+    private int mLevel = LEVEL_RAW;     // LEVEL_RAW or the rollup tier being drawn.
+    private boolean mRebuild = true;
+    private long mBaseTime = 0;         // The time at x = 0 of the points.
+    private float mPxPerMs = 0;
+    private int mMaxPoints = 0;         // Points kept before rebuilding - twice what fits on the chart.
+
+    // Snapshot buffers (sized in onSizeChanged()).
+    private long[] mTimes = new long[0];
+    private int[] mValues = new int[0];
+
+    // The points drawn.
+    private final Path mHrPath = new Path();
+    private int mHrPoints = 0;
+    private float[] mBeats = new float[0];     // x, y of each beat.
+    private int mBeatCount = 0;
+    private float[] mRanges = new float[0];    // x, y(min), x, y(max) of each rollup bucket.
+    private int mRangeCount = 0;
+
+    // What has been read so far.
+    private long mHrCount = 0;
+    private long mRrCount = 0;
+    private long mLastHrTime = 0;
+    private long mLastRrTime = 0;
+    private int mBucket = 0;
+
+    private final Paint mHrPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mBeatPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mRangePaint = new Paint();
+    private final Paint mGridPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * Redraws the chart each time it has scrolled by a pixel.
+     */
+    private final Runnable mScroll = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+        }
+    };
+
+    public HrChartView(Context context) {
+        super(context);
+        init();
+    }
+
+    public HrChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        mHrPaint.setColor(Color.RED);
+        mHrPaint.setStyle(Paint.Style.STROKE);
+        mHrPaint.setStrokeWidth(3);
+        mBeatPaint.setColor(Color.BLUE);
+        mBeatPaint.setStrokeWidth(4);
+        mRangePaint.setColor(Color.LTGRAY);
+        mRangePaint.setStrokeWidth(1);
+        mGridPaint.setColor(Color.GRAY);
+        mGridPaint.setStrokeWidth(1);
+        mGridPaint.setTextSize(24);
+    }
+
+    /**
+     * Set the history to draw (null to draw nothing).   UI thread only.
+     */
+    public void setSource(HrHistory history, RollupEngine rollups) {
+        mHistory = history;
+        mRollups = rollups;
+        mRebuild = true;
+        invalidate();
+    }
+
+    /**
+     * Set the span of the chart (see the ChartMinutes setting).   UI thread only.
+     */
+    public void setWindowMinutes(int minutes) {
+        long windowMs = Math.max(minutes, 1) * 60000L;
+        if (windowMs == mWindowMs) {
+            return;
+        }
+        mWindowMs = windowMs;
+        setScale(getWidth() - getPaddingLeft() - getPaddingRight());
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        int width = w - getPaddingLeft() - getPaddingRight();
+        int n = 2 * Math.max(width, 1) + SLACK;
+        mTimes = new long[n];
+        mValues = new int[n];
+        mBeats = new float[2 * n];
+        mRanges = new float[4 * n];
+        setScale(width);
+    }
+
+    private void setScale(int width) {
+        width = Math.max(width, 1);
+        mPxPerMs = (float) width / mWindowMs;
+        mMaxPoints = 2 * width;
+        // Use the finest level that gives no more than a point per pixel.
+        mLevel = LEVEL_RAW;
+        if (mWindowMs / RAW_PERIOD_MS > width) {
+            mLevel = RollupEngine.TIER_HOUR;
+            for (int tier = RollupEngine.TIER_EPOCH; tier < RollupEngine.TIER_HOUR; tier++) {
+                if (mWindowMs / RollupEngine.TIER_PERIODS_MS[tier] <= width) {
+                    mLevel = tier;
+                    break;
+                }
+            }
+        }
+        mRebuild = true;
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (visibility == VISIBLE) {
+            invalidate();
+        } else {
+            removeCallbacks(mScroll);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mScroll);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int left = getPaddingLeft();
+        int right = getWidth() - getPaddingRight();
+        int top = getPaddingTop();
+        int bottom = getHeight() - getPaddingBottom();
+        if (right <= left || bottom <= top) {
+            return;
+        }
+
+        for (int i = 0; i < GRID_HR.length; i++) {
+            float y = hrToY(GRID_HR[i]);
+            canvas.drawLine(left, y, right, y, mGridPaint);
+            canvas.drawText(GRID_LABELS[i], left, y - 4, mGridPaint);
+        }
+        if (mHistory == null || mRollups == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (mRebuild || now - mBaseTime > (long) (mMaxPoints / mPxPerMs)) {
+            rebuild(now);
+        }
+        if (mLevel == LEVEL_RAW) {
+            readHr();
+            readRr();
+        } else {
+            readBuckets(mRollups.getTier(mLevel));
+        }
+
+        canvas.save();
+        canvas.clipRect(left, top, right, bottom);
+        // Scroll: the newest time is at the right hand edge.
+        canvas.translate(right - (now - mBaseTime) * mPxPerMs, 0);
+        if (mRangeCount > 0) {
+            canvas.drawLines(mRanges, 0, mRangeCount * 4, mRangePaint);
+        }
+        if (mHrPoints > 0) {
+            canvas.drawPath(mHrPath, mHrPaint);
+        }
+        if (mBeatCount > 0) {
+            canvas.drawPoints(mBeats, 0, mBeatCount * 2, mBeatPaint);
+        }
+        canvas.restore();
+
+        // Redraw when the chart has scrolled by another pixel.
+        removeCallbacks(mScroll);
+        postDelayed(mScroll, Math.max(MIN_REDRAW_MS, (long) (1 / mPxPerMs)));
+    }
+
+    /**
+     * Discard the points and start again from the left hand edge of the chart.
+     */
+    private void rebuild(long now) {
+        mRebuild = false;
+        mBaseTime = now - mWindowMs;
+        mHrPath.rewind();
+        mHrPoints = 0;
+        mBeatCount = 0;
+        mRangeCount = 0;
+        mHrCount = 0;
+        mRrCount = 0;
+        mLastHrTime = mBaseTime;
+        mLastRrTime = mBaseTime;
+        mBucket = mLevel == LEVEL_RAW ? 0 : mRollups.getTier(mLevel).findBucket(mBaseTime);
+    }
+
+    /**
+     * Append the heart rate samples added since the last frame.
+     */
+    private void readHr() {
+        long count = mHistory.getHrCount();
+        if (count < mHrCount) {
+            mRebuild = true;   // Cleared for a new night.
+            return;
+        }
+        if (count == mHrCount) {
+            return;
+        }
+        // Ask for a few more than are new, in case some are added while copying - the times
+        // tell us which we already have.
+        int n = (int) Math.min(count - mHrCount + SLACK, mTimes.length);
+        n = mHistory.snapshotHr(mTimes, mValues, n);
+        mHrCount = count;
+        for (int i = 0; i < n; i++) {
+            long t = mTimes[i];
+            if (t <= mLastHrTime) {
+                continue;
+            }
+            mLastHrTime = t;
+            float x = (t - mBaseTime) * mPxPerMs;
+            float y = hrToY(mValues[i]);
+            if (mHrPoints == 0) {
+                mHrPath.moveTo(x, y);
+            } else {
+                mHrPath.lineTo(x, y);
+            }
+            mHrPoints++;
+        }
+        if (mHrPoints > mMaxPoints) {
+            mRebuild = true;
+        }
+    }
+
+    /**
+     * Append the beats added since the last frame.
+     */
+    private void readRr() {
+        long count = mHistory.getRrCount();
+        if (count < mRrCount) {
+            mRebuild = true;
+            return;
+        }
+        if (count == mRrCount) {
+            return;
+        }
+        int n = (int) Math.min(count - mRrCount + SLACK, mTimes.length);
+        n = mHistory.snapshotRr(mTimes, mValues, n);
+        mRrCount = count;
+        for (int i = 0; i < n; i++) {
+            long t = mTimes[i];
+            if (t <= mLastRrTime || mValues[i] <= 0) {
+                continue;
+            }
+            mLastRrTime = t;
+            if (mBeatCount * 2 == mBeats.length) {
+                mRebuild = true;
+                return;
+            }
+            mBeats[mBeatCount * 2] = (t - mBaseTime) * mPxPerMs;
+            mBeats[mBeatCount * 2 + 1] = hrToY(60000 / mValues[i]);
+            mBeatCount++;
+        }
+    }
+
+    /**
+     * Append the rollup buckets completed since the last frame.
+     */
+    private void readBuckets(Rollup tier) {
+        int size = tier.size();
+        if (size < mBucket) {
+            mRebuild = true;
+            return;
+        }
+        float halfPeriod = tier.getPeriodMs() / 2f;
+        for (; mBucket < size; mBucket++) {
+            if (mRangeCount * 4 == mRanges.length) {
+                mRebuild = true;
+                return;
+            }
+            float x = (tier.getStart(mBucket) - mBaseTime + halfPeriod) * mPxPerMs;
+            float y = hrToY(Math.round(tier.getMean(mBucket)));
+            if (mHrPoints == 0) {
+                mHrPath.moveTo(x, y);
+            } else {
+                mHrPath.lineTo(x, y);
+            }
+            mHrPoints++;
+            int i = mRangeCount * 4;
+            mRanges[i] = x;
+            mRanges[i + 1] = hrToY(tier.getMin(mBucket));
+            mRanges[i + 2] = x;
+            mRanges[i + 3] = hrToY(tier.getMax(mBucket));
+            mRangeCount++;
+        }
+    }
+
+    private float hrToY(int hr) {
+        int top = getPaddingTop();
+        int height = getHeight() - getPaddingBottom() - top;
+        hr = Math.max(MIN_HR, Math.min(MAX_HR, hr));
+        return top + (float) (MAX_HR - hr) * height / (MAX_HR - MIN_HR);
+    }
+}
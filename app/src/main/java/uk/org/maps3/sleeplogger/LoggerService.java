@@ -19,49 +19,79 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.support.v7.app.NotificationCompat;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 
-interface SleepLoggerListener {
-    void onSleepLoggerStatusChanged(int type, int data, String msg);
-}
-
-
-public class LoggerService extends Service implements BleHrmMonitorListener {
+public class LoggerService extends Service {
+    // Event types published to subscribers (see subscribe()).
     public final static int TYPE_DATA = 1;   // A message containing HRM data
     public final static int TYPE_CONNECTION = 2;  // A message describing the connection state.
     public final static int TYPE_READY = 3;       // A message saying the device is ready (HRM service discovered).
     private final String TAG = "LoggerService";
     private final int NOTIFICATION_ID = 1;
     private final IBinder mBinder = new LocalBinder();
-    public boolean mConnected = false;
-    public boolean mReady = false;
-    public int mHR = 0;
-    //public Array<int> mHRArray;
+    public final static int MAX_SENSORS = 8;
+    public volatile boolean mConnected = false;    // At least one sensor is connected.
+    public volatile boolean mReady = false;        // At least one sensor is sending data.
+    public volatile int mHR = 0;                   // Latest heart rate from the primary sensor.
+    private final SensorChannel mPrimary = new SensorChannel(0);
+    private volatile SensorChannel[] mSensors = {mPrimary};
+    private ProcessingPipeline mPipeline = null;    // Processes the sensors' data off the Bluetooth threads.
     private String mHrmAddr = null;
     private String mHrmName = null;
-    private SleepLoggerListener mCallback = null;
-    private BleHrmMonitor mBleHrmMonitor;
+    private String[] mExtraHrmAddrs = new String[0];
+    private final EventFanout mEvents = new EventFanout();
+    private final static ServiceState sState = new ServiceState();
+    private String mHrSourcePref = "ble";
+    private String mReplayFile = "";
+    private double mSourceSpeed = 1;
+    private DurabilityPolicy mDurabilityPolicy = DurabilityPolicy.parse(DurabilityPolicy.DEFAULT);
+    private long mWakeWindowMs = EnergyPolicy.DEFAULT_WAKE_WINDOW_MS;
+    private EnergyPolicy mEnergyPolicy = null;
 
 
     public LoggerService() {
         Log.v(TAG, "LoggerService() constructor");
     }
 
+    /**
+     * Return the state of the service (running, connected, ready and samples received).   The
+     * service runs in the app's process, so this can be read without binding to it, or asking
+     * the system which services are running.
+     */
+    public static ServiceState getState() {
+        return sState;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
+        sState.setRunning(true);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.v(TAG, "onStartCommand()");
         updatePrefs();
-        Log.v(TAG,"Connecting to Device at Address "+mHrmAddr);
-        mBleHrmMonitor = new BleHrmMonitor(this.getApplicationContext(),mHrmAddr,this);
+        stopSensors();
+        closeSessions();
+        // Choose the sources first, so a replay does not pick the session we are about to create.
+        createSensors();
+        openSessions();
+        mPipeline.start();
+        for (SensorChannel sensor : mSensors) {
+            sensor.mHrSource.start();
+        }
 
 
         /**
@@ -98,14 +128,77 @@ public class LoggerService extends Service implements BleHrmMonitorListener {
         Log.v(TAG, "onDestroy(): cancelling notification");
         NotificationManager nM = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         nM.cancel(NOTIFICATION_ID);
-        mBleHrmMonitor.stop();
+        stopSensors();
+        closeSessions();
+        sState.setRunning(false);
 
         super.onDestroy();
     }
 
-    public void setCallback(SleepLoggerListener callback) {
-        Log.v(TAG, "setCallback()");
-        mCallback = callback;
+    /**
+     * Subscribe to the service's events (TYPE_DATA for each heart rate from the primary sensor,
+     * TYPE_CONNECTION and TYPE_READY), which are published on the processing thread and
+     * delivered on the subscriber's dispatcher - see EventFanout for the delivery modes.
+     */
+    public EventFanout.Subscription subscribe(EventFanout.Listener listener, int mode, long periodMs,
+                                              EventFanout.Dispatcher dispatcher) {
+        EventFanout.Subscription s = mEvents.subscribe(listener, mode, periodMs, dispatcher);
+        Log.v(TAG, "subscribe() - " + EventFanout.MODE_NAMES[mode] + ", " + mEvents.getSubscriberCount() + " subscribers");
+        updateBatching();
+        return s;
+    }
+
+    public void unsubscribe(EventFanout.Subscription subscription) {
+        mEvents.unsubscribe(subscription);
+        Log.v(TAG, "unsubscribe() - " + mEvents.getSubscriberCount() + " subscribers");
+        updateBatching();
+    }
+
+    /**
+     * Only put work off to the wake windows while nobody wants events promptly.
+     */
+    private void updateBatching() {
+        if (mEnergyPolicy != null) {
+            mEnergyPolicy.setBatching(!mEvents.needsPromptDelivery());
+        }
+    }
+
+    /**
+     * Return the heart rate rollups for the current night.   Clients may read completed
+     * buckets from any thread (see Rollup).
+     */
+    public RollupEngine getRollups() {
+        return mPrimary.mNight.getRollups();
+    }
+
+    /**
+     * Return the heart rate variability engine for the current night.   Its current values
+     * and completed epochs may be read from any thread.
+     */
+    public HrvEngine getHrv() {
+        return mPrimary.mNight.getHrv();
+    }
+
+    /**
+     * Return the sleep stages scored so far tonight.   Scored epochs may be read from any thread.
+     */
+    public SleepStager getSleepStager() {
+        return mPrimary.mNight.getSleepStager();
+    }
+
+    /**
+     * Replace the model used to score sleep stages.
+     */
+    public void setSleepStageClassifier(SleepStageClassifier classifier) {
+        mPrimary.mNight.getSleepStager().setClassifier(classifier);
+    }
+
+    /**
+     * Return the heart rate history for the current night.  Clients may take snapshots of it
+     * from any thread (see HrHistory.snapshotHr()).
+     */
+    public HrHistory getHistory() {
+        return mPrimary.mNight.getHistory();
     }
 
     @Override
@@ -115,26 +208,347 @@ public class LoggerService extends Service implements BleHrmMonitorListener {
         return mBinder;
     }
 
-    public void onHrmDataReceived(int type,int data, String msg) {
-        Log.v(TAG,"onBleHrmDataReceived - msg="+msg);
-        if (type==BleHrmMonitor.TYPE_CONNECTION) {
-            mConnected = (data!=0);
-            Log.v(TAG, "mConnected = " + mConnected);
-            if (mCallback != null)
-                mCallback.onSleepLoggerStatusChanged(TYPE_CONNECTION, data, "Connected = " + data);
+    /**
+     * One sensor being logged - its heart rate source, the processing (and session file) of its
+     * data and its connection state.   Its listener methods are called on the processing thread
+     * (see ProcessingPipeline), which is also where the service's events are published from.
+     */
+    private class SensorChannel implements BleHrmMonitorListener {
+        final int mSource;
+        final NightProcessor mNight = new NightProcessor();
+        HeartRateSource mHrSource;
+        ProcessingPipeline.Input mInput;    // Where mHrSource delivers to.
+        volatile boolean mConnected = false;
+        volatile boolean mReady = false;
+        volatile int mBatteryLevel = -1;
+        volatile int mBodySensorLocation = -1;
+
+        SensorChannel(int source) {
+            mSource = source;
+            mNight.setSource(source);
+        }
+
+        public void onHrmDataReceived(int type, int data, String msg) {
+            Log.v(TAG, "onBleHrmDataReceived[" + mSource + "] - msg=" + msg);
+            if (type == HeartRateSource.TYPE_CONNECTION) {
+                boolean wasReady = LoggerService.this.mReady;
+                mConnected = (data != 0);
+                if (!mConnected) {
+                    // It is not ready again until it has reconnected and found the HRM service.
+                    mReady = false;
+                }
+                updateState();
+                try {
+                    mNight.addConnection(System.currentTimeMillis(), data);
+                } catch (IOException e) {
+                    storageError(this, e);
+                }
+                mEvents.publish(TYPE_CONNECTION, LoggerService.this.mConnected ? 1 : 0, System.currentTimeMillis());
+                if (wasReady != LoggerService.this.mReady) {
+                    mEvents.publish(TYPE_READY, LoggerService.this.mReady ? 1 : 0, System.currentTimeMillis());
+                }
+            } else if (type == HeartRateSource.TYPE_READY) {
+                mReady = (data != 0);
+                updateState();
+                mEvents.publish(TYPE_READY, LoggerService.this.mReady ? 1 : 0, System.currentTimeMillis());
+            } else if (type == HeartRateSource.TYPE_BATTERY) {
+                mBatteryLevel = data;
+            } else if (type == HeartRateSource.TYPE_BODY_SENSOR_LOCATION) {
+                mBodySensorLocation = data;
+            }
+        }
+
+        public void onHrmMeasurementReceived(HrmMeasurement measurement) {
+            sState.addSample(measurement.mTimestamp);
+            try {
+                mNight.addMeasurement(measurement);
+            } catch (IOException e) {
+                storageError(this, e);
+            }
+            if (this == mPrimary) {
+                mHR = measurement.mHeartRate;
+                mEvents.publish(TYPE_DATA, measurement.mHeartRate, measurement.mTimestamp);
+            }
+        }
+    }
+
+    /**
+     * Run on the processing thread each time it wakes, so the session files are committed on
+     * time by their durability policy even when the sensors stop sending data - and the storage
+     * error in the service state is cleared once every session file is being written again.
+     */
+    private final Runnable mCommitTask = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            boolean ok = true;
+            for (SensorChannel sensor : mSensors) {
+                try {
+                    sensor.mNight.commitIfDue(now);
+                } catch (IOException e) {
+                    storageError(sensor, e);
+                }
+                ok &= sensor.mNight.getSessionStore() != null && sensor.mNight.getStoreError() == null;
+            }
+            if (ok && sState.getStorageError() != null) {
+                Log.v(TAG, "mCommitTask - writing session files again");
+                sState.setStorageError(null);
+            }
+        }
+    };
+
+    /**
+     * Report an error writing a sensor's session file in the service state - logged once, not
+     * for every sample that fails while the storage stays broken.   The session is kept open,
+     * and its writes are tried again with each commit.
+     */
+    private void storageError(SensorChannel sensor, IOException e) {
+        if (sState.getStorageError() == null) {
+            Log.e(TAG, "storageError() - error writing the session file of sensor " + sensor.mSource + " - " + e.toString());
+        }
+        sState.setStorageError("Error writing session file - " + e.getMessage());
+    }
+
+    /**
+     * Update the service's overall connection state from its sensors.
+     */
+    private void updateState() {
+        boolean connected = false;
+        boolean ready = false;
+        for (SensorChannel sensor : mSensors) {
+            connected |= sensor.mConnected;
+            ready |= sensor.mReady;
+        }
+        mConnected = connected;
+        mReady = ready;
+        sState.setConnection(connected, ready);
+    }
+
+    /**
+     * @return the number of sensors being logged.
+     */
+    public int getSensorCount() {
+        return mSensors.length;
+    }
+
+    /**
+     * Return the processing of sensor n's data (0 is the primary sensor, shown in the UI).
+     */
+    public NightProcessor getSensorNight(int n) {
+        return mSensors[n].mNight;
+    }
+
+    /**
+     * @return sensor n's battery level (%), or -1 if it has not reported one.
+     */
+    public int getSensorBatteryLevel(int n) {
+        return mSensors[n].mBatteryLevel;
+    }
+
+    /**
+     * @return where sensor n is worn (an index into GattAttributes.BODY_SENSOR_LOCATIONS), or -1
+     * if it has not said.
+     */
+    public int getSensorBodyLocation(int n) {
+        return mSensors[n].mBodySensorLocation;
+    }
+
+    /**
+     * Create the heart rate sources selected in the settings - the BLE heart rate monitor(s),
+     * a replay of a recorded session (the newest one if no file is chosen) or synthetic data.
+     */
+    private void createSensors() {
+        mEnergyPolicy = new EnergyPolicy(EnergyPolicy.DEFAULT_STABLE_MS, mWakeWindowMs);
+        mEnergyPolicy.start(System.currentTimeMillis());
+        updateBatching();
+        // Everything the sources deliver is stored, so the queues never lose data - the display
+        // keeps only the latest values through its EventFanout subscription.
+        mPipeline = new ProcessingPipeline(MeasurementQueue.DEFAULT_CAPACITY);
+        mPipeline.setEnergyPolicy(mEnergyPolicy);
+        mPipeline.setTickListener(mCommitTask);
+        mPrimary.mNight.clear();
+        mPrimary.mConnected = false;
+        mPrimary.mReady = false;
+        if ("replay".equals(mHrSourcePref)) {
+            File file = mReplayFile.length() > 0 ? new File(mReplayFile) : findLatestSession(getSessionDir(this));
+            if (file != null && file.exists()) {
+                Log.v(TAG, "createSensors() - replaying " + file + " at speed " + mSourceSpeed);
+                mPrimary.mInput = mPipeline.addInput(0, mPrimary);
+                mPrimary.mHrSource = new ReplayHeartRateSource(file, mSourceSpeed, mPrimary.mInput);
+                mSensors = new SensorChannel[]{mPrimary};
+                return;
+            }
+            Log.e(TAG, "createSensors() - no session file to replay - using the heart rate monitor");
+        } else if ("synthetic".equals(mHrSourcePref)) {
+            Log.v(TAG, "createSensors() - synthetic data at speed " + mSourceSpeed);
+            mPrimary.mInput = mPipeline.addInput(0, mPrimary);
+            mPrimary.mHrSource = new SyntheticHeartRateSource(mSourceSpeed, SyntheticHeartRateSource.DEFAULT_DURATION_MS,
+                    System.currentTimeMillis(), mPrimary.mInput);
+            mSensors = new SensorChannel[]{mPrimary};
+            return;
+        }
+        int n = Math.min(1 + mExtraHrmAddrs.length, MAX_SENSORS);
+        SensorChannel[] sensors = new SensorChannel[n];
+        sensors[0] = mPrimary;
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sensors[i] = new SensorChannel(i);
+            }
+            String addr = i == 0 ? mHrmAddr : mExtraHrmAddrs[i - 1];
+            Log.v(TAG, "Connecting sensor " + i + " to Device at Address " + addr);
+            sensors[i].mInput = mPipeline.addInput(i, sensors[i]);
+            BleHrmMonitor monitor = new BleHrmMonitor(this.getApplicationContext(), addr, i, sensors[i].mInput);
+            monitor.setEnergyLink(mEnergyPolicy.addLink());
+            sensors[i].mHrSource = monitor;
+        }
+        mSensors = sensors;
+    }
+
+    /**
+     * Stop the sensors, and then the processing thread once it has processed everything they
+     * delivered.
+     */
+    private void stopSensors() {
+        for (SensorChannel sensor : mSensors) {
+            if (sensor.mHrSource != null) {
+                sensor.mHrSource.stop();
+                sensor.mHrSource = null;
+            }
+        }
+        if (mPipeline != null) {
+            mPipeline.stop();
+            Log.v(TAG, "stopSensors() - processed " + mPipeline.getProcessedCount() + " events, max queue depth "
+                    + mPipeline.getMaxQueueDepth()
+                    + ", blocked " + mPipeline.getBlockedCount()
+                    + ", mean wait " + mPipeline.getMeanWaitNanos() / 1000 + " us, mean processing "
+                    + mPipeline.getMeanProcessNanos() / 1000 + " us");
+            long now = System.currentTimeMillis();
+            Log.v(TAG, "stopSensors() - estimated " + Math.round(mEnergyPolicy.getRadioWakeupsPerHour(now))
+                    + " radio wakeups/h, " + Math.round(mEnergyPolicy.getCpuWakeupsPerHour(now)) + " CPU wakeups/h");
+        }
+    }
+
+    /**
+     * Return the energy policy (for its wakeup estimates), or null if the service has not been
+     * started.
+     */
+    public EnergyPolicy getEnergyPolicy() {
+        return mEnergyPolicy;
+    }
+
+    /**
+     * Return the processing pipeline (for its queue depth and latency statistics), or null if
+     * the service has not been started.
+     */
+    public ProcessingPipeline getPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * Return the most recent session file in dir, or null if there are none.
+     */
+    public static File findLatestSession(File dir) {
+        File[] files = dir.listFiles();
+        File latest = null;
+        if (files != null) {
+            for (File f : files) {
+                // Session file names are timestamps, so the newest sorts last.
+                if (f.getName().endsWith(SessionFile.EXTENSION)
+                        && (latest == null || f.getName().compareTo(latest.getName()) > 0)) {
+                    latest = f;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Return the directory that session files are written to.
+     */
+    public static File getSessionDir(Context context) {
+        File dir = context.getExternalFilesDir("sessions");
+        if (dir == null) {
+            dir = new File(context.getFilesDir(), "sessions");
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e("LoggerService", "getSessionDir() - failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Start a new session file for each sensor for this run of the service - yyyyMMdd-HHmmss.slog
+     * for the primary sensor and yyyyMMdd-HHmmss-N.slog for sensor N.
+     */
+    private void openSessions() {
+        long now = System.currentTimeMillis();
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.UK).format(new Date(now));
+        File[] files = new File[mSensors.length];
+        int n = 0;
+        for (SensorChannel sensor : mSensors) {
+            String suffix = sensor.mSource == 0 ? "" : "-" + sensor.mSource;
+            File file = new File(getSessionDir(this), name + suffix + SessionFile.EXTENSION);
+            try {
+                SessionWriter writer = new SessionWriter(file, now);
+                sensor.mNight.setSessionStore(new SessionStore(writer, mDurabilityPolicy));
+                files[n++] = file;
+                Log.v(TAG, "openSessions() - writing to " + file + ", durability policy " + mDurabilityPolicy);
+            } catch (IOException e) {
+                Log.e(TAG, "openSessions() - failed to create " + file + " - " + e.toString());
+                sensor.mNight.setSessionStore(null);
+                sState.setStorageError("Can not create session file - " + e.getMessage());
+            }
         }
-        else if (type==BleHrmMonitor.TYPE_READY) {
-            mReady = (data!=0);
-            Log.v(TAG,"mReady = "+mReady);
+        sState.setSessionFiles(Arrays.copyOf(files, n));
+    }
+
+    private void closeSessions() {
+        for (SensorChannel sensor : mSensors) {
+            closeSession(sensor);
         }
-        else if (type==BleHrmMonitor.TYPE_DATA) {
-            mHR = data;
-            Log.v(TAG, "mHR = " + mHR);
-            if (mCallback != null)
-                mCallback.onSleepLoggerStatusChanged(TYPE_DATA, mHR, "heart rate = " + mHR);
+        sState.setSessionFiles(new File[0]);
+    }
+
+    private void closeSession(SensorChannel sensor) {
+        NightProcessor night = sensor.mNight;
+        SessionStore store = night.getSessionStore();
+        if (store != null) {
+            File file = store.getWriter().getFile();
+            // Complete the last epoch so it is scored and saved with the session.
+            try {
+                night.finish();
+            } catch (IOException e) {
+                Log.e(TAG, "closeSession() - error writing sleep stages - " + e.toString());
+            }
+            if (sensor.mInput != null) {
+                // Record how often the sensor had to wait for its queue.
+                store.getWriter().setQueueStats(sensor.mInput.getQueue().getBlockedCount());
+            }
+            try {
+                store.close(System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.e(TAG, "closeSession() - error closing session file - " + e.toString());
+            }
+            try {
+                night.getRollups().write(RollupEngine.rollupFile(file));
+            } catch (IOException e) {
+                Log.e(TAG, "closeSession() - error writing rollups - " + e.toString());
+            }
+            Log.v(TAG, "closeSession() - " + file.getName() + " - " + store.getWriter().getRecordCount() + " records, "
+                    + store.getBytesWritten() + " bytes, " + store.getCommitCount()
+                    + " commits, average batch " + store.getAverageBatchSize());
+            night.setSessionStore(null);
         }
     }
 
+    /**
+     * Return the storage stage for the current session (for its statistics), or null if
+     * no session is being written.
+     */
+    public SessionStore getSessionStore() {
+        return mPrimary.mNight.getSessionStore();
+    }
+
     private void updatePrefs() {
         Log.v(TAG,"updatePrefs()");
         SharedPreferences sp = getSharedPreferences("SleepLogger",0);
@@ -142,6 +556,28 @@ public class LoggerService extends Service implements BleHrmMonitorListener {
         mHrmName = sp.getString("hrmName", null);
         Log.v(TAG,"mHrmAddr = "+mHrmAddr);
         Log.v(TAG, "mHrmName = " + mHrmName);
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        String extra = settings.getString("ExtraHrmAddrs", "").trim();
+        mExtraHrmAddrs = extra.length() == 0 ? new String[0] : extra.split("[,\\s]+");
+        Log.v(TAG, "mExtraHrmAddrs = " + extra);
+        mDurabilityPolicy = DurabilityPolicy.parse(settings.getString("DurabilityPolicy", DurabilityPolicy.DEFAULT));
+        Log.v(TAG, "mDurabilityPolicy = " + mDurabilityPolicy);
+        try {
+            mWakeWindowMs = 1000L * Integer.parseInt(settings.getString("WakeWindow", "10"));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "updatePrefs() - invalid WakeWindow - " + e.toString());
+            mWakeWindowMs = EnergyPolicy.DEFAULT_WAKE_WINDOW_MS;
+        }
+        Log.v(TAG, "mWakeWindowMs = " + mWakeWindowMs);
+        mHrSourcePref = settings.getString("HrSource", "ble");
+        mReplayFile = settings.getString("ReplayFile", "");
+        try {
+            mSourceSpeed = Double.parseDouble(settings.getString("SourceSpeed", "1"));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "updatePrefs() - invalid SourceSpeed - " + e.toString());
+            mSourceSpeed = 1;
+        }
+        Log.v(TAG, "mHrSourcePref = " + mHrSourcePref + ", mSourceSpeed = " + mSourceSpeed);
 
     }
 
@@ -1,15 +1,18 @@
 package uk.org.maps3.sleeplogger;
 
-import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -17,15 +20,77 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class MainActivity extends AppCompatActivity implements View.OnClickListener, SleepLoggerListener {
+public class MainActivity extends AppCompatActivity implements View.OnClickListener, EventFanout.Listener,
+        ServiceState.Listener {
     private String TAG = "MainActivity";
     private LoggerService mLoggerService = null;
     //private ServiceConnection mConnection = null; /* defined below because declaring it here didn't work.. */
     private boolean mBound = false;
-    private Timer mUiTimer = null;
+    private EventFanout.Subscription mSubscription = null;
+
+    // The live display.   The service publishes into mLiveState from its own threads, and the
+    // display is redrawn from it at most once per frame, and only while the activity is visible.
+    private final LiveState mLiveState = new LiveState();
+    private final AtomicBoolean mFrameRequested = new AtomicBoolean(false);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Delivers the service's events on the UI thread.
+     */
+    private final EventFanout.Dispatcher mUiDispatcher = new EventFanout.Dispatcher() {
+        @Override
+        public void dispatch(Runnable delivery, long delayMs) {
+            mHandler.postDelayed(delivery, delayMs);
+        }
+    };
+    private boolean mVisible = false;           // UI thread only.
+    private int mDrawnVersion = -1;             // The LiveState version on the display.
+    private final String[] mHrText = new String[256];
+    private TextView mHrValueTextView;
+    private TextView mStorageErrorTextView;
+    private HrChartView mHrChart;
+
+    /**
+     * Updates the start / stop menu and button after the service has started or stopped, and
+     * shows any error writing the session files.
+     */
+    private final Runnable mUpdateMenu = new Runnable() {
+        @Override
+        public void run() {
+            invalidateOptionsMenu();
+            String error = LoggerService.getState().getStorageError();
+            mStorageErrorTextView.setText(error == null ? "" : error);
+            mStorageErrorTextView.setVisibility(error == null ? View.GONE : View.VISIBLE);
+        }
+    };
+
+    /**
+     * Posted to the UI thread to ask the Choreographer for the next frame.
+     */
+    private final Runnable mRequestFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mVisible) {
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            } else {
+                mFrameRequested.set(false);
+            }
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Clear the request first, so anything published while drawing asks for another frame.
+            mFrameRequested.set(false);
+            if (mVisible) {
+                drawLiveState();
+            }
+        }
+    };
+
     /**
      * Defines callbacks for service binding, passed to bindService()
      */
@@ -43,8 +108,16 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             // We've bound to LocalService, cast the IBinder and get LocalService instance
             LoggerService.LocalBinder binder = (LoggerService.LocalBinder) service;
             mLoggerService = binder.getService();
-            mLoggerService.setCallback(MainActivity.this);
+            // Show the service's current state straight away, rather than waiting for it to change.
+            mLiveState.publishConnected(mLoggerService.mConnected);
+            if (mLoggerService.mHR > 0) {
+                mLiveState.publishHeartRate(mLoggerService.mHR);
+            }
+            // Only the latest state is shown, so older events need not be delivered.
+            mSubscription = mLoggerService.subscribe(MainActivity.this, EventFanout.MODE_LATEST, 0, mUiDispatcher);
+            mHrChart.setSource(mLoggerService.getHistory(), mLoggerService.getRollups());
             mBound = true;
+            requestFrame();
         }
 
         /**
@@ -64,6 +137,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         findViewById(R.id.startStopButton).setOnClickListener(this);
+        mHrValueTextView = (TextView) findViewById(R.id.hrValueTextView);
+        mStorageErrorTextView = (TextView) findViewById(R.id.storageErrorTextView);
+        mHrChart = (HrChartView) findViewById(R.id.hrChart);
 
         SharedPreferences sp = getSharedPreferences("SleepLogger", 0);
         String hrmAddr = sp.getString("hrmAddr", null);
@@ -88,47 +164,53 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
         }
 
-        SharedPreferences sp = getSharedPreferences("SleepLogger", 0);
-        int uiUpdatePeriod = sp.getInt("uiUpdatePeriod", 1000);
-
-        // start timer to refresh user interface periodically.
-        if (mUiTimer == null) {
-            Log.v(TAG, "onstart(): starting mUiTimer with period " + uiUpdatePeriod + " ms");
-            mUiTimer = new Timer();
-            mUiTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    updateUi();
-                }
-            }, 0, uiUpdatePeriod);
-            Log.v(TAG, "onStart(): started mUiTimer");
-        } else {
-            Log.v(TAG, "onStart(): mUiTimer already running");
-        }
+        LoggerService.getState().addListener(this);
+        mHandler.post(mUpdateMenu);
+        updateChartSpan();
+        // Redraw whatever was published while we were not visible.
+        mVisible = true;
+        mDrawnVersion = -1;
+        requestFrame();
         super.onStart();
     }
 
+    /**
+     * Set the span of the heart rate chart from the settings (it may have been changed while we
+     * were stopped).
+     */
+    private void updateChartSpan() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        int minutes = HrChartView.DEFAULT_WINDOW_MINUTES;
+        try {
+            minutes = Integer.parseInt(settings.getString("ChartMinutes",
+                    String.valueOf(HrChartView.DEFAULT_WINDOW_MINUTES)));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "updateChartSpan() - invalid ChartMinutes - " + e.toString());
+        }
+        mHrChart.setWindowMinutes(minutes);
+    }
+
     @Override
     protected void onStop() {
         Log.v(TAG, "onStop()");
         super.onStop();
+        LoggerService.getState().removeListener(this);
+        mHandler.removeCallbacks(mUpdateMenu);
+        // Stop drawing - the service can batch its work again while nobody is watching.
+        mVisible = false;
+        mHandler.removeCallbacks(mRequestFrame);
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mFrameRequested.set(false);
         // Unbind from the service
         if (mBound) {
             Log.v(TAG, "unbinding fom service...");
+            mLoggerService.unsubscribe(mSubscription);
+            mSubscription = null;
+            mHrChart.setSource(null, null);
             unbindService(mConnection);
             mBound = false;
         }
         // Note that we do not stop the backgorund service because we want it to continue to run after this activity exits.
-
-        // Stop the User Interface timer
-        if (mUiTimer != null) {
-            Log.v(TAG, "onStop(): cancelling UI timer");
-            mUiTimer.cancel();
-            mUiTimer.purge();
-            mUiTimer = null;
-        }
-
-
     }
 
     @Override
@@ -199,6 +281,11 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 i = new Intent(this, AboutActivity.class);
                 startActivity(i);
                 return true;
+            case R.id.action_history:
+                Log.v(TAG, "action_history");
+                i = new Intent(this, HistoryActivity.class);
+                startActivity(i);
+                return true;
             case R.id.action_selectHrm:
                 Log.v(TAG, "action_selectHrm");
                 i = new Intent(this, HrmPicker.class);
@@ -256,28 +343,45 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     /**
-     * update user interface - called periodically by TimerTask started in onStart().
+     * Ask for drawLiveState() to be called on the next frame - may be called from any thread.
+     * Requests made before that frame are merged into it.
      */
-    private void updateUi() {
-        Log.v(TAG, "updateUi()");
-        // We need to use runonUiThread because timertask runs on a different thread so throws an exception
-        // if we access UI components directly.
-        MainActivity.this.runOnUiThread(new Runnable() {
-            public void run() {
-                TextView tv = (TextView) findViewById(R.id.updateUiText);
-                String valStr = tv.getText().toString();
-                int val = -1;
-                try {
-                    val = Integer.parseInt(valStr);
-                } catch (Exception e) {
-                    Log.v(TAG, "Error Parsing updateUiText" + e.toString());
-                }
-                val = val + 1;
-                tv.setText(Integer.toString(val));
+    private void requestFrame() {
+        if (mFrameRequested.compareAndSet(false, true)) {
+            mHandler.post(mRequestFrame);
+        }
+    }
 
-            }
-        });
+    /**
+     * Show the latest live state, if it has changed since it was last drawn.   UI thread only.
+     */
+    private void drawLiveState() {
+        long state = mLiveState.get();
+        int version = LiveState.getVersion(state);
+        if (version == mDrawnVersion) {
+            return;
+        }
+        mDrawnVersion = version;
+        // New samples - the chart reads them from the service's history when it draws.
+        mHrChart.invalidate();
+        if (!LiveState.isConnected(state)) {
+            mHrValueTextView.setText("Not Connected");
+        } else if (LiveState.hasHeartRate(state)) {
+            mHrValueTextView.setText(hrText(LiveState.getHeartRate(state)));
+        }
+    }
 
+    /**
+     * @return the display text for a heart rate - made once for each value, not for every frame.
+     */
+    private String hrText(int hr) {
+        if (hr < 0 || hr >= mHrText.length) {
+            return hr + " bpm";
+        }
+        if (mHrText[hr] == null) {
+            mHrText[hr] = hr + " bpm";
+        }
+        return mHrText[hr];
     }
 
     /**
@@ -321,6 +425,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         // Unbind from the service
         if (mBound) {
             Log.v(TAG, "unbinding fom service...");
+            mLoggerService.unsubscribe(mSubscription);
+            mSubscription = null;
+            mHrChart.setSource(null, null);
             unbindService(mConnection);
             mBound = false;
         } else {
@@ -337,22 +444,30 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     }
 
+    /**
+     * Called with the service's latest events - it only publishes the new state and asks for a
+     * frame, without allocating or touching the views.
+     */
     @Override
-    public void onSleepLoggerStatusChanged(final int type, final int data, final String msg) {
-        Log.v(TAG, "onSleepLoggerStatusChanged() - data=" + data + " - msg=" + msg);
-        // This function may be called from a worker thread, so make sure we do the UI updates on the UI thread.
-        MainActivity.this.runOnUiThread(new Runnable() {
-            public void run() {
-                if (type == LoggerService.TYPE_DATA) {
-                    ((TextView) findViewById(R.id.hrValueTextView)).setText(data + " bpm");
-                }
-                if (type == LoggerService.TYPE_CONNECTION) {
-                    if (data == 0) {
-                        ((TextView) findViewById(R.id.hrValueTextView)).setText("Not Connected");
-                    }
-                }
-            }
-        });
+    public void onEvent(int type, int data, long time) {
+        if (type == LoggerService.TYPE_DATA) {
+            mLiveState.publishHeartRate(data);
+        } else if (type == LoggerService.TYPE_CONNECTION) {
+            mLiveState.publishConnected(data != 0);
+        } else {
+            return;
+        }
+        requestFrame();
+    }
+
+    /**
+     * Called when the service starts or stops, or its connection or storage error changes - on
+     * whichever thread changed it.
+     */
+    @Override
+    public void onServiceStateChanged(ServiceState state) {
+        mHandler.removeCallbacks(mUpdateMenu);
+        mHandler.post(mUpdateMenu);
     }
 
     /**
@@ -361,13 +476,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
      * @return true if service running, otherwise false.
      */
     private boolean isServiceRunning() {
-        ActivityManager manager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
-        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if ("uk.org.maps3.sleeplogger.LoggerService".equals(service.service.getClassName())) {
-                return true;
-            }
-        }
-        return false;
+        return LoggerService.getState().isRunning();
     }
 
 }
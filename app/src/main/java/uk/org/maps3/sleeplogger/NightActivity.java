@@ -0,0 +1,71 @@
+package uk.org.maps3.sleeplogger;
+
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows one recorded night in a NightView - the session file is given by the
+ * HistoryActivity.EXTRA_SESSION_FILE extra.   The night is read on a background thread (mLoader),
+ * which also closes it.
+ */
+public class NightActivity extends AppCompatActivity implements NightView.OnLevelChangedListener {
+    private final static String TAG = "NightActivity";
+    private NightDetail mNight = null;
+    private ExecutorService mLoader = null;
+    private TextView mTierTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        Log.v(TAG, "onCreate()");
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_night);
+        mTierTextView = (TextView) findViewById(R.id.nightTier);
+
+        String path = getIntent().getStringExtra(HistoryActivity.EXTRA_SESSION_FILE);
+        if (path == null) {
+            Log.e(TAG, "onCreate() - no session file given");
+            finish();
+            return;
+        }
+        File file = new File(path);
+        ((TextView) findViewById(R.id.nightTitle)).setText(file.getName());
+        mNight = new NightDetail(file);
+        mLoader = Executors.newSingleThreadExecutor();
+        NightView nightView = (NightView) findViewById(R.id.nightView);
+        nightView.setOnLevelChangedListener(this);
+        nightView.setNight(mNight, mLoader);
+    }
+
+    @Override
+    protected void onDestroy() {
+        Log.v(TAG, "onDestroy()");
+        if (mNight != null) {
+            // Close the night on the loader, after any read it is doing.
+            final NightDetail night = mNight;
+            mLoader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        night.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "onDestroy() - " + e.toString());
+                    }
+                }
+            });
+            mLoader.shutdown();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onLevelChanged(int level) {
+        mTierTextView.setText(level == NightDetail.LEVEL_RAW ? "raw beats" : NightDetail.TIER_NAMES[level]);
+    }
+}
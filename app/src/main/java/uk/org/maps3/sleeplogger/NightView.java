@@ -0,0 +1,453 @@
+package uk.org.maps3.sleeplogger;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * The heart rate of a recorded night, which can be zoomed (pinch) and panned (drag) from the
+ * whole night down to a minute - double tap to show the whole night again.
+ *
+ * Each frame is drawn at the level NightDetail.chooseLevel() picks for the visible span and the
+ * width of the view (a point every PX_PER_POINT pixels) - the hourly, 5 minute or 30 second epoch
+ * rollups as the mean with a bar from the minimum to the maximum of each bucket, or the raw heart
+ * rate with the heart rate of each beat (60000 / RR) as dots.   Raw records are read for three times the visible span, so panning
+ * does not read the file again every frame.
+ *
+ * The file is never read on the UI thread.   The NightDetail is only used by tasks run on the
+ * loader given to setNight() (which must run them one at a time) - opening the night, reading a
+ * rollup tier, or reading the raw records of a span, which are copied into a RawSpan for drawing.
+ * onDraw() only draws what has been loaded, and asks the loader for anything missing; the view
+ * is redrawn when it arrives, and meanwhile the raw records already loaded are still drawn for
+ * the part of the span they cover.   The Path and point arrays are reused, so drawing does not
+ * allocate.
+ */
+public class NightView extends View {
+    public final static long MIN_SPAN_MS = 60000;
+    public final static int MIN_HR = 30;
+    public final static int MAX_HR = 180;
+    public final static int PX_PER_POINT = 2;   // The level of detail gives a point every PX_PER_POINT pixels, at most.
+
+    /**
+     * Told when the level of detail drawn changes (NightDetail.LEVEL_RAW or a RollupEngine tier).
+     */
+    public interface OnLevelChangedListener {
+        void onLevelChanged(int level);
+    }
+
+    private final static String TAG = "NightView";
+    private final static int[] GRID_HR = {60, 90, 120, 150};
+    private final static String[] GRID_LABELS = {"60", "90", "120", "150"};
+
+    /**
+     * A copy of the raw records NightDetail.loadRaw() read for a span, for drawing on the UI thread.
+     */
+    private static class RawSpan {
+        long mFrom;
+        long mTo;
+        final long[] mHrTimes = new long[NightDetail.MAX_RAW_RECORDS];
+        final int[] mHr = new int[NightDetail.MAX_RAW_RECORDS];
+        int mHrCount;
+        final long[] mRrTimes = new long[NightDetail.MAX_RAW_RECORDS];
+        final int[] mRr = new int[NightDetail.MAX_RAW_RECORDS];
+        int mRrCount;
+
+        void copyFrom(NightDetail night) {
+            mFrom = night.getRawFrom();
+            mTo = night.getRawTo();
+            mHrCount = night.getRawHrCount();
+            for (int i = 0; i < mHrCount; i++) {
+                mHrTimes[i] = night.getRawHrTime(i);
+                mHr[i] = night.getRawHr(i);
+            }
+            mRrCount = night.getRawRrCount();
+            for (int i = 0; i < mRrCount; i++) {
+                mRrTimes[i] = night.getRawRrTime(i);
+                mRr[i] = night.getRawRr(i);
+            }
+        }
+
+        boolean covers(long from, long to) {
+            return from >= mFrom && to <= mTo;
+        }
+    }
+
+    private NightDetail mNight = null;
+    private Executor mLoader = null;
+    private boolean mOpened = false;    // The start and end of the night have been read.
+    private final Rollup[] mTiers = new Rollup[RollupEngine.TIER_PERIODS_MS.length];    // Tiers read so far.
+    private int mTiersLoading = 0;      // A bit for each tier being read.
+    private RawSpan mRaw = null;        // The raw records drawn.
+    private RawSpan mSpareRaw = null;   // The next RawSpan to load into, or null while loading.
+    private boolean mRawLoading = false;
+    private long mNightStart = 0;
+    private long mNightEnd = 0;
+    private long mFrom = 0;         // The visible span.
+    private long mTo = 0;
+    private int mLevel = Integer.MIN_VALUE;
+    private OnLevelChangedListener mListener = null;
+    private String mError = null;
+
+    private final Path mHrPath = new Path();
+    private float[] mPoints = new float[0];     // RR dots (x, y) or bucket bars (x, y, x, y).
+
+    private final Paint mHrPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mBeatPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mRangePaint = new Paint();
+    private final Paint mGridPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private ScaleGestureDetector mScaleDetector;
+    private GestureDetector mGestureDetector;
+
+    public NightView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    public NightView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    private void init(Context context) {
+        mHrPaint.setColor(Color.RED);
+        mHrPaint.setStyle(Paint.Style.STROKE);
+        mHrPaint.setStrokeWidth(3);
+        mBeatPaint.setColor(Color.BLUE);
+        mBeatPaint.setStrokeWidth(4);
+        mRangePaint.setColor(Color.LTGRAY);
+        mRangePaint.setStrokeWidth(2);
+        mGridPaint.setColor(Color.GRAY);
+        mGridPaint.setStrokeWidth(1);
+        mGridPaint.setTextSize(24);
+
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoom(detector.getScaleFactor(), detector.getFocusX());
+                return true;
+            }
+        });
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                pan(distanceX);
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                showAll();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Show a night, zoomed out to all of it once it has been opened.   UI thread only.
+     *
+     * @param loader - runs the tasks that read night, one at a time.   Nothing else may use night
+     *               until they have all finished.
+     */
+    public void setNight(final NightDetail night, Executor loader) {
+        mNight = night;
+        mLoader = loader;
+        mError = null;
+        mOpened = false;
+        for (int i = 0; i < mTiers.length; i++) {
+            mTiers[i] = null;
+        }
+        mTiersLoading = 0;
+        mRaw = null;
+        mRawLoading = false;
+        invalidate();
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long start = night.getStartTime();
+                    final long end = night.getEndTime();
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (night == mNight) {
+                                mNightStart = start;
+                                mNightEnd = Math.max(end, start + MIN_SPAN_MS);
+                                mOpened = true;
+                                showAll();
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    loadFailed(night, "setNight()", e);
+                }
+            }
+        });
+    }
+
+    public void setOnLevelChangedListener(OnLevelChangedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Report an error from a loader task (on the UI thread).
+     */
+    private void loadFailed(final NightDetail night, final String what, final IOException e) {
+        Log.e(TAG, what + " - " + e.toString());
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (night == mNight) {
+                    mError = "Can not read " + night.getFile().getName();
+                    invalidate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Read a rollup tier on the loader, and redraw when it has been read.
+     */
+    private void loadTier(final int tier) {
+        if ((mTiersLoading & (1 << tier)) != 0) {
+            return;
+        }
+        mTiersLoading |= 1 << tier;
+        final NightDetail night = mNight;
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Rollup rollup = night.getTier(tier);
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (night == mNight) {
+                                mTiers[tier] = rollup;
+                                mTiersLoading &= ~(1 << tier);
+                                invalidate();
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    loadFailed(night, "loadTier()", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the raw records from <= time < to on the loader, and redraw when they have been read.
+     */
+    private void loadRaw(final long from, final long to) {
+        if (mRawLoading) {
+            return;
+        }
+        mRawLoading = true;
+        final RawSpan raw = mSpareRaw != null ? mSpareRaw : new RawSpan();
+        mSpareRaw = null;
+        final NightDetail night = mNight;
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    night.loadRaw(from, to);
+                    raw.copyFrom(night);
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (night == mNight) {
+                                mSpareRaw = mRaw;
+                                mRaw = raw;
+                                mRawLoading = false;
+                                invalidate();
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    loadFailed(night, "loadRaw()", e);
+                }
+            }
+        });
+    }
+
+    public void showAll() {
+        mFrom = mNightStart;
+        mTo = mNightEnd;
+        invalidate();
+    }
+
+    private void zoom(float scale, float focusX) {
+        long span = mTo - mFrom;
+        long nightSpan = mNightEnd - mNightStart;
+        long newSpan = Math.max(MIN_SPAN_MS, Math.min(nightSpan, (long) (span / scale)));
+        float f = chartWidth() > 0 ? (focusX - getPaddingLeft()) / chartWidth() : 0.5f;
+        f = Math.max(0, Math.min(1, f));
+        long focus = mFrom + (long) (f * span);
+        setSpan(focus - (long) (f * newSpan), newSpan);
+    }
+
+    private void pan(float dx) {
+        long span = mTo - mFrom;
+        setSpan(mFrom + (long) (dx * span / Math.max(chartWidth(), 1)), span);
+    }
+
+    /**
+     * Show span ms from time from, kept within the night.
+     */
+    private void setSpan(long from, long span) {
+        from = Math.max(mNightStart, Math.min(from, mNightEnd - span));
+        mFrom = from;
+        mTo = from + span;
+        invalidate();
+    }
+
+    private int chartWidth() {
+        return getWidth() - getPaddingLeft() - getPaddingRight();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        mScaleDetector.onTouchEvent(event);
+        if (!mScaleDetector.isInProgress()) {
+            mGestureDetector.onTouchEvent(event);
+        }
+        return true;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // Enough for a bar per pixel, or two beats per pixel.
+        mPoints = new float[4 * (Math.max(w, 1) + 1)];
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int left = getPaddingLeft();
+        int right = getWidth() - getPaddingRight();
+        if (right <= left) {
+            return;
+        }
+        for (int i = 0; i < GRID_HR.length; i++) {
+            float y = hrToY(GRID_HR[i]);
+            canvas.drawLine(left, y, right, y, mGridPaint);
+            canvas.drawText(GRID_LABELS[i], left, y - 4, mGridPaint);
+        }
+        if (mError != null) {
+            canvas.drawText(mError, left, getHeight() / 2, mGridPaint);
+            return;
+        }
+        if (mNight == null) {
+            return;
+        }
+        if (!mOpened) {
+            canvas.drawText("Loading...", left, getHeight() / 2, mGridPaint);
+            return;
+        }
+        if (mTo <= mFrom) {
+            return;
+        }
+
+        int level = NightDetail.chooseLevel(mTo - mFrom, (right - left) / PX_PER_POINT);
+        if (level != mLevel) {
+            mLevel = level;
+            if (mListener != null) {
+                mListener.onLevelChanged(level);
+            }
+        }
+        float pxPerMs = (float) (right - left) / (mTo - mFrom);
+        mHrPath.rewind();
+        if (level == NightDetail.LEVEL_RAW) {
+            if (mRaw == null || !mRaw.covers(mFrom, mTo)) {
+                long span = mTo - mFrom;
+                loadRaw(mFrom - span, mTo + span);
+            }
+            if (mRaw != null) {
+                drawRaw(canvas, mRaw, left, pxPerMs);
+            }
+        } else if (mTiers[level] != null) {
+            drawTier(canvas, mTiers[level], left, pxPerMs);
+        } else {
+            loadTier(level);
+        }
+    }
+
+    private void drawTier(Canvas canvas, Rollup tier, int left, float pxPerMs) {
+        float halfPeriod = tier.getPeriodMs() / 2f;
+        int points = 0;
+        int n = 0;
+        for (int i = tier.findBucket(mFrom); i < tier.size() && tier.getStart(i) < mTo; i++) {
+            float x = left + (tier.getStart(i) - mFrom + halfPeriod) * pxPerMs;
+            float y = hrToY(Math.round(tier.getMean(i)));
+            if (points++ == 0) {
+                mHrPath.moveTo(x, y);
+            } else {
+                mHrPath.lineTo(x, y);
+            }
+            if (n + 4 <= mPoints.length) {
+                mPoints[n++] = x;
+                mPoints[n++] = hrToY(tier.getMin(i));
+                mPoints[n++] = x;
+                mPoints[n++] = hrToY(tier.getMax(i));
+            }
+        }
+        if (n > 0) {
+            canvas.drawLines(mPoints, 0, n, mRangePaint);
+        }
+        if (points > 0) {
+            canvas.drawPath(mHrPath, mHrPaint);
+        }
+    }
+
+    private void drawRaw(Canvas canvas, RawSpan raw, int left, float pxPerMs) {
+        int points = 0;
+        for (int i = 0; i < raw.mHrCount; i++) {
+            long t = raw.mHrTimes[i];
+            if (t < mFrom || t >= mTo) {
+                continue;
+            }
+            float x = left + (t - mFrom) * pxPerMs;
+            float y = hrToY(raw.mHr[i]);
+            if (points++ == 0) {
+                mHrPath.moveTo(x, y);
+            } else {
+                mHrPath.lineTo(x, y);
+            }
+        }
+        int n = 0;
+        for (int i = 0; i < raw.mRrCount && n + 2 <= mPoints.length; i++) {
+            long t = raw.mRrTimes[i];
+            int rr = raw.mRr[i];
+            if (t < mFrom || t >= mTo || rr <= 0) {
+                continue;
+            }
+            mPoints[n++] = left + (t - mFrom) * pxPerMs;
+            mPoints[n++] = hrToY(60000 / rr);
+        }
+        if (points > 0) {
+            canvas.drawPath(mHrPath, mHrPaint);
+        }
+        if (n > 0) {
+            canvas.drawPoints(mPoints, 0, n, mBeatPaint);
+        }
+    }
+
+    private float hrToY(int hr) {
+        int top = getPaddingTop();
+        int height = getHeight() - getPaddingBottom() - top;
+        hr = Math.max(MIN_HR, Math.min(MAX_HR, hr));
+        return top + (float) (MAX_HR - hr) * height / (MAX_HR - MIN_HR);
+    }
+}
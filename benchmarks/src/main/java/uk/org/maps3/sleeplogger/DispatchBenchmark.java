@@ -0,0 +1,131 @@
+package uk.org.maps3.sleeplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dispatch done for every notification - a source queueing the raw packet in its
+ * MeasurementQueue (ProcessingPipeline.Input), the processing thread taking it, parsing it and
+ * running it through the NightProcessor, and LoggerService publishing the heart rate through
+ * its EventFanout to a display (MODE_LATEST) and a MODE_EVERY subscriber.
+ *
+ * Both sides of the queue run on the benchmark thread, one event at a time, and the fan-out's
+ * Dispatcher runs each delivery at once - so the scores are the cost of the work itself, and the
+ * gc profiler shows whether any of it allocates (offering, polling and publishing should not).
+ * LoggerService is an Android class, so processMeasurement() and processMessage() below do the
+ * same work as its SensorChannel; the NightProcessor has no session store so the benchmark does
+ * not write to the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    // Start the data again after a night, so the engines do not grow without limit.
+    private final static int NIGHT_SAMPLES = 8 * 3600;
+
+    private final byte[] mPacket = {0x16, 62, (byte) 0xf0, 0x03, 0x10, 0x04};
+    private final MeasurementQueue mQueue = new MeasurementQueue();
+    private final MeasurementQueue.Entry mEntry = new MeasurementQueue.Entry();
+    private final HrmMeasurement mMeasurement = new HrmMeasurement();
+    private final NightProcessor mNight = new NightProcessor();
+    private final EventFanout mEvents = new EventFanout();
+    private int mSample = 0;
+
+    @Setup
+    public void setup(final Blackhole bh) {
+        EventFanout.Listener listener = new EventFanout.Listener() {
+            @Override
+            public void onEvent(int type, int value, long time) {
+                bh.consume(value);
+                bh.consume(time);
+            }
+        };
+        EventFanout.Dispatcher now = new EventFanout.Dispatcher() {
+            @Override
+            public void dispatch(Runnable delivery, long delayMs) {
+                delivery.run();
+            }
+        };
+        mEvents.subscribe(listener, EventFanout.MODE_LATEST, 0, now);
+        mEvents.subscribe(listener, EventFanout.MODE_EVERY, 0, now);
+    }
+
+    /**
+     * A packet through the queue only - MeasurementQueue.offerPacket() and poll().
+     */
+    @Benchmark
+    public boolean queue() {
+        mQueue.offerPacket(mPacket, 1000L * mSample++);
+        return mQueue.poll(mEntry);
+    }
+
+    /**
+     * A heart rate published to the subscribers - EventFanout.publish() and the deliveries.
+     */
+    @Benchmark
+    public void publish() {
+        mEvents.publish(HeartRateSource.TYPE_DATA, 60 + (mSample & 31), 1000L * mSample++);
+    }
+
+    /**
+     * A packet from the source to the subscribers - queued, taken, parsed, processed and published.
+     */
+    @Benchmark
+    public void measurement() {
+        mQueue.offerPacket(mPacket, 1000L * mSample);
+        while (mQueue.poll(mEntry)) {
+            mMeasurement.mTimestamp = mEntry.mTimestamp;
+            if (HrmMeasurementParser.parse(mEntry.mPacket, 0, mEntry.mPacketLength, mMeasurement)) {
+                processMeasurement(mMeasurement);
+            }
+        }
+        if (++mSample == NIGHT_SAMPLES) {
+            mSample = 0;
+            mNight.clear();
+        }
+    }
+
+    /**
+     * A connection state message from the source to the subscribers.
+     */
+    @Benchmark
+    public void connectionState() {
+        mQueue.offerMessage(HeartRateSource.TYPE_CONNECTION, mSample++ & 1, "Connected");
+        while (mQueue.poll(mEntry)) {
+            processMessage(mEntry.mType, mEntry.mData);
+        }
+    }
+
+    /**
+     * The per sample work of LoggerService.SensorChannel for the primary sensor.
+     */
+    private void processMeasurement(HrmMeasurement measurement) {
+        try {
+            mNight.addMeasurement(measurement);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        mEvents.publish(HeartRateSource.TYPE_DATA, measurement.mHeartRate, measurement.mTimestamp);
+    }
+
+    private void processMessage(int type, int data) {
+        if (type == HeartRateSource.TYPE_CONNECTION) {
+            mEvents.publish(HeartRateSource.TYPE_CONNECTION, data, 1000L * mSample);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package uk.org.maps3.sleeplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The storage encoders - delta-of-delta compression of an hour of heart rate and RR interval
+ * samples (as CompactSession stores them), and decoding it again.   An encode of the hour's
+ * samples is one invocation, and each byte of the session file records the samples come from
+ * (SessionFile.RECORD_SIZE a sample) is one operation - so the scores, in operations per
+ * microsecond, are MB/s of session data.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncoderBenchmark {
+    private final static int SAMPLES = 3600;
+    private final static int BYTES = SAMPLES * SessionFile.RECORD_SIZE;
+
+    private final long[] mHrTime = new long[SAMPLES];
+    private final int[] mHr = new int[SAMPLES];
+    private final long[] mRrTime = new long[SAMPLES];
+    private final int[] mRr = new int[SAMPLES];
+    private final TimeSeriesEncoder mHrEncoder = new TimeSeriesEncoder(CompactSession.HR_FLAGS, SAMPLES);
+    private final TimeSeriesEncoder mRrEncoder = new TimeSeriesEncoder(CompactSession.RR_FLAGS, SAMPLES);
+    private byte[] mHrEncoded;
+    private byte[] mRrEncoded;
+
+    @Setup
+    public void setup() {
+        // One packet a second with a slowly wandering heart rate, and a beat by beat RR series.
+        Random random = new Random(1);
+        long t = 1444000000000L;
+        int hr = 60;
+        long beat = t;
+        for (int i = 0; i < SAMPLES; i++) {
+            hr = Math.max(40, Math.min(100, hr + random.nextInt(3) - 1));
+            mHrTime[i] = t + 1000L * i + random.nextInt(20);
+            mHr[i] = hr;
+            int rr = 60000 / hr + (int) (random.nextGaussian() * 20);
+            beat += rr;
+            mRrTime[i] = beat;
+            mRr[i] = rr;
+        }
+        mHrEncoded = encode(mHrEncoder, mHrTime, mHr);
+        mRrEncoded = encode(mRrEncoder, mRrTime, mRr);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public byte[] encodeHr() {
+        return encode(mHrEncoder, mHrTime, mHr);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public byte[] encodeRr() {
+        return encode(mRrEncoder, mRrTime, mRr);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public long decodeHr() {
+        return decode(mHrEncoded);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public long decodeRr() {
+        return decode(mRrEncoded);
+    }
+
+    private static byte[] encode(TimeSeriesEncoder encoder, long[] time, int[] value) {
+        encoder.reset();
+        for (int i = 0; i < time.length; i++) {
+            encoder.add(time[i], value[i]);
+        }
+        return encoder.toByteArray();
+    }
+
+    private static long decode(byte[] buf) {
+        TimeSeriesDecoder decoder = new TimeSeriesDecoder(buf);
+        long sum = 0;
+        while (decoder.next()) {
+            sum += decoder.getTime() + decoder.getValue();
+        }
+        return sum;
+    }
+}
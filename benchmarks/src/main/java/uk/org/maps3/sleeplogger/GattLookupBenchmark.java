@@ -0,0 +1,77 @@
+package uk.org.maps3.sleeplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GATT attribute lookups, as done by BleHrmMonitor when it lists the discovered services
+ * (GattAttributes.lookup()), and the UUID comparison it does for every notification.
+ * stringLookup*() measure the table of UUID strings GattAttributes replaced, for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GattLookupBenchmark {
+    private final UUID mHrm = GattAttributes.UUID_HEART_RATE_MEASUREMENT;
+    private final UUID mUnknown = UUID.fromString("00002a3f-0000-1000-8000-00805f9b34fb");
+    private final UUID mVendor = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private final HashMap<String, String> mStrings = new HashMap<String, String>();
+
+    public GattLookupBenchmark() {
+        mStrings.put("0000180d-0000-1000-8000-00805f9b34fb", "Heart Rate Service");
+        mStrings.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
+        mStrings.put("00002a37-0000-1000-8000-00805f9b34fb", "Heart Rate Measurement");
+        mStrings.put("00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name String");
+    }
+
+    @Benchmark
+    public String lookupKnown() {
+        return GattAttributes.lookup(mHrm, "unknown");
+    }
+
+    @Benchmark
+    public String lookupUnknown() {
+        return GattAttributes.lookup(mUnknown, "unknown");
+    }
+
+    @Benchmark
+    public String lookupVendor() {
+        return GattAttributes.lookup(mVendor, "unknown");
+    }
+
+    @Benchmark
+    public String stringLookupKnown() {
+        String name = mStrings.get(mHrm.toString());
+        return name == null ? "unknown" : name;
+    }
+
+    @Benchmark
+    public String stringLookupUnknown() {
+        String name = mStrings.get(mUnknown.toString());
+        return name == null ? "unknown" : name;
+    }
+
+    @Benchmark
+    public boolean uuidEquals() {
+        return GattAttributes.UUID_HEART_RATE_MEASUREMENT.equals(mHrm);
+    }
+
+    @Benchmark
+    public boolean shortUuidIs() {
+        return GattAttributes.is(mHrm, GattAttributes.HEART_RATE_MEASUREMENT);
+    }
+}
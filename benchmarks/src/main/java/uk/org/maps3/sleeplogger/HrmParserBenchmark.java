@@ -0,0 +1,64 @@
+package uk.org.maps3.sleeplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of Heart Rate Measurement notifications, as done by BleHrmMonitor for every packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HrmParserBenchmark {
+    // 8 bit heart rate, contact detected, no RR intervals.
+    private final byte[] mSimple = {0x06, 62};
+    // 8 bit heart rate with two RR intervals - the common case for a chest strap.
+    private final byte[] mRr = {0x16, 62, (byte) 0xf0, 0x03, 0x10, 0x04};
+    // 16 bit heart rate, energy expended and four RR intervals.
+    private final byte[] mFull = {0x1f, 62, 0x00, 0x34, 0x12,
+            (byte) 0xf0, 0x03, 0x10, 0x04, 0x00, 0x04, (byte) 0xe0, 0x03};
+    private final HrmMeasurement mMeasurement = new HrmMeasurement();
+
+    @Benchmark
+    public int parseSimple() {
+        HrmMeasurementParser.parse(mSimple, mMeasurement);
+        return mMeasurement.mHeartRate;
+    }
+
+    @Benchmark
+    public int parseWithRr() {
+        HrmMeasurementParser.parse(mRr, mMeasurement);
+        return mMeasurement.mHeartRate + mMeasurement.mRrCount;
+    }
+
+    @Benchmark
+    public int parseFull() {
+        HrmMeasurementParser.parse(mFull, mMeasurement);
+        return mMeasurement.mHeartRate + mMeasurement.mRrCount + mMeasurement.mEnergyExpended;
+    }
+
+    /**
+     * Parse and convert the RR intervals to ms, as the HRV engine needs them.
+     */
+    @Benchmark
+    public int parseWithRrMs() {
+        HrmMeasurementParser.parse(mRr, mMeasurement);
+        int sum = 0;
+        for (int i = 0; i < mMeasurement.mRrCount; i++) {
+            sum += mMeasurement.getRrIntervalMs(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,68 @@
+package uk.org.maps3.sleeplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-scoring a recorded night - a 90 minute session from SyntheticNight read back and replayed
+ * through a new NightProcessor, as NightBatch and SleepStagerReplayTest do.   Scores are epochs
+ * per second; a replay of the night (EPOCHS epochs) is one invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+    private final static long DURATION_MS = 90 * 60000L;
+    private final static int EPOCHS = 180;
+
+    private final HrmMeasurement mMeasurement = new HrmMeasurement();
+    private File mFile;
+
+    @Setup
+    public void setup() throws IOException {
+        mFile = File.createTempFile("replay", SessionFile.EXTENSION);
+        SyntheticNight.record(mFile, 1400000400000L, DURATION_MS, 42);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCHS)
+    public int replay() throws IOException {
+        NightProcessor night = new NightProcessor();
+        SessionReader reader = new SessionReader(mFile);
+        try {
+            MeasurementReader measurements = new MeasurementReader(reader);
+            int type;
+            while ((type = measurements.next(mMeasurement)) != 0) {
+                if (type == SessionFile.TYPE_HR) {
+                    night.addMeasurement(mMeasurement);
+                }
+            }
+            night.finish();
+        } finally {
+            reader.close();
+        }
+        return night.getSleepStager().getStageCount();
+    }
+}
@@ -0,0 +1,385 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-processes recorded nights (e.g. after the analytics have been improved) - every session
+ * file is run through a NightProcessor, as LoggerService does live, and a summary line written
+ * for each night.
+ *
+ * Nights are processed in parallel on a fork/join (work stealing) pool.   Each night is
+ * processed independently and the summaries are written in file name order once they are all
+ * done, so the output is the same whatever the number of threads.
+ *
+ * Usage: NightBatch [-t threads] [-o summary.csv] [-w] [-z] [-q] <session dir or .slog files>...
+ *   -t  number of threads (default: one per core)
+ *   -o  write the summary to a file instead of standard output
+ *   -w  re-write the .rollup file of each night
+ *   -z  write a compact copy (.slz, see CompactSession) of each night
+ *   -q  do not show progress
+ */
+public class NightBatch {
+    private final static String CSV_HEADER = "file,start,end,hours,hr_samples,rr_beats,mean_hr,min_hr,max_hr,"
+            + "mean_rmssd,mean_sdnn,artefacts,wake_min,light_min,deep_min,rem_min,corrupt_blocks,error";
+
+    private final File[] mFiles;
+    private final Summary[] mSummaries;
+    private final boolean mWriteRollups;
+    private final boolean mWriteCompact;
+    private final AtomicInteger mNightsDone = new AtomicInteger();
+    private final AtomicLong mSamplesDone = new AtomicLong();
+    private final AtomicLong mEpochsDone = new AtomicLong();
+    private final AtomicLong mCompactBytes = new AtomicLong();
+
+    /**
+     * The results for one night.
+     */
+    public static class Summary {
+        public File mFile;
+        public long mStart;
+        public long mEnd;
+        public long mHrSamples;
+        public long mRrBeats;
+        public long mRecords;
+        public double mMeanHr;
+        public int mMinHr;
+        public int mMaxHr;
+        public double mMeanRmssd;
+        public double mMeanSdnn;
+        public long mArtefacts;
+        public final int[] mStageEpochs = new int[SleepStageClassifier.STAGE_REM + 1];
+        public int mEpochs;
+        public int mCorruptBlocks;
+        public long mCompactBytes;      // Size of the compact copy, if one was written.
+        public String mError = "";
+    }
+
+    public NightBatch(File[] files, boolean writeRollups, boolean writeCompact) {
+        mFiles = files;
+        mSummaries = new Summary[files.length];
+        mWriteRollups = writeRollups;
+        mWriteCompact = writeCompact;
+    }
+
+    public Summary[] getSummaries() {
+        return mSummaries;
+    }
+
+    public int getNightsDone() {
+        return mNightsDone.get();
+    }
+
+    /**
+     * @return the number of heart rate samples in the nights processed so far.
+     */
+    public long getSamplesDone() {
+        return mSamplesDone.get();
+    }
+
+    public long getEpochsDone() {
+        return mEpochsDone.get();
+    }
+
+    /**
+     * @return the total size of the compact copies written so far (bytes).
+     */
+    public long getCompactBytes() {
+        return mCompactBytes.get();
+    }
+
+    /**
+     * Start processing every night on pool.
+     */
+    public ForkJoinTask<Void> submit(ForkJoinPool pool) {
+        return pool.submit(new NightTask(0, mFiles.length));
+    }
+
+    /**
+     * Processes nights [lo, hi), splitting the range until each task is a single night so idle
+     * threads can steal the remaining nights of a busy one.
+     */
+    private class NightTask extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+
+        private final int mLo;
+        private final int mHi;
+
+        NightTask(int lo, int hi) {
+            mLo = lo;
+            mHi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (mHi - mLo <= 1) {
+                if (mHi > mLo) {
+                    Summary s = processNight(mFiles[mLo], mWriteRollups, mWriteCompact);
+                    mSummaries[mLo] = s;
+                    mSamplesDone.addAndGet(s.mHrSamples);
+                    mEpochsDone.addAndGet(s.mEpochs);
+                    mCompactBytes.addAndGet(s.mCompactBytes);
+                    mNightsDone.incrementAndGet();
+                }
+            } else {
+                int mid = (mLo + mHi) >>> 1;
+                invokeAll(new NightTask(mLo, mid), new NightTask(mid, mHi));
+            }
+        }
+    }
+
+    /**
+     * Process a single night.   Errors are reported in the summary rather than thrown, so one
+     * bad file does not stop a batch.
+     */
+    public static Summary processNight(File file, boolean writeRollups, boolean writeCompact) {
+        Summary s = new Summary();
+        s.mFile = file;
+        SessionReader reader = null;
+        try {
+            reader = new SessionReader(file);
+            NightProcessor night = new NightProcessor();
+            MeasurementReader measurements = new MeasurementReader(reader);
+            HrmMeasurement m = new HrmMeasurement();
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+            int type;
+            while ((type = measurements.next(m)) != 0) {
+                if (type == SessionFile.TYPE_HR) {
+                    night.addMeasurement(m);
+                    start = Math.min(start, m.mTimestamp);
+                    end = Math.max(end, m.mTimestamp);
+                    s.mHrSamples++;
+                    s.mRrBeats += m.mRrCount;
+                }
+            }
+            night.finish();
+            s.mRecords = measurements.getRecordCount();
+            s.mCorruptBlocks = reader.getCorruptBlockCount();
+            if (s.mHrSamples > 0) {
+                s.mStart = start;
+                s.mEnd = end;
+            }
+            summarise(night, s);
+            if (writeRollups) {
+                night.getRollups().write(RollupEngine.rollupFile(file));
+            }
+            if (writeCompact) {
+                s.mCompactBytes = CompactSession.write(reader, CompactSession.compactFile(file));
+            }
+        } catch (IOException e) {
+            s.mError = e.toString();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing useful to do.
+                }
+            }
+        }
+        return s;
+    }
+
+    private static void summarise(NightProcessor night, Summary s) {
+        Rollup epochs = night.getRollups().getTier(RollupEngine.TIER_EPOCH);
+        long count = 0;
+        double sum = 0;
+        s.mMinHr = 0;
+        s.mMaxHr = 0;
+        for (int i = 0; i < epochs.size(); i++) {
+            int n = epochs.getCount(i);
+            sum += (double) epochs.getMean(i) * n;
+            count += n;
+            s.mMinHr = i == 0 ? epochs.getMin(i) : Math.min(s.mMinHr, epochs.getMin(i));
+            s.mMaxHr = Math.max(s.mMaxHr, epochs.getMax(i));
+        }
+        s.mMeanHr = count > 0 ? sum / count : 0;
+
+        HrvEngine hrv = night.getHrv();
+        int hrvEpochs = 0;
+        double rmssd = 0;
+        double sdnn = 0;
+        for (int i = 0; i < hrv.getEpochCount(); i++) {
+            if (hrv.getEpochBeats(i) > 1) {
+                rmssd += hrv.getEpochRmssd(i);
+                sdnn += hrv.getEpochSdnn(i);
+                hrvEpochs++;
+            }
+        }
+        s.mMeanRmssd = hrvEpochs > 0 ? rmssd / hrvEpochs : 0;
+        s.mMeanSdnn = hrvEpochs > 0 ? sdnn / hrvEpochs : 0;
+        s.mArtefacts = hrv.getArtefactCount();
+
+        SleepStager stager = night.getSleepStager();
+        s.mEpochs = stager.getStageCount();
+        for (int i = 0; i < s.mEpochs; i++) {
+            int stage = stager.getStage(i);
+            if (stage >= 0 && stage < s.mStageEpochs.length) {
+                s.mStageEpochs[stage]++;
+            }
+        }
+    }
+
+    /**
+     * Write the summaries as CSV, in file order.
+     */
+    public void writeCsv(PrintWriter out) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        out.println(CSV_HEADER);
+        for (Summary s : mSummaries) {
+            boolean data = s.mHrSamples > 0;
+            out.println(String.format(Locale.ROOT,
+                    "%s,%s,%s,%.3f,%d,%d,%.2f,%d,%d,%.2f,%.2f,%d,%.1f,%.1f,%.1f,%.1f,%d,%s",
+                    csv(s.mFile.getName()),
+                    data ? fmt.format(new Date(s.mStart)) : "",
+                    data ? fmt.format(new Date(s.mEnd)) : "",
+                    (s.mEnd - s.mStart) / 3600000.0,
+                    s.mHrSamples, s.mRrBeats, s.mMeanHr, s.mMinHr, s.mMaxHr,
+                    s.mMeanRmssd, s.mMeanSdnn, s.mArtefacts,
+                    s.mStageEpochs[SleepStageClassifier.STAGE_WAKE] / 2.0,
+                    s.mStageEpochs[SleepStageClassifier.STAGE_LIGHT] / 2.0,
+                    s.mStageEpochs[SleepStageClassifier.STAGE_DEEP] / 2.0,
+                    s.mStageEpochs[SleepStageClassifier.STAGE_REM] / 2.0,
+                    s.mCorruptBlocks, csv(s.mError)));
+        }
+        out.flush();
+    }
+
+    private static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * @return the session files named on the command line (directories are searched, not
+     * recursively), sorted by path so the output order does not depend on the file system.
+     */
+    public static File[] findSessions(List<String> args) {
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            File f = new File(arg);
+            if (f.isDirectory()) {
+                File[] list = f.listFiles();
+                if (list != null) {
+                    for (File g : list) {
+                        if (g.isFile() && g.getName().endsWith(SessionFile.EXTENSION)) {
+                            files.add(g);
+                        }
+                    }
+                }
+            } else {
+                files.add(f);
+            }
+        }
+        File[] result = files.toArray(new File[files.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: NightBatch [-t threads] [-o summary.csv] [-w] [-z] [-q] <session dir or .slog files>...");
+        System.err.println("  -t  number of threads (default: one per core)");
+        System.err.println("  -o  write the summary to a file instead of standard output");
+        System.err.println("  -w  re-write the .rollup file of each night");
+        System.err.println("  -z  write a compact copy (.slz) of each night");
+        System.err.println("  -q  do not show progress");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String outName = null;
+        boolean writeRollups = false;
+        boolean writeCompact = false;
+        boolean quiet = false;
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-t") && i + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+            } else if (a.equals("-o") && i + 1 < args.length) {
+                outName = args[++i];
+            } else if (a.equals("-w")) {
+                writeRollups = true;
+            } else if (a.equals("-z")) {
+                writeCompact = true;
+            } else if (a.equals("-q")) {
+                quiet = true;
+            } else if (a.startsWith("-")) {
+                usage();
+            } else {
+                names.add(a);
+            }
+        }
+        if (names.isEmpty() || threads < 1) {
+            usage();
+        }
+
+        File[] files = findSessions(names);
+        NightBatch batch = new NightBatch(files, writeRollups, writeCompact);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long t0 = System.nanoTime();
+        ForkJoinTask<Void> task = batch.submit(pool);
+        while (true) {
+            try {
+                task.get(1, TimeUnit.SECONDS);
+                break;
+            } catch (TimeoutException e) {
+                if (!quiet) {
+                    double secs = (System.nanoTime() - t0) / 1e9;
+                    System.err.print(String.format(Locale.ROOT, "\r%d/%d nights, %.0f samples/s   ",
+                            batch.getNightsDone(), files.length, batch.getSamplesDone() / secs));
+                }
+            } catch (ExecutionException e) {
+                pool.shutdown();
+                throw new IOException("Processing failed", e.getCause());
+            }
+        }
+        double secs = Math.max((System.nanoTime() - t0) / 1e9, 1e-9);
+        pool.shutdown();
+
+        PrintWriter out = outName == null
+                ? new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"))
+                : new PrintWriter(new OutputStreamWriter(new FileOutputStream(outName), "UTF-8"));
+        batch.writeCsv(out);
+        if (outName != null) {
+            out.close();
+        }
+        if (!quiet) {
+            System.err.println(String.format(Locale.ROOT,
+                    "\rProcessed %d nights (%d samples, %d epochs) in %.2f s on %d threads - "
+                            + "%.2f nights/s, %.0f samples/s, %.0f epochs/s",
+                    files.length, batch.getSamplesDone(), batch.getEpochsDone(), secs, threads,
+                    files.length / secs, batch.getSamplesDone() / secs, batch.getEpochsDone() / secs));
+            if (writeCompact) {
+                System.err.println(String.format(Locale.ROOT, "Wrote %d bytes of compact copies", batch.getCompactBytes()));
+            }
+        }
+    }
+}
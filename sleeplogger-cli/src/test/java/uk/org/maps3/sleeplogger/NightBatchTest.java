@@ -0,0 +1,123 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NightBatchTest {
+    private final static long START = 1400000400000L;
+    private final static int NIGHTS = 8;
+    private final static int THREADS = 4;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    /**
+     * Record NIGHTS synthetic nights of different lengths, and a file that is not a session.
+     *
+     * @return the directory holding them.
+     */
+    private File recordNights() throws IOException {
+        File dir = mTmp.newFolder("sessions");
+        for (int i = 0; i < NIGHTS; i++) {
+            File file = new File(dir, String.format(Locale.ROOT, "night-%02d%s", i, SessionFile.EXTENSION));
+            SyntheticNight.record(file, START + i * 86400000L, (20 + 10 * i) * 60000L, i);
+        }
+        FileOutputStream out = new FileOutputStream(new File(dir, "zz-not-a-session" + SessionFile.EXTENSION));
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+        return dir;
+    }
+
+    /**
+     * Run a batch over the sessions in dir on a pool of the given number of threads.
+     */
+    private static NightBatch runBatch(File dir, int threads) throws Exception {
+        return runBatch(dir, threads, false);
+    }
+
+    private static NightBatch runBatch(File dir, int threads, boolean writeCompact) throws Exception {
+        NightBatch batch = new NightBatch(NightBatch.findSessions(Collections.singletonList(dir.getPath())), false,
+                writeCompact);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            batch.submit(pool).get();
+        } finally {
+            pool.shutdown();
+        }
+        return batch;
+    }
+
+    private static byte[] csv(NightBatch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        batch.writeCsv(new PrintWriter(new OutputStreamWriter(bytes, "UTF-8")));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void outputDoesNotDependOnTheThreads() throws Exception {
+        File dir = recordNights();
+        byte[] single = csv(runBatch(dir, 1));
+        byte[] parallel = csv(runBatch(dir, THREADS));
+        assertArrayEquals(single, parallel);
+
+        String[] lines = new String(single, "UTF-8").split("\n");
+        assertEquals(NIGHTS + 2, lines.length);     // The header and the file that is not a session.
+        for (int i = 1; i <= NIGHTS; i++) {
+            assertTrue(lines[i], lines[i].startsWith(String.format(Locale.ROOT, "night-%02d", i - 1)));
+            assertTrue(lines[i], lines[i].trim().endsWith(",0,"));      // No corrupt blocks or error.
+        }
+        assertFalse(lines[NIGHTS + 1], lines[NIGHTS + 1].trim().endsWith(","));
+    }
+
+    @Test
+    public void progressCountsTheHeartRateSamples() throws Exception {
+        NightBatch batch = runBatch(recordNights(), THREADS);
+        assertEquals(NIGHTS + 1, batch.getNightsDone());
+        long samples = 0;
+        long epochs = 0;
+        for (int i = 0; i < NIGHTS; i++) {
+            NightBatch.Summary s = batch.getSummaries()[i];
+            long durationMs = (20 + 10 * i) * 60000L;
+            assertEquals(durationMs / 1000, s.mHrSamples);
+            assertTrue(s.mRecords > s.mHrSamples);
+            samples += s.mHrSamples;
+            epochs += s.mEpochs;
+        }
+        assertEquals(samples, batch.getSamplesDone());
+        assertEquals(epochs, batch.getEpochsDone());
+    }
+
+    @Test
+    public void compactCopiesAreWritten() throws Exception {
+        File dir = recordNights();
+        NightBatch batch = runBatch(dir, THREADS, true);
+        long bytes = 0;
+        for (int i = 0; i < NIGHTS; i++) {
+            NightBatch.Summary s = batch.getSummaries()[i];
+            File file = CompactSession.compactFile(s.mFile);
+            assertEquals(file.length(), s.mCompactBytes);
+            assertEquals(s.mHrSamples, CompactSession.read(file).getHeartRates().getCount());
+            bytes += s.mCompactBytes;
+        }
+        assertEquals(bytes, batch.getCompactBytes());
+    }
+}
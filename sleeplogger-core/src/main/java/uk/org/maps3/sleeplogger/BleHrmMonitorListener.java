@@ -0,0 +1,17 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * Receives heart rate data and connection state changes from a HeartRateSource.
+ */
+public interface BleHrmMonitorListener {
+    /**
+     * Called with a HeartRateSource.TYPE_* message.
+     */
+    public void onHrmDataReceived(int type, int data, String msg);
+
+    /**
+     * Called for every Heart Rate Measurement received.  The measurement object is re-used for
+     * the next packet, so implementations must copy any values they want to keep.
+     */
+    public void onHrmMeasurementReceived(HrmMeasurement measurement);
+}
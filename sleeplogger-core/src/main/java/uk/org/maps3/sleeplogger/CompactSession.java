@@ -0,0 +1,137 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact copy of the heart rate and RR interval samples of a session, for archiving or
+ * exporting nights - each series is compressed by TimeSeriesEncoder (bit packed, and with
+ * FLAG_TIME_FROM_VALUE for the RR intervals) to under 2 bytes a sample on a typical night,
+ * against 16 bytes a record in the session file.   Only the sample times and values are kept -
+ * not the flags, sources, connection changes or sleep stages, which can be scored again from the
+ * samples (see NightBatch).
+ *
+ * File format:
+ *   int MAGIC, short VERSION, short series count, long start time, long end time (0 if the
+ *   session was not closed cleanly), then each series as written by
+ *   TimeSeriesEncoder.toByteArray() - the heart rates, then the RR intervals.
+ */
+public class CompactSession {
+    public final static int MAGIC = 0x534c435a;  // "SLCZ"
+    public final static short VERSION = 1;
+    public final static String EXTENSION = ".slz";
+
+    public final static int HR_FLAGS = TimeSeriesEncoder.FLAG_BIT_PACKED;
+    public final static int RR_FLAGS = TimeSeriesEncoder.FLAG_BIT_PACKED | TimeSeriesEncoder.FLAG_TIME_FROM_VALUE;
+
+    private final static int HEADER_SIZE = 24;
+    private final static int SERIES = 2;
+
+    private final long mStartTime;
+    private final long mEndTime;
+    private final byte[] mBuf;
+    private final int mRrOffset;
+
+    private CompactSession(long startTime, long endTime, byte[] buf, int rrOffset) {
+        mStartTime = startTime;
+        mEndTime = endTime;
+        mBuf = buf;
+        mRrOffset = rrOffset;
+    }
+
+    /**
+     * @return the compact file that belongs with a session file.
+     */
+    public static File compactFile(File sessionFile) {
+        String name = sessionFile.getName();
+        if (name.endsWith(SessionFile.EXTENSION)) {
+            name = name.substring(0, name.length() - SessionFile.EXTENSION.length());
+        }
+        return new File(sessionFile.getParentFile(), name + EXTENSION);
+    }
+
+    /**
+     * Write the heart rates and RR intervals of a recorded session to a compact file.
+     *
+     * @return the size of the file (bytes).
+     */
+    public static long write(SessionReader reader, File file) throws IOException {
+        TimeSeriesEncoder hr = new TimeSeriesEncoder(HR_FLAGS);
+        TimeSeriesEncoder rr = new TimeSeriesEncoder(RR_FLAGS);
+        reader.seekBlock(0);
+        TimeSeriesEncoder.encodeSession(reader, hr, rr);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(SERIES);
+            out.writeLong(reader.getStartTime());
+            out.writeLong(reader.getEndTime());
+            out.write(hr.toByteArray());
+            out.write(rr.toByteArray());
+        } finally {
+            out.close();
+        }
+        return HEADER_SIZE + hr.getSize() + rr.getSize();
+    }
+
+    /**
+     * Read a compact file written by write().
+     */
+    public static CompactSession read(File file) throws IOException {
+        byte[] buf;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buf = new byte[(int) raf.length()];
+            raf.readFully(buf);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer hdr = ByteBuffer.wrap(buf);
+        if (buf.length <= HEADER_SIZE || hdr.getInt(0) != MAGIC || hdr.getShort(4) > VERSION
+                || hdr.getShort(6) < SERIES) {
+            throw new IOException("Not a compact session file - " + file);
+        }
+        int rrOffset;
+        try {
+            rrOffset = new TimeSeriesDecoder(buf, HEADER_SIZE).getEnd();
+            if (rrOffset >= buf.length) {
+                throw new IllegalArgumentException("No RR interval series");
+            }
+            new TimeSeriesDecoder(buf, rrOffset);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compact session file - " + file, e);
+        }
+        return new CompactSession(hdr.getLong(8), hdr.getLong(16), buf, rrOffset);
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return the session end time, or 0 if the session was not closed cleanly.
+     */
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    /**
+     * @return a new cursor over the heart rates (bpm).
+     */
+    public TimeSeriesDecoder getHeartRates() {
+        return new TimeSeriesDecoder(mBuf, HEADER_SIZE);
+    }
+
+    /**
+     * @return a new cursor over the RR intervals (ms), each at the time of the beat that ends it.
+     */
+    public TimeSeriesDecoder getRrIntervals() {
+        return new TimeSeriesDecoder(mBuf, mRrOffset);
+    }
+}
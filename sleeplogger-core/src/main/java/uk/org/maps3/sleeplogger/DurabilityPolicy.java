@@ -0,0 +1,118 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * Decides when SessionStore commits (writes and syncs to storage) the samples it has batched.
+ * Longer intervals save battery and flash wear, at the cost of losing more data if the
+ * process dies.
+ */
+public class DurabilityPolicy {
+    public final static int MODE_SECONDS = 1;   // Commit when the oldest uncommitted sample is N seconds old.
+    public final static int MODE_SAMPLES = 2;   // Commit every N samples.
+    public final static int MODE_CLOSE = 3;     // Only commit when the session is closed.
+
+    public final static String DEFAULT = "seconds:60";
+
+    private final int mMode;
+    private final int mValue;
+
+    public DurabilityPolicy(int mode, int value) {
+        mMode = mode;
+        mValue = value;
+    }
+
+    public static DurabilityPolicy everySeconds(int seconds) {
+        return new DurabilityPolicy(MODE_SECONDS, seconds);
+    }
+
+    public static DurabilityPolicy everySamples(int samples) {
+        return new DurabilityPolicy(MODE_SAMPLES, samples);
+    }
+
+    public static DurabilityPolicy onCloseOnly() {
+        return new DurabilityPolicy(MODE_CLOSE, 0);
+    }
+
+    /**
+     * Create a policy from its preference string - "seconds:N", "samples:N" or "close".
+     * Unrecognised strings give the DEFAULT policy.
+     */
+    public static DurabilityPolicy parse(String str) {
+        if (str != null) {
+            str = str.trim();
+            if (str.equals("close")) {
+                return onCloseOnly();
+            }
+            int sep = str.indexOf(':');
+            if (sep > 0) {
+                try {
+                    int value = Integer.parseInt(str.substring(sep + 1).trim());
+                    String mode = str.substring(0, sep).trim();
+                    if (value > 0 && mode.equals("seconds")) {
+                        return everySeconds(value);
+                    } else if (value > 0 && mode.equals("samples")) {
+                        return everySamples(value);
+                    }
+                } catch (NumberFormatException e) {
+                    // fall through to the default.
+                }
+            }
+        }
+        return parse(DEFAULT);
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public int getValue() {
+        return mValue;
+    }
+
+    /**
+     * @param pendingSamples - number of uncommitted samples.
+     * @param pendingAgeMs   - age of the oldest uncommitted sample (ms).
+     * @return true if the pending samples should be committed now.
+     */
+    public boolean shouldCommit(int pendingSamples, long pendingAgeMs) {
+        if (pendingSamples == 0) {
+            return false;
+        }
+        switch (mMode) {
+            case MODE_SECONDS:
+                return pendingAgeMs >= mValue * 1000L;
+            case MODE_SAMPLES:
+                return pendingSamples >= mValue;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * As shouldCommit(int, long), except that MODE_SECONDS commits at the first check after
+     * each multiple of N seconds on the wall clock, rather than N seconds after the oldest
+     * uncommitted sample - so the commits of every session fall in the same wake-up (see
+     * EnergyPolicy), and no sample waits more than about N seconds.
+     *
+     * @param pendingSince - wall clock time the oldest uncommitted sample was added (ms since epoch).
+     * @param now          - the wall clock time (ms since epoch).
+     */
+    public boolean shouldCommit(int pendingSamples, long pendingSince, long now) {
+        if (mMode != MODE_SECONDS || pendingSamples == 0) {
+            return shouldCommit(pendingSamples, now - pendingSince);
+        }
+        long interval = mValue * 1000L;
+        return now / interval != pendingSince / interval;
+    }
+
+    @Override
+    public String toString() {
+        switch (mMode) {
+            case MODE_SECONDS:
+                return "seconds:" + mValue;
+            case MODE_SAMPLES:
+                return "samples:" + mValue;
+            default:
+                return "close";
+        }
+    }
+}
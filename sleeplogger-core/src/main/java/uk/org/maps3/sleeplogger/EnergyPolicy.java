@@ -0,0 +1,221 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how to trade latency for battery life overnight, and estimates the cost.
+ *
+ * Connection priority: each sensor connection (a Link) asks for PRIORITY_HIGH while it is being
+ * set up, so discovery and subscription finish quickly, and drops to PRIORITY_LOW_POWER (a
+ * longer connection interval) once samples have arrived without a gap for the stable time.   A gap, or
+ * a reconnect, returns it to PRIORITY_HIGH.
+ *
+ * Wake windows: while batching is on (e.g. nobody is watching the display), work that does not
+ * need to happen at once - processing, storage commits and UI pushes - is put off to the next
+ * wake window.   Windows are aligned to multiples of the window length on the wall clock, so
+ * every sensor and session shares the same wake-ups.
+ *
+ * Cost: the radio wakes at every connection event, so the estimated radio wakeups are the time
+ * spent connected at each priority divided by its typical connection interval.   CPU wakeups are
+ * counted as they happen - one for each notification delivered and one for each processing
+ * wake-up (see countWakeup()).   Both are reported per hour since start().   Thread safe.
+ */
+public class EnergyPolicy {
+    // Connection priorities - the same values as BluetoothGatt.CONNECTION_PRIORITY_*.
+    public final static int PRIORITY_BALANCED = 0;
+    public final static int PRIORITY_HIGH = 1;
+    public final static int PRIORITY_LOW_POWER = 2;
+    public final static String[] PRIORITY_NAMES = {"balanced", "high", "low power"};
+    // The typical connection interval (ms) Android uses for each priority.
+    public final static double[] CONNECTION_INTERVAL_MS = {40, 11.25, 112.5};
+
+    public final static long DEFAULT_STABLE_MS = 120000;
+    public final static long MAX_SAMPLE_GAP_MS = 5000;     // A longer gap means the signal is not stable.
+    public final static long DEFAULT_WAKE_WINDOW_MS = 10000;
+
+    private final long mStableMs;
+    private final long mWakeWindowMs;
+    private volatile boolean mBatching = false;
+    private volatile Runnable mBatchingListener = null;
+    private final ArrayList<Link> mLinks = new ArrayList<Link>();
+    private final AtomicLong mWakeups = new AtomicLong();
+    private volatile long mStartTime = 0;
+
+    /**
+     * The state of one sensor connection.   Its methods return the connection priority to
+     * request, or -1 if it has not changed.
+     */
+    public class Link {
+        private boolean mConnected = false;
+        private int mPriority = PRIORITY_BALANCED;
+        private long mPrioritySince = 0;
+        private long mStableSince = 0;
+        private long mLastSample = 0;
+        private double mRadioEvents = 0;     // Connection events up to mPrioritySince.
+        private long mSamples = 0;
+
+        /**
+         * Called when a connection has been made, before setting it up.
+         */
+        public synchronized int onConnected(long now) {
+            if (mConnected) {
+                mRadioEvents += events(now);
+            }
+            mConnected = true;
+            mPrioritySince = now;
+            mStableSince = now;
+            mLastSample = now;
+            mPriority = PRIORITY_BALANCED;
+            return setPriority(PRIORITY_HIGH, now);
+        }
+
+        /**
+         * Called for every sample received.
+         */
+        public synchronized int onSample(long now) {
+            mSamples++;
+            int priority = -1;
+            if (now - mLastSample > MAX_SAMPLE_GAP_MS) {
+                mStableSince = now;
+                priority = setPriority(PRIORITY_HIGH, now);
+            } else if (mPriority != PRIORITY_LOW_POWER && now - mStableSince >= mStableMs) {
+                priority = setPriority(PRIORITY_LOW_POWER, now);
+            }
+            mLastSample = now;
+            return priority;
+        }
+
+        public synchronized void onDisconnected(long now) {
+            if (mConnected) {
+                mRadioEvents += events(now);
+                mConnected = false;
+            }
+        }
+
+        public synchronized int getPriority() {
+            return mPriority;
+        }
+
+        synchronized double getRadioEvents(long now) {
+            return mConnected ? mRadioEvents + events(now) : mRadioEvents;
+        }
+
+        synchronized long getSampleCount() {
+            return mSamples;
+        }
+
+        private int setPriority(int priority, long now) {
+            if (priority == mPriority) {
+                return -1;
+            }
+            mRadioEvents += events(now);
+            mPriority = priority;
+            mPrioritySince = now;
+            return priority;
+        }
+
+        private double events(long now) {
+            return Math.max(now - mPrioritySince, 0) / CONNECTION_INTERVAL_MS[mPriority];
+        }
+    }
+
+    public EnergyPolicy() {
+        this(DEFAULT_STABLE_MS, DEFAULT_WAKE_WINDOW_MS);
+    }
+
+    /**
+     * @param stableMs     - how long samples must arrive without a gap before using low power.
+     * @param wakeWindowMs - the wake window length (ms), 0 to never put work off.
+     */
+    public EnergyPolicy(long stableMs, long wakeWindowMs) {
+        mStableMs = stableMs;
+        mWakeWindowMs = wakeWindowMs;
+    }
+
+    /**
+     * Start (or restart) the estimates.
+     */
+    public synchronized void start(long now) {
+        mStartTime = now;
+        mLinks.clear();
+        mWakeups.set(0);
+    }
+
+    public synchronized Link addLink() {
+        Link link = new Link();
+        mLinks.add(link);
+        return link;
+    }
+
+    /**
+     * Put work off to the wake windows (true), or do it at once (false).   The batching listener
+     * is run if this changes it, so work already put off (e.g. a processing thread asleep until
+     * the next window) can be done at once.
+     */
+    public void setBatching(boolean batching) {
+        boolean changed = mBatching != batching;
+        mBatching = batching;
+        Runnable listener = mBatchingListener;
+        if (changed && listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Set a task to run when batching is switched on or off (see setBatching()), on the thread
+     * that switches it.   May be null.
+     */
+    public void setBatchingListener(Runnable listener) {
+        mBatchingListener = listener;
+    }
+
+    public boolean isBatching() {
+        return mBatching && mWakeWindowMs > 0;
+    }
+
+    public long getWakeWindowMs() {
+        return mWakeWindowMs;
+    }
+
+    /**
+     * @return the start of the next wake window after now (ms since epoch).
+     */
+    public long nextWakeWindow(long now) {
+        return (now / mWakeWindowMs + 1) * mWakeWindowMs;
+    }
+
+    /**
+     * Count a CPU wake-up other than a notification (e.g. the processing thread waking).
+     */
+    public void countWakeup() {
+        mWakeups.incrementAndGet();
+    }
+
+    /**
+     * @return the estimated radio wakeups (connection events) per hour since start().
+     */
+    public synchronized double getRadioWakeupsPerHour(long now) {
+        double events = 0;
+        for (Link link : mLinks) {
+            events += link.getRadioEvents(now);
+        }
+        return perHour(events, now);
+    }
+
+    /**
+     * @return the CPU wakeups per hour since start().
+     */
+    public synchronized double getCpuWakeupsPerHour(long now) {
+        long wakeups = mWakeups.get();
+        for (Link link : mLinks) {
+            wakeups += link.getSampleCount();
+        }
+        return perHour(wakeups, now);
+    }
+
+    private double perHour(double n, long now) {
+        long elapsed = now - mStartTime;
+        return elapsed <= 0 ? 0 : n * 3600000.0 / elapsed;
+    }
+}
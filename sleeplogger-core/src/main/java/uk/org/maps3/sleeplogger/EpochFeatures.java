@@ -0,0 +1,21 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * The heart rate and heart rate variability features of a 30 second epoch that are passed to a
+ * SleepStageClassifier.   A single instance is refilled by SleepStager for every epoch.
+ */
+public class EpochFeatures {
+    public long mEpochStart = 0;     // Start of the epoch (ms since epoch).
+    public int mHrCount = 0;         // Number of heart rate samples in the epoch.
+    public float mMeanHr = 0;        // bpm
+    public int mMinHr = 0;
+    public int mMaxHr = 0;
+    public float mHrStdDev = 0;
+    public float mHrTrend = 0;       // Slope of the epoch mean heart rate over recent epochs (bpm / minute).
+    public float mBaselineHr = 0;    // Slowly adapting heart rate baseline for the night (bpm).
+    public float mRmssd = 0;         // HRV over the window ending with this epoch (ms).
+    public float mSdnn = 0;
+    public float mPnn50 = 0;
+    public int mBeats = 0;           // Beats in the HRV window.
+    public float mBaselineRmssd = 0; // Slowly adapting RMSSD baseline for the night (ms).
+}
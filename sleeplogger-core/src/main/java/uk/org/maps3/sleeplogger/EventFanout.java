@@ -0,0 +1,257 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Delivers events (a type, a value and a time) from one publishing thread to any number of
+ * subscribers, each on its own thread and in its own delivery mode:
+ *   MODE_EVERY   - every event, as soon as possible.
+ *   MODE_LATEST  - only the latest event of each type - events that arrive before the subscriber
+ *                  has taken the previous ones replace them.
+ *   MODE_BATCHED - every event, delivered together at most once every period ms.
+ *
+ * The subscribers are held in an array that is copied when one is added or removed, so publish()
+ * reads it without locking.   publish() never blocks or allocates: it writes the event into each
+ * subscriber's own bounded ring (or latest value slot) and, if the subscriber has nothing waiting
+ * already, asks its Dispatcher to run its delivery.   So a slow subscriber only delays itself -
+ * if its ring fills, further events for it are dropped and counted (getDroppedCount()).
+ *
+ * publish() must always be called from the same thread, and each Dispatcher must run deliveries
+ * one at a time (a Handler or a single thread).   subscribe() and unsubscribe() may be called from
+ * any thread.
+ */
+public class EventFanout {
+    public final static int MODE_EVERY = 1;
+    public final static int MODE_LATEST = 2;
+    public final static int MODE_BATCHED = 3;
+    public final static String[] MODE_NAMES = {"", "every", "latest", "batched"};
+
+    public final static int DEFAULT_CAPACITY = 256;     // Events held for a MODE_EVERY or MODE_BATCHED subscriber.
+    public final static int MAX_TYPES = 16;             // MODE_LATEST keeps the latest of event types 0 to MAX_TYPES - 1.
+
+    /**
+     * Receives the events, on the subscriber's Dispatcher.
+     */
+    public interface Listener {
+        void onEvent(int type, int value, long time);
+    }
+
+    /**
+     * Runs a subscriber's deliveries on its own thread, one at a time - e.g. by posting them to a Handler.
+     */
+    public interface Dispatcher {
+        void dispatch(Runnable delivery, long delayMs);
+    }
+
+    /**
+     * One subscriber.
+     */
+    public static class Subscription {
+        private final Listener mListener;
+        private final int mMode;
+        private final long mPeriodMs;
+        private final Dispatcher mDispatcher;
+        private volatile boolean mActive = true;
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+
+        // MODE_EVERY and MODE_BATCHED - a single producer, single consumer ring.
+        private final int mMask;
+        private final int[] mTypes;
+        private final int[] mValues;
+        private final long[] mTimes;
+        private volatile long mHead = 0;    // The next event to deliver (written by the subscriber).
+        private volatile long mTail = 0;    // The next slot to write (written by the publisher).
+
+        // MODE_LATEST - a slot per type holding the value and the time (from mBaseTime) packed
+        // into a long, so they are always read together.
+        private final AtomicLongArray mLatest;
+        private final AtomicInteger mChanged = new AtomicInteger();    // A bit for each type with a new event.
+        private volatile long mBaseTime = Long.MIN_VALUE;              // The time of the first event.
+
+        private volatile long mDropped = 0;
+        private volatile long mDelivered = 0;
+
+        private final Runnable mDeliver = new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+
+        Subscription(Listener listener, int mode, long periodMs, Dispatcher dispatcher, int capacity) {
+            mListener = listener;
+            mMode = mode;
+            mPeriodMs = periodMs;
+            mDispatcher = dispatcher;
+            if (mode == MODE_LATEST) {
+                mMask = 0;
+                mTypes = null;
+                mValues = null;
+                mTimes = null;
+                mLatest = new AtomicLongArray(MAX_TYPES);
+            } else {
+                int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+                mMask = n - 1;
+                mTypes = new int[n];
+                mValues = new int[n];
+                mTimes = new long[n];
+                mLatest = null;
+            }
+        }
+
+        public int getMode() {
+            return mMode;
+        }
+
+        /**
+         * @return the number of events dropped because the subscriber had not taken the earlier
+         * ones (MODE_LATEST events that were replaced are not counted).
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        public long getDeliveredCount() {
+            return mDelivered;
+        }
+
+        /**
+         * Publisher thread only.
+         */
+        void offer(int type, int value, long time) {
+            if (mMode == MODE_LATEST) {
+                if (type < 0 || type >= MAX_TYPES) {
+                    return;
+                }
+                if (mBaseTime == Long.MIN_VALUE) {
+                    mBaseTime = time;
+                }
+                mLatest.set(type, ((time - mBaseTime) << 32) | (value & 0xffffffffL));
+                int changed;
+                do {
+                    changed = mChanged.get();
+                } while (!mChanged.compareAndSet(changed, changed | (1 << type)));
+            } else {
+                long tail = mTail;
+                if (tail - mHead > mMask) {
+                    mDropped++;
+                    return;
+                }
+                int i = (int) tail & mMask;
+                mTypes[i] = type;
+                mValues[i] = value;
+                mTimes[i] = time;
+                mTail = tail + 1;
+            }
+            if (mScheduled.compareAndSet(false, true)) {
+                mDispatcher.dispatch(mDeliver, mMode == MODE_BATCHED ? mPeriodMs : 0);
+            }
+        }
+
+        /**
+         * Deliver what is waiting - on the subscriber's Dispatcher.
+         */
+        private void deliver() {
+            // Clear first, so an event published while delivering schedules another delivery.
+            mScheduled.set(false);
+            if (mMode == MODE_LATEST) {
+                int changed = mChanged.getAndSet(0);
+                for (int type = 0; changed != 0 && mActive; type++, changed >>>= 1) {
+                    if ((changed & 1) == 0) {
+                        continue;
+                    }
+                    long latest = mLatest.get(type);
+                    mDelivered++;
+                    mListener.onEvent(type, (int) latest, mBaseTime + (latest >> 32));
+                }
+            } else {
+                long head = mHead;
+                long tail = mTail;
+                while (head < tail && mActive) {
+                    int i = (int) head & mMask;
+                    int type = mTypes[i];
+                    int value = mValues[i];
+                    long time = mTimes[i];
+                    mHead = ++head;
+                    mDelivered++;
+                    mListener.onEvent(type, value, time);
+                }
+            }
+        }
+    }
+
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+
+    /**
+     * Add a subscriber.
+     *
+     * @param mode       - MODE_EVERY, MODE_LATEST or MODE_BATCHED.
+     * @param periodMs   - for MODE_BATCHED, the longest time to hold events before delivering them.
+     * @param dispatcher - runs the deliveries on the subscriber's thread.
+     */
+    public Subscription subscribe(Listener listener, int mode, long periodMs, Dispatcher dispatcher) {
+        return subscribe(listener, mode, periodMs, dispatcher, DEFAULT_CAPACITY);
+    }
+
+    public synchronized Subscription subscribe(Listener listener, int mode, long periodMs,
+                                               Dispatcher dispatcher, int capacity) {
+        if (mode != MODE_EVERY && mode != MODE_LATEST && mode != MODE_BATCHED) {
+            throw new IllegalArgumentException("Unknown delivery mode " + mode);
+        }
+        Subscription s = new Subscription(listener, mode, periodMs, dispatcher, capacity);
+        Subscription[] old = mSubscriptions;
+        Subscription[] subs = new Subscription[old.length + 1];
+        System.arraycopy(old, 0, subs, 0, old.length);
+        subs[old.length] = s;
+        mSubscriptions = subs;
+        return s;
+    }
+
+    /**
+     * Remove a subscriber - nothing more is delivered to it once this returns, apart from an
+     * event it is being given at the time.
+     */
+    public synchronized void unsubscribe(Subscription s) {
+        s.mActive = false;
+        Subscription[] old = mSubscriptions;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == s) {
+                Subscription[] subs = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, subs, 0, i);
+                System.arraycopy(old, i + 1, subs, i, old.length - i - 1);
+                mSubscriptions = subs;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send an event to every subscriber.   Publisher thread only.
+     */
+    public void publish(int type, int value, long time) {
+        Subscription[] subs = mSubscriptions;
+        for (int i = 0; i < subs.length; i++) {
+            subs[i].offer(type, value, time);
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.length;
+    }
+
+    /**
+     * @return true if any subscriber wants events promptly (MODE_EVERY or MODE_LATEST), rather
+     * than in batches.
+     */
+    public boolean needsPromptDelivery() {
+        Subscription[] subs = mSubscriptions;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i].mMode != MODE_BATCHED) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
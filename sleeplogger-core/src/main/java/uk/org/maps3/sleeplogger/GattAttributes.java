@@ -0,0 +1,146 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.UUID;
+
+/**
+ * The standard Bluetooth SIG GATT services, characteristics and descriptors that the app uses,
+ * keyed by their 16 bit short UUIDs.
+ *
+ * A standard attribute's full UUID is 0000xxxx-0000-1000-8000-00805f9b34fb, where xxxx is its
+ * short UUID, so shortUuid() can get the key straight from the UUID's two longs and lookup() can
+ * look it up in a small open addressed table of ints - no strings are made or compared, which
+ * the old table of UUID strings needed for every attribute found during service discovery.
+ */
+public class GattAttributes {
+    // Services.
+    public final static int GENERIC_ACCESS = 0x1800;
+    public final static int GENERIC_ATTRIBUTE = 0x1801;
+    public final static int DEVICE_INFORMATION = 0x180A;
+    public final static int HEART_RATE_SERVICE = 0x180D;
+    public final static int BATTERY_SERVICE = 0x180F;
+    // Characteristics.
+    public final static int DEVICE_NAME = 0x2A00;
+    public final static int APPEARANCE = 0x2A01;
+    public final static int PERIPHERAL_PREFERRED_CONNECTION_PARAMETERS = 0x2A04;
+    public final static int SERVICE_CHANGED = 0x2A05;
+    public final static int BATTERY_LEVEL = 0x2A19;
+    public final static int SYSTEM_ID = 0x2A23;
+    public final static int MODEL_NUMBER = 0x2A24;
+    public final static int SERIAL_NUMBER = 0x2A25;
+    public final static int FIRMWARE_REVISION = 0x2A26;
+    public final static int HARDWARE_REVISION = 0x2A27;
+    public final static int SOFTWARE_REVISION = 0x2A28;
+    public final static int MANUFACTURER_NAME = 0x2A29;
+    public final static int HEART_RATE_MEASUREMENT = 0x2A37;
+    public final static int BODY_SENSOR_LOCATION = 0x2A38;
+    public final static int HEART_RATE_CONTROL_POINT = 0x2A39;
+    // Descriptors.
+    public final static int CLIENT_CHARACTERISTIC_CONFIG = 0x2902;
+
+    public final static UUID UUID_HEART_RATE_SERVICE = fromShortUuid(HEART_RATE_SERVICE);
+    public final static UUID UUID_HEART_RATE_MEASUREMENT = fromShortUuid(HEART_RATE_MEASUREMENT);
+    public final static UUID UUID_CLIENT_CHARACTERISTIC_CONFIG = fromShortUuid(CLIENT_CHARACTERISTIC_CONFIG);
+    public final static UUID UUID_BODY_SENSOR_LOCATION = fromShortUuid(BODY_SENSOR_LOCATION);
+    public final static UUID UUID_BATTERY_SERVICE = fromShortUuid(BATTERY_SERVICE);
+    public final static UUID UUID_BATTERY_LEVEL = fromShortUuid(BATTERY_LEVEL);
+
+    // Values of the Body Sensor Location characteristic.
+    public final static String[] BODY_SENSOR_LOCATIONS = {"Other", "Chest", "Wrist", "Finger", "Hand", "Ear Lobe", "Foot"};
+
+    // The Bluetooth base UUID, 00000000-0000-1000-8000-00805f9b34fb.
+    private final static long BASE_MSB = 0x0000000000001000L;
+    private final static long BASE_LSB = 0x800000805f9b34fbL;
+    private final static long SHORT_MASK = 0x0000ffff00000000L;
+
+    private final static int TABLE_BITS = 6;
+    private final static int[] sKeys = new int[1 << TABLE_BITS];           // 0 is an empty slot.
+    private final static String[] sNames = new String[1 << TABLE_BITS];
+
+    static {
+        put(GENERIC_ACCESS, "Generic Access");
+        put(GENERIC_ATTRIBUTE, "Generic Attribute");
+        put(DEVICE_INFORMATION, "Device Information Service");
+        put(HEART_RATE_SERVICE, "Heart Rate Service");
+        put(BATTERY_SERVICE, "Battery Service");
+        put(DEVICE_NAME, "Device Name");
+        put(APPEARANCE, "Appearance");
+        put(PERIPHERAL_PREFERRED_CONNECTION_PARAMETERS, "Peripheral Preferred Connection Parameters");
+        put(SERVICE_CHANGED, "Service Changed");
+        put(BATTERY_LEVEL, "Battery Level");
+        put(SYSTEM_ID, "System ID");
+        put(MODEL_NUMBER, "Model Number String");
+        put(SERIAL_NUMBER, "Serial Number String");
+        put(FIRMWARE_REVISION, "Firmware Revision String");
+        put(HARDWARE_REVISION, "Hardware Revision String");
+        put(SOFTWARE_REVISION, "Software Revision String");
+        put(MANUFACTURER_NAME, "Manufacturer Name String");
+        put(HEART_RATE_MEASUREMENT, "Heart Rate Measurement");
+        put(BODY_SENSOR_LOCATION, "Body Sensor Location");
+        put(HEART_RATE_CONTROL_POINT, "Heart Rate Control Point");
+        put(CLIENT_CHARACTERISTIC_CONFIG, "Client Characteristic Configuration");
+    }
+
+    /**
+     * @return the full UUID of a standard attribute.
+     */
+    public static UUID fromShortUuid(int shortUuid) {
+        return new UUID(BASE_MSB | ((long) shortUuid << 32), BASE_LSB);
+    }
+
+    /**
+     * @return the 16 bit short UUID of uuid, or -1 if it is not a standard (SIG) UUID.
+     */
+    public static int shortUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_LSB || (msb & ~SHORT_MASK) != BASE_MSB) {
+            return -1;
+        }
+        return (int) (msb >>> 32);
+    }
+
+    /**
+     * @return true if uuid is the standard attribute shortUuid.
+     */
+    public static boolean is(UUID uuid, int shortUuid) {
+        return uuid.getLeastSignificantBits() == BASE_LSB
+                && uuid.getMostSignificantBits() == (BASE_MSB | ((long) shortUuid << 32));
+    }
+
+    /**
+     * @return the name of the attribute, or defaultName if it is not one we know.
+     */
+    public static String lookup(UUID uuid, String defaultName) {
+        int s = shortUuid(uuid);
+        return s < 0 ? defaultName : lookup(s, defaultName);
+    }
+
+    /**
+     * @return the name of the attribute with the given short UUID, or defaultName if it is not one we know.
+     */
+    public static String lookup(int shortUuid, String defaultName) {
+        if (shortUuid <= 0) {
+            return defaultName;
+        }
+        for (int i = slot(shortUuid); ; i = (i + 1) & (sKeys.length - 1)) {
+            if (sKeys[i] == shortUuid) {
+                return sNames[i];
+            }
+            if (sKeys[i] == 0) {
+                return defaultName;
+            }
+        }
+    }
+
+    private static void put(int shortUuid, String name) {
+        int i = slot(shortUuid);
+        while (sKeys[i] != 0) {
+            i = (i + 1) & (sKeys.length - 1);
+        }
+        sKeys[i] = shortUuid;
+        sNames[i] = name;
+    }
+
+    private static int slot(int shortUuid) {
+        return (shortUuid * 0x9E3779B9) >>> (32 - TABLE_BITS);
+    }
+}
@@ -0,0 +1,337 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Runs GATT operations on a connection one at a time.
+ *
+ * Android only allows one outstanding GATT operation per connection - starting another before
+ * the first completes fails, or is silently lost.   Operations are therefore queued here, and the
+ * next is started as soon as the GATT callback reports that the current one has completed (see
+ * onComplete()), so a series of reads and writes runs back to back without gaps.   An operation
+ * that fails, or does not complete within its timeout, is retried up to MAX_RETRIES times and
+ * then reported as failed so the rest of the queue still runs.   The time from starting each
+ * operation to its completion is recorded.
+ *
+ * Each attempt the Target accepts is given a tag (Operation.getTag()) and is outstanding until a
+ * completion is matched to it.   An attempt that times out stays outstanding - the connection may
+ * still complete it - so a late completion is matched to it and ignored, rather than being taken
+ * for the completion of the retry.   The GATT callbacks do not say which attempt they complete,
+ * but a connection completes operations in the order they were started, so onComplete(kind,
+ * characteristic, ...) matches the oldest outstanding attempt of that kind and characteristic;
+ * a Target that knows the tag can report it with onComplete(tag, ...) instead.
+ *
+ * The connection and the timer are reached through the Target and Scheduler interfaces (a
+ * BluetoothGatt and a Handler in BleHrmMonitor), so the queue can be driven by a fake GATT.
+ * Attributes are identified by their short UUIDs (see GattAttributes).   Thread safe.
+ */
+public class GattOperationQueue {
+    public final static int OP_READ = 1;                  // Read a characteristic.
+    public final static int OP_WRITE = 2;                 // Write mValue to a characteristic.
+    public final static int OP_ENABLE_NOTIFICATIONS = 3;  // Write the characteristic's CCCD to enable notifications.
+    public final static String[] OP_NAMES = {"", "read", "write", "enable notifications"};
+
+    public final static long DEFAULT_TIMEOUT_MS = 5000;
+    public final static int MAX_RETRIES = 2;
+
+    /**
+     * A queued operation.
+     */
+    public static class Operation {
+        public final int mKind;
+        public final int mService;          // Short UUID of the service.
+        public final int mCharacteristic;   // Short UUID of the characteristic.
+        public final byte[] mValue;         // The value to write (OP_WRITE).
+        int mAttempts = 0;
+        long mTag = 0;
+        long mStartNanos;
+
+        public Operation(int kind, int service, int characteristic, byte[] value) {
+            mKind = kind;
+            mService = service;
+            mCharacteristic = characteristic;
+            mValue = value;
+        }
+
+        /**
+         * @return the number of times the operation has been started.
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return the tag of the latest attempt (unique within the queue), or 0 if none has been started.
+         */
+        public long getTag() {
+            return mTag;
+        }
+
+        @Override
+        public String toString() {
+            return OP_NAMES[mKind] + " " + GattAttributes.lookup(mCharacteristic,
+                    "0x" + Integer.toHexString(mCharacteristic));
+        }
+    }
+
+    /**
+     * The connection that operations are run on.
+     */
+    public interface Target {
+        /**
+         * Start an operation - its completion must be reported with onComplete().
+         *
+         * @return false if it could not be started.
+         */
+        boolean execute(Operation op);
+    }
+
+    /**
+     * Runs the timeouts.
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    /**
+     * Told when each operation has finished - successfully or after its last retry failed.
+     */
+    public interface Listener {
+        void onGattOperationComplete(Operation op, boolean success);
+    }
+
+    private final Target mTarget;
+    private final Scheduler mScheduler;
+    private final Listener mListener;
+    private final long mTimeoutMs;
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<Operation>();
+    private Operation mCurrent = null;
+    private long mNextTag = 1;
+    // Attempts started on the connection and not yet completed, oldest first - the tag, kind and
+    // characteristic of each.
+    private final ArrayDeque<long[]> mOutstanding = new ArrayDeque<long[]>();
+
+    private long mCompleted = 0;
+    private long mFailed = 0;
+    private long mRetries = 0;
+    private long mTimeouts = 0;
+    private long mLateCompletions = 0;
+    private long mTotalLatencyNanos = 0;
+    private long mMaxLatencyNanos = 0;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    public GattOperationQueue(Target target, Scheduler scheduler, Listener listener) {
+        this(target, scheduler, listener, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param listener  - told when each operation finishes, may be null.
+     * @param timeoutMs - how long to wait for an operation to complete before retrying it.
+     */
+    public GattOperationQueue(Target target, Scheduler scheduler, Listener listener, long timeoutMs) {
+        mTarget = target;
+        mScheduler = scheduler;
+        mListener = listener;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Queue an operation, starting it now if nothing else is running.
+     */
+    public void enqueue(int kind, int service, int characteristic, byte[] value) {
+        enqueue(new Operation(kind, service, characteristic, value));
+    }
+
+    public synchronized void enqueue(Operation op) {
+        mQueue.add(op);
+        if (mCurrent == null) {
+            next();
+        }
+    }
+
+    /**
+     * Report the completion of an operation (from the GATT callback) - it is matched to the
+     * oldest outstanding attempt of that kind on that characteristic.   Completions of an attempt
+     * that has timed out (or of nothing we started) are ignored.
+     *
+     * @return true if it completed the running attempt.
+     */
+    public synchronized boolean onComplete(int kind, int characteristic, boolean success) {
+        for (long[] a : mOutstanding) {
+            if (a[1] == kind && a[2] == characteristic) {
+                return onComplete(a[0], success);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Report the completion of the attempt with the given tag (see Operation.getTag()).
+     * Completions of an attempt that has timed out (or of nothing we started) are ignored.
+     *
+     * @return true if it completed the running attempt.
+     */
+    public synchronized boolean onComplete(long tag, boolean success) {
+        Iterator<long[]> it = mOutstanding.iterator();
+        boolean found = false;
+        while (it.hasNext()) {
+            if (it.next()[0] == tag) {
+                it.remove();
+                found = true;
+                break;
+            }
+        }
+        Operation op = mCurrent;
+        if (op == null || op.mTag != tag) {
+            if (found) {
+                mLateCompletions++;
+            }
+            return false;
+        }
+        mScheduler.cancel(mTimeout);
+        if (success) {
+            long latency = System.nanoTime() - op.mStartNanos;
+            mTotalLatencyNanos += latency;
+            if (latency > mMaxLatencyNanos) {
+                mMaxLatencyNanos = latency;
+            }
+            mCompleted++;
+            finish(op, true);
+        } else {
+            retryOrFail(op);
+        }
+        return true;
+    }
+
+    /**
+     * Discard every queued operation, e.g. when the connection is lost.
+     */
+    public synchronized void clear() {
+        mScheduler.cancel(mTimeout);
+        mQueue.clear();
+        mOutstanding.clear();
+        mCurrent = null;
+    }
+
+    private synchronized void onTimeout() {
+        Operation op = mCurrent;
+        if (op != null) {
+            mTimeouts++;
+            retryOrFail(op);
+        }
+    }
+
+    private void retryOrFail(Operation op) {
+        if (op.mAttempts <= MAX_RETRIES) {
+            mRetries++;
+            start(op);
+        } else {
+            mFailed++;
+            finish(op, false);
+        }
+    }
+
+    private void finish(Operation op, boolean success) {
+        mCurrent = null;
+        if (mListener != null) {
+            mListener.onGattOperationComplete(op, success);
+        }
+        if (mCurrent == null) {
+            next();
+        }
+    }
+
+    private void next() {
+        Operation op = mQueue.poll();
+        if (op != null) {
+            start(op);
+        }
+    }
+
+    /**
+     * Start op - moving on to the next operation if it can not be started at all.
+     */
+    private void start(Operation op) {
+        while (op != null) {
+            mCurrent = op;
+            op.mAttempts++;
+            long tag = mNextTag++;
+            op.mTag = tag;
+            op.mStartNanos = System.nanoTime();
+            // Outstanding before it is started, in case the target completes it at once.
+            long[] attempt = {tag, op.mKind, op.mCharacteristic};
+            mOutstanding.add(attempt);
+            if (mTarget.execute(op)) {
+                if (mCurrent == op && op.mTag == tag) {
+                    mScheduler.schedule(mTimeout, mTimeoutMs);
+                }
+                return;
+            }
+            mOutstanding.remove(attempt);
+            if (op.mAttempts <= MAX_RETRIES) {
+                // Retry after the timeout, in case the connection is only busy.
+                mScheduler.schedule(mTimeout, mTimeoutMs);
+                return;
+            }
+            mFailed++;
+            mCurrent = null;
+            if (mListener != null) {
+                mListener.onGattOperationComplete(op, false);
+            }
+            op = mCurrent == null ? mQueue.poll() : null;
+        }
+    }
+
+    /**
+     * @return the number of operations queued or running.
+     */
+    public synchronized int size() {
+        return mQueue.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * @return the number of operations that failed after all their retries.
+     */
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetries;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return the number of completions ignored because their attempt had already timed out.
+     */
+    public synchronized long getLateCompletionCount() {
+        return mLateCompletions;
+    }
+
+    /**
+     * @return the mean time (ns) from starting an operation to its successful completion.
+     */
+    public synchronized long getMeanLatencyNanos() {
+        return mCompleted > 0 ? mTotalLatencyNanos / mCompleted : 0;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+}
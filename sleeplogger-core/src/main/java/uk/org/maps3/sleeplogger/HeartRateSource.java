@@ -0,0 +1,25 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * A source of heart rate measurements - a BLE heart rate monitor (BleHrmMonitor), a recorded
+ * session being replayed (ReplayHeartRateSource) or a synthetic night (SyntheticHeartRateSource).
+ * Sources report to a BleHrmMonitorListener using the TYPE_* message types, and deliver all
+ * callbacks on a single thread.
+ */
+public interface HeartRateSource {
+    public final static int TYPE_DATA = 1;        // A message containing HRM data
+    public final static int TYPE_CONNECTION = 2;  // A message describing the connection state.
+    public final static int TYPE_READY = 3;       // A message saying the device is ready (HRM service discovered).
+    public final static int TYPE_BATTERY = 4;     // The sensor's battery level (%).
+    public final static int TYPE_BODY_SENSOR_LOCATION = 5;  // Where the sensor is worn (see GattAttributes.BODY_SENSOR_LOCATIONS).
+
+    /**
+     * Start delivering data to the listener.
+     */
+    void start();
+
+    /**
+     * Stop delivering data (a final connection state change may still be reported).
+     */
+    void stop();
+}
@@ -0,0 +1,59 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * A simple rule based sleep stage classifier, scoring each epoch by how its heart rate and HRV
+ * compare with the night's baselines:
+ *   wake  - heart rate well above baseline, or rising quickly.
+ *   deep  - heart rate below baseline, steady, with high vagal (RMSSD) activity.
+ *   REM   - heart rate around or above baseline but irregular, with low RMSSD.
+ *   light - everything else.
+ * The thresholds are rough starting points rather than a validated model - use setThresholds()
+ * to tune them, or swap in another SleepStageClassifier.
+ */
+public class HeuristicSleepClassifier implements SleepStageClassifier {
+    private float mWakeHrRatio = 1.15f;      // Epoch mean HR / baseline above which we score wake.
+    private float mWakeTrend = 3.0f;         // HR rising faster than this (bpm/min) scores wake.
+    private float mDeepHrRatio = 0.97f;      // Epoch mean HR / baseline below which deep sleep is possible.
+    private float mDeepRmssdRatio = 1.1f;    // RMSSD / baseline above which deep sleep is possible.
+    private float mRemHrStdDev = 3.0f;       // HR standard deviation above which REM is possible.
+    private float mRemRmssdRatio = 0.9f;     // RMSSD / baseline below which REM is possible.
+    private int mMinSamples = 5;             // Epochs with fewer HR samples are not scored.
+
+    public void setThresholds(float wakeHrRatio, float wakeTrend, float deepHrRatio, float deepRmssdRatio,
+                              float remHrStdDev, float remRmssdRatio) {
+        mWakeHrRatio = wakeHrRatio;
+        mWakeTrend = wakeTrend;
+        mDeepHrRatio = deepHrRatio;
+        mDeepRmssdRatio = deepRmssdRatio;
+        mRemHrStdDev = remHrStdDev;
+        mRemRmssdRatio = remRmssdRatio;
+    }
+
+    @Override
+    public void reset() {
+        // No state between epochs.
+    }
+
+    @Override
+    public int classify(EpochFeatures f) {
+        if (f.mHrCount < mMinSamples || f.mBaselineHr <= 0) {
+            return STAGE_UNKNOWN;
+        }
+        float hrRatio = f.mMeanHr / f.mBaselineHr;
+        boolean haveHrv = f.mBeats > 10 && f.mBaselineRmssd > 0;
+        float rmssdRatio = haveHrv ? f.mRmssd / f.mBaselineRmssd : 1.0f;
+
+        if (hrRatio > mWakeHrRatio || f.mHrTrend > mWakeTrend) {
+            return STAGE_WAKE;
+        }
+        if (hrRatio < mDeepHrRatio && f.mHrStdDev < mRemHrStdDev
+                && (!haveHrv || rmssdRatio > mDeepRmssdRatio)) {
+            return STAGE_DEEP;
+        }
+        if (f.mHrStdDev > mRemHrStdDev && hrRatio >= mDeepHrRatio
+                && (!haveHrv || rmssdRatio < mRemRmssdRatio)) {
+            return STAGE_REM;
+        }
+        return STAGE_LIGHT;
+    }
+}
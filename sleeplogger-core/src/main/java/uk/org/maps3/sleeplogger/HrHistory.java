@@ -0,0 +1,205 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * A fixed capacity history of timestamped heart rate and RR interval samples for the current night.
+ *
+ * Samples are held in preallocated primitive ring buffers so adding a sample never allocates.
+ * There must be a single writer thread (the thread delivering heart rate measurements); any
+ * number of reader threads may take snapshots concurrently without locking - a snapshot copies
+ * the requested samples and then discards any that the writer overwrote while it was copying.
+ * clear() may also be called from another thread while the writer is not adding samples (e.g.
+ * before the processing thread is started); a snapshot taken across it starts again.
+ */
+public class HrHistory {
+    public final static int DEFAULT_HR_CAPACITY = 12 * 3600;  // 12 hours at 1 Hz.
+    public final static int DEFAULT_RR_CAPACITY = 65536;      // 12 hours at 90 bpm.
+
+    private final int mHrCapacity;
+    private final int mHrSlots;            // One more than the capacity, so the slot being written is never one a reader wants.
+    private final int[] mHr;
+    private final long[] mHrTime;
+    private volatile long mHrCount = 0;    // Total HR samples written - the next slot is mHrCount % mHrSlots.
+
+    private final int mRrCapacity;
+    private final int mRrSlots;
+    private final int[] mRr;
+    private final long[] mRrTime;
+    private volatile long mRrCount = 0;
+
+    private volatile int mClears = 0;       // Incremented by clear(), so a snapshot can tell it happened.
+
+    public HrHistory() {
+        this(DEFAULT_HR_CAPACITY, DEFAULT_RR_CAPACITY);
+    }
+
+    public HrHistory(int hrCapacity, int rrCapacity) {
+        mHrCapacity = hrCapacity;
+        mHrSlots = hrCapacity + 1;
+        mHr = new int[mHrSlots];
+        mHrTime = new long[mHrSlots];
+        mRrCapacity = rrCapacity;
+        mRrSlots = rrCapacity + 1;
+        mRr = new int[mRrSlots];
+        mRrTime = new long[mRrSlots];
+    }
+
+    /**
+     * Add the heart rate and RR intervals from a measurement.  RR intervals are timestamped with
+     * the time of the beat that ends them (see HrmMeasurement.getRrBeatTime()).   Writer thread only.
+     */
+    public void add(HrmMeasurement measurement) {
+        addHr(measurement.mTimestamp, measurement.mHeartRate);
+        for (int i = 0; i < measurement.mRrCount; i++) {
+            addRr(measurement.getRrBeatTime(i), measurement.getRrIntervalMs(i));
+        }
+    }
+
+    /**
+     * Add a heart rate sample (bpm) at time t (ms).  Writer thread only.
+     */
+    public void addHr(long t, int hr) {
+        long count = mHrCount;
+        int slot = (int) (count % mHrSlots);
+        mHr[slot] = hr;
+        mHrTime[slot] = t;
+        mHrCount = count + 1;  // volatile write publishes the slot to readers.
+    }
+
+    /**
+     * Add an RR interval (ms) for the beat at time t (ms).  Writer thread only.
+     */
+    public void addRr(long t, int rrMs) {
+        long count = mRrCount;
+        int slot = (int) (count % mRrSlots);
+        mRr[slot] = rrMs;
+        mRrTime[slot] = t;
+        mRrCount = count + 1;
+    }
+
+    /**
+     * Discard all samples (start of a new night).   On the writer thread, or on any thread while
+     * the writer is not adding samples.
+     */
+    public void clear() {
+        mClears++;
+        mHrCount = 0;
+        mRrCount = 0;
+    }
+
+    public int getHrCapacity() {
+        return mHrCapacity;
+    }
+
+    public int getRrCapacity() {
+        return mRrCapacity;
+    }
+
+    /**
+     * @return the total number of heart rate samples added since the last clear (may exceed capacity).
+     */
+    public long getHrCount() {
+        return mHrCount;
+    }
+
+    public long getRrCount() {
+        return mRrCount;
+    }
+
+    /**
+     * @return the number of heart rate samples currently held.
+     */
+    public int getHrSize() {
+        return (int) Math.min(mHrCount, mHrCapacity);
+    }
+
+    public int getRrSize() {
+        return (int) Math.min(mRrCount, mRrCapacity);
+    }
+
+    /**
+     * @return the most recent heart rate, or 0 if there is none.
+     */
+    public int getLatestHr() {
+        long count = mHrCount;
+        return count == 0 ? 0 : mHr[(int) ((count - 1) % mHrSlots)];
+    }
+
+    /**
+     * @return the time of the most recent heart rate sample, or 0 if there is none.
+     */
+    public long getLatestHrTime() {
+        long count = mHrCount;
+        return count == 0 ? 0 : mHrTime[(int) ((count - 1) % mHrSlots)];
+    }
+
+    /**
+     * Copy the most recent heart rate samples, oldest first, into the supplied arrays.
+     *
+     * @param times  - destination for sample times (ms).
+     * @param values - destination for heart rates (bpm).
+     * @param max    - the maximum number of samples to copy (must not exceed the array lengths).
+     * @return the number of samples copied.
+     */
+    public int snapshotHr(long[] times, int[] values, int max) {
+        for (;;) {
+            int clears = mClears;
+            long end = mHrCount;
+            int n = (int) Math.min(Math.min(end, mHrCapacity), max);
+            long start = end - n;
+            copy(mHrTime, mHr, mHrSlots, start, n, times, values);
+            long after = mHrCount;
+            if (after < end || mClears != clears) {
+                continue;  // cleared while copying - try again.
+            }
+            return discardOverwritten(start, n, after, mHrSlots, times, values);
+        }
+    }
+
+    /**
+     * Copy the most recent RR intervals, oldest first, into the supplied arrays.
+     *
+     * @return the number of intervals copied.
+     */
+    public int snapshotRr(long[] times, int[] values, int max) {
+        for (;;) {
+            int clears = mClears;
+            long end = mRrCount;
+            int n = (int) Math.min(Math.min(end, mRrCapacity), max);
+            long start = end - n;
+            copy(mRrTime, mRr, mRrSlots, start, n, times, values);
+            long after = mRrCount;
+            if (after < end || mClears != clears) {
+                continue;
+            }
+            return discardOverwritten(start, n, after, mRrSlots, times, values);
+        }
+    }
+
+    private static void copy(long[] srcTimes, int[] srcValues, int slots, long start, int n,
+                             long[] times, int[] values) {
+        int first = (int) (start % slots);
+        int len1 = Math.min(n, slots - first);
+        System.arraycopy(srcTimes, first, times, 0, len1);
+        System.arraycopy(srcValues, first, values, 0, len1);
+        if (len1 < n) {
+            System.arraycopy(srcTimes, 0, times, len1, n - len1);
+            System.arraycopy(srcValues, 0, values, len1, n - len1);
+        }
+    }
+
+    /**
+     * The writer may have (partly) overwritten the oldest copied samples while we were copying -
+     * the slot for sample 'after' may be mid-write, so anything older than after + 1 - slots is suspect.
+     */
+    private static int discardOverwritten(long start, int n, long after, int slots,
+                                          long[] times, int[] values) {
+        long firstValid = after + 1 - slots;
+        if (start >= firstValid) {
+            return n;
+        }
+        int skip = (int) Math.min(n, firstValid - start);
+        System.arraycopy(times, skip, times, 0, n - skip);
+        System.arraycopy(values, skip, values, 0, n - skip);
+        return n - skip;
+    }
+}
@@ -0,0 +1,89 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * A decoded Heart Rate Measurement (characteristic 0x2A37) notification.
+ * Instances are intended to be preallocated and refilled by HrmMeasurementParser for every
+ * packet, so listeners must copy out any values they want to keep after the callback returns.
+ */
+public class HrmMeasurement {
+    /** The maximum number of RR intervals held from a single packet (a 512 byte ATT value can not hold more). */
+    public final static int MAX_RR_INTERVALS = 256;
+
+    public int mSource = 0;              // The sensor the packet came from (not changed by clear()).
+    public long mTimestamp = 0;          // Time the packet was received (ms since epoch).
+    public int mFlags = 0;               // Raw flags byte (byte 0 of the payload).
+    public int mHeartRate = 0;           // Heart rate (bpm).
+    public boolean mSensorContactSupported = false;
+    public boolean mSensorContactDetected = false;
+    public int mEnergyExpended = -1;     // Energy expended (kJ), or -1 if not present in the packet.
+    public int mRrCount = 0;             // Number of valid entries in mRrIntervals.
+    public final int[] mRrIntervals = new int[MAX_RR_INTERVALS];  // RR intervals in units of 1/1024 s.
+
+    /**
+     * Reset all fields to their 'no data' values.
+     */
+    public void clear() {
+        mTimestamp = 0;
+        mFlags = 0;
+        mHeartRate = 0;
+        mSensorContactSupported = false;
+        mSensorContactDetected = false;
+        mEnergyExpended = -1;
+        mRrCount = 0;
+    }
+
+    /**
+     * Copy the contents of another measurement into this one (without allocating).
+     */
+    public void copyFrom(HrmMeasurement other) {
+        mSource = other.mSource;
+        mTimestamp = other.mTimestamp;
+        mFlags = other.mFlags;
+        mHeartRate = other.mHeartRate;
+        mSensorContactSupported = other.mSensorContactSupported;
+        mSensorContactDetected = other.mSensorContactDetected;
+        mEnergyExpended = other.mEnergyExpended;
+        mRrCount = other.mRrCount;
+        System.arraycopy(other.mRrIntervals, 0, mRrIntervals, 0, other.mRrCount);
+    }
+
+    /**
+     * @return true if the sensor reports contact, or does not support contact detection at all.
+     */
+    public boolean hasContact() {
+        return !mSensorContactSupported || mSensorContactDetected;
+    }
+
+    /**
+     * Return RR interval i converted to milliseconds.
+     */
+    public int getRrIntervalMs(int i) {
+        return rrToMs(mRrIntervals[i]);
+    }
+
+    /**
+     * Return the time (ms) of the beat that ends RR interval i, assuming the last interval in
+     * the packet ends at mTimestamp.
+     */
+    public long getRrBeatTime(int i) {
+        long t = mTimestamp;
+        for (int j = mRrCount - 1; j > i; j--) {
+            t -= getRrIntervalMs(j);
+        }
+        return t;
+    }
+
+    /**
+     * Convert an RR interval in 1/1024 s units to milliseconds (rounded to nearest).
+     */
+    public static int rrToMs(int rr) {
+        return (int) ((rr * 1000L + 512) >> 10);
+    }
+
+    /**
+     * Convert an RR interval in milliseconds to 1/1024 s units (rounded to nearest).
+     */
+    public static int msToRr(int ms) {
+        return (int) ((ms * 1024L + 500) / 1000);
+    }
+}
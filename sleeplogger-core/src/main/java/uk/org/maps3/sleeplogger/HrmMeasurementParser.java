@@ -0,0 +1,90 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * Decodes the raw bytes of a Bluetooth SIG Heart Rate Measurement characteristic (0x2A37)
+ * into a caller supplied HrmMeasurement, without allocating.
+ *
+ * Payload layout:
+ *   byte 0      flags
+ *                 bit 0    - heart rate value format (0 = UINT8, 1 = UINT16)
+ *                 bits 1,2 - sensor contact status (bit 2 = supported, bit 1 = detected)
+ *                 bit 3    - energy expended present (UINT16, kJ)
+ *                 bit 4    - RR intervals present (one or more UINT16, 1/1024 s)
+ *   byte 1..    heart rate, [energy expended], [RR interval]*
+ * All multi-byte values are little endian.
+ */
+public class HrmMeasurementParser {
+    public final static int FLAG_HR_UINT16 = 0x01;
+    public final static int FLAG_CONTACT_DETECTED = 0x02;
+    public final static int FLAG_CONTACT_SUPPORTED = 0x04;
+    public final static int FLAG_ENERGY_EXPENDED = 0x08;
+    public final static int FLAG_RR_INTERVALS = 0x10;
+
+    private HrmMeasurementParser() {
+    }
+
+    /**
+     * Parse value into out.   The timestamp of out is left unchanged.
+     *
+     * @param value - the raw characteristic value.
+     * @param out   - the measurement to fill in.
+     * @return true if the packet was valid, false if it was too short (out is then cleared).
+     */
+    public static boolean parse(byte[] value, HrmMeasurement out) {
+        return parse(value, 0, value == null ? 0 : value.length, out);
+    }
+
+    /**
+     * Parse len bytes of buf starting at offset into out.
+     */
+    public static boolean parse(byte[] buf, int offset, int len, HrmMeasurement out) {
+        long timestamp = out.mTimestamp;
+        out.clear();
+        out.mTimestamp = timestamp;
+        if (buf == null || len < 2) {
+            return false;
+        }
+        int end = offset + len;
+        int pos = offset;
+        int flags = buf[pos++] & 0xff;
+        out.mFlags = flags;
+        out.mSensorContactSupported = (flags & FLAG_CONTACT_SUPPORTED) != 0;
+        out.mSensorContactDetected = (flags & FLAG_CONTACT_DETECTED) != 0;
+
+        if ((flags & FLAG_HR_UINT16) != 0) {
+            if (end - pos < 2) {
+                out.clear();
+                out.mTimestamp = timestamp;
+                return false;
+            }
+            out.mHeartRate = uint16(buf, pos);
+            pos += 2;
+        } else {
+            out.mHeartRate = buf[pos++] & 0xff;
+        }
+
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (end - pos < 2) {
+                out.clear();
+                out.mTimestamp = timestamp;
+                return false;
+            }
+            out.mEnergyExpended = uint16(buf, pos);
+            pos += 2;
+        }
+
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            int n = 0;
+            while (end - pos >= 2 && n < HrmMeasurement.MAX_RR_INTERVALS) {
+                out.mRrIntervals[n++] = uint16(buf, pos);
+                pos += 2;
+            }
+            out.mRrCount = n;
+        }
+        return true;
+    }
+
+    private static int uint16(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8);
+    }
+}
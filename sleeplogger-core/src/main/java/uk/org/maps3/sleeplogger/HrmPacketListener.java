@@ -0,0 +1,17 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * A BleHrmMonitorListener that also accepts raw Heart Rate Measurement packets, so that the
+ * packet can be parsed on the listener's own thread rather than on the Bluetooth callback thread
+ * (see ProcessingPipeline).
+ */
+public interface HrmPacketListener extends BleHrmMonitorListener {
+    /**
+     * Called for every Heart Rate Measurement notification.   value is only valid during the
+     * call, so it must be copied if it is kept.
+     *
+     * @param value     - the raw characteristic value.
+     * @param timestamp - the time the packet was received (ms since epoch).
+     */
+    public void onHrmPacketReceived(byte[] value, long timestamp);
+}
@@ -0,0 +1,267 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.Arrays;
+
+/**
+ * Streaming heart rate variability over a sliding time window of RR intervals.
+ *
+ * RMSSD, SDNN and pNN50 are maintained from running integer sums that are updated as each beat
+ * enters the window and as old beats leave it, so every update is O(1) and nothing is allocated
+ * per beat.   A successive difference is only taken between beats that follow each other - not
+ * across an artefact, or a gap in the data (e.g. while the sensor was disconnected) longer than
+ * MAX_GAP_MS.   At the end of each 30 second epoch the current window values are also stored as
+ * that epoch's output.
+ *
+ * There must be a single writer thread.   The current values may be read from any thread, and
+ * epoch outputs may be read without locking provided getEpochCount() is called first.
+ */
+public class HrvEngine {
+    public final static int DEFAULT_WINDOW_MS = 5 * 60 * 1000;
+    public final static int EPOCH_MS = 30000;
+    public final static int MIN_RR_MS = 300;    // Intervals outside this range are treated as artefacts.
+    public final static int MAX_RR_MS = 2000;
+    public final static int MAX_GAP_MS = MAX_RR_MS + 1000;  // Longer from one beat to the next means beats were missed.
+
+    private final int mWindowMs;
+    private final int mCapacity;
+    private final long[] mTime;
+    private final int[] mRr;
+    private final int[] mDiff;          // Difference from the previous beat in the window.
+    private final boolean[] mHasDiff;
+    private int mHead = 0;              // Oldest beat in the window.
+    private int mSize = 0;
+
+    private long mSum = 0;
+    private long mSumSq = 0;
+    private long mSumSqDiff = 0;
+    private int mDiffCount = 0;
+    private int mNn50Count = 0;
+    private long mArtefacts = 0;
+    private boolean mBreak = false;     // The previous interval was an artefact.
+    private long mLastBeat = Long.MIN_VALUE;    // The time of the last beat with a valid interval.
+
+    private volatile float mRmssd = 0;
+    private volatile float mSdnn = 0;
+    private volatile float mPnn50 = 0;
+    private volatile int mBeats = 0;
+
+    private long mEpochStart = Long.MIN_VALUE;
+    private volatile int mEpochCount = 0;
+    private long[] mEpochStarts = new long[1440];   // 12 hours of epochs.
+    private float[] mEpochRmssd = new float[1440];
+    private float[] mEpochSdnn = new float[1440];
+    private float[] mEpochPnn50 = new float[1440];
+    private int[] mEpochBeats = new int[1440];
+
+    public HrvEngine() {
+        this(DEFAULT_WINDOW_MS);
+    }
+
+    public HrvEngine(int windowMs) {
+        mWindowMs = windowMs;
+        // Enough room for a full window at 200 bpm.
+        mCapacity = (int) ((long) windowMs * 200 / 60000) + 1;
+        mTime = new long[mCapacity];
+        mRr = new int[mCapacity];
+        mDiff = new int[mCapacity];
+        mHasDiff = new boolean[mCapacity];
+    }
+
+    public int getWindowMs() {
+        return mWindowMs;
+    }
+
+    /**
+     * Add the RR interval (ms) that ended with the beat at time t (ms).
+     */
+    public void add(long t, int rrMs) {
+        long epochStart = t - floorMod(t, EPOCH_MS);
+        if (mEpochStart == Long.MIN_VALUE) {
+            mEpochStart = epochStart;
+        } else if (epochStart > mEpochStart) {
+            endEpoch();
+            mEpochStart = epochStart;
+        }
+
+        // Drop beats that have left the window - on every beat, artefact or not, so the window
+        // always ends at the latest one.
+        while (mSize > 0 && mTime[mHead] <= t - mWindowMs) {
+            removeOldest();
+        }
+
+        if (rrMs < MIN_RR_MS || rrMs > MAX_RR_MS) {
+            mArtefacts++;
+            // Do not take a successive difference across an artefact.
+            mBreak = true;
+            publish();
+            return;
+        }
+
+        if (mSize == mCapacity) {
+            removeOldest();
+        }
+
+        if (mLastBeat != Long.MIN_VALUE && t - mLastBeat > MAX_GAP_MS) {
+            // Beats are missing - do not take a difference across the gap.
+            mBreak = true;
+        }
+        mLastBeat = t;
+
+        int tail = (mHead + mSize) % mCapacity;
+        mTime[tail] = t;
+        mRr[tail] = rrMs;
+        mSum += rrMs;
+        mSumSq += (long) rrMs * rrMs;
+        if (mSize > 0 && !mBreak) {
+            int prev = (tail + mCapacity - 1) % mCapacity;
+            int diff = rrMs - mRr[prev];
+            mDiff[tail] = diff;
+            mHasDiff[tail] = true;
+            mSumSqDiff += (long) diff * diff;
+            mDiffCount++;
+            if (Math.abs(diff) > 50) {
+                mNn50Count++;
+            }
+        } else {
+            mHasDiff[tail] = false;
+        }
+        mBreak = false;
+        mSize++;
+        publish();
+    }
+
+    /**
+     * Complete the current epoch (at the end of a session).
+     */
+    public void flush() {
+        if (mEpochStart != Long.MIN_VALUE) {
+            endEpoch();
+            mEpochStart = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Discard the window and all epoch outputs (writer thread only).
+     */
+    public void clear() {
+        mSize = 0;
+        mHead = 0;
+        mSum = mSumSq = mSumSqDiff = 0;
+        mDiffCount = mNn50Count = 0;
+        mArtefacts = 0;
+        mBreak = false;
+        mLastBeat = Long.MIN_VALUE;
+        mEpochStart = Long.MIN_VALUE;
+        mEpochCount = 0;
+        publish();
+    }
+
+    /**
+     * @return the root mean square of successive differences in the window (ms).
+     */
+    public float getRmssd() {
+        return mRmssd;
+    }
+
+    /**
+     * @return the standard deviation of the RR intervals in the window (ms).
+     */
+    public float getSdnn() {
+        return mSdnn;
+    }
+
+    /**
+     * @return the percentage of successive differences in the window greater than 50 ms.
+     */
+    public float getPnn50() {
+        return mPnn50;
+    }
+
+    /**
+     * @return the number of beats in the window.
+     */
+    public int getBeatCount() {
+        return mBeats;
+    }
+
+    public long getArtefactCount() {
+        return mArtefacts;
+    }
+
+    public int getEpochCount() {
+        return mEpochCount;
+    }
+
+    public long getEpochStart(int i) {
+        return mEpochStarts[i];
+    }
+
+    public float getEpochRmssd(int i) {
+        return mEpochRmssd[i];
+    }
+
+    public float getEpochSdnn(int i) {
+        return mEpochSdnn[i];
+    }
+
+    public float getEpochPnn50(int i) {
+        return mEpochPnn50[i];
+    }
+
+    public int getEpochBeats(int i) {
+        return mEpochBeats[i];
+    }
+
+    private void removeOldest() {
+        int rr = mRr[mHead];
+        mSum -= rr;
+        mSumSq -= (long) rr * rr;
+        mHead = (mHead + 1) % mCapacity;
+        mSize--;
+        // The new oldest beat's difference was relative to the beat just removed.
+        if (mSize > 0 && mHasDiff[mHead]) {
+            int diff = mDiff[mHead];
+            mSumSqDiff -= (long) diff * diff;
+            mDiffCount--;
+            if (Math.abs(diff) > 50) {
+                mNn50Count--;
+            }
+            mHasDiff[mHead] = false;
+        }
+    }
+
+    private void publish() {
+        mRmssd = mDiffCount > 0 ? (float) Math.sqrt((double) mSumSqDiff / mDiffCount) : 0;
+        if (mSize > 1) {
+            double var = (mSumSq - (double) mSum * mSum / mSize) / (mSize - 1);
+            mSdnn = (float) Math.sqrt(Math.max(var, 0));
+        } else {
+            mSdnn = 0;
+        }
+        mPnn50 = mDiffCount > 0 ? 100f * mNn50Count / mDiffCount : 0;
+        mBeats = mSize;
+    }
+
+    private void endEpoch() {
+        int n = mEpochCount;
+        if (n == mEpochStarts.length) {
+            int len = n * 2;
+            mEpochStarts = Arrays.copyOf(mEpochStarts, len);
+            mEpochRmssd = Arrays.copyOf(mEpochRmssd, len);
+            mEpochSdnn = Arrays.copyOf(mEpochSdnn, len);
+            mEpochPnn50 = Arrays.copyOf(mEpochPnn50, len);
+            mEpochBeats = Arrays.copyOf(mEpochBeats, len);
+        }
+        mEpochStarts[n] = mEpochStart;
+        mEpochRmssd[n] = mRmssd;
+        mEpochSdnn[n] = mSdnn;
+        mEpochPnn50[n] = mPnn50;
+        mEpochBeats[n] = mBeats;
+        mEpochCount = n + 1;
+    }
+
+    private static long floorMod(long t, int period) {
+        long m = t % period;
+        return m < 0 ? m + period : m;
+    }
+}
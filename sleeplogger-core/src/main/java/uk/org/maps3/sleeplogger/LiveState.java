@@ -0,0 +1,72 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest live state for the display - heart rate and connection state - packed into a
+ * single AtomicLong, so the processing thread can publish it for every sample without
+ * allocating or locking, and the UI thread can read a consistent copy once per frame.
+ *
+ * Packing (see get()):
+ *   bits 0-15   heart rate (bpm)
+ *   bit  16     connected
+ *   bit  17     a heart rate has been received since the last (re)connection
+ *   bits 32-63  version, incremented by every change - so a reader can tell if anything changed.
+ */
+public class LiveState {
+    private final static long HR_MASK = 0xffffL;
+    private final static long CONNECTED = 1L << 16;
+    private final static long HAS_HR = 1L << 17;
+    private final static long VERSION_ONE = 1L << 32;
+
+    private final AtomicLong mState = new AtomicLong();
+
+    /**
+     * @return the packed state, to be read with the static accessors.
+     */
+    public long get() {
+        return mState.get();
+    }
+
+    public void publishHeartRate(int hr) {
+        long s;
+        long next;
+        do {
+            s = mState.get();
+            next = ((s & ~HR_MASK) | (hr & HR_MASK) | HAS_HR) + VERSION_ONE;
+        } while (!mState.compareAndSet(s, next));
+    }
+
+    public void publishConnected(boolean connected) {
+        long s;
+        long next;
+        do {
+            s = mState.get();
+            if (!connected) {
+                next = s & ~CONNECTED;
+            } else if ((s & CONNECTED) == 0) {
+                // A new connection has not delivered a heart rate yet.
+                next = (s & ~HAS_HR) | CONNECTED;
+            } else {
+                return;
+            }
+            next += VERSION_ONE;
+        } while (!mState.compareAndSet(s, next));
+    }
+
+    public static int getHeartRate(long state) {
+        return (int) (state & HR_MASK);
+    }
+
+    public static boolean isConnected(long state) {
+        return (state & CONNECTED) != 0;
+    }
+
+    public static boolean hasHeartRate(long state) {
+        return (state & HAS_HR) != 0;
+    }
+
+    public static int getVersion(long state) {
+        return (int) (state >>> 32);
+    }
+}
@@ -0,0 +1,224 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single producer, single consumer queue of heart rate source events - raw packets,
+ * parsed measurements and status messages - in a ring of preallocated entries, so that neither
+ * side locks or allocates per sample.
+ *
+ * When the producer finds the queue full it waits for space, so nothing is lost - every sample
+ * is stored (see SessionStore).   The waits are counted (getBlockedCount(), getBlockedNanos())
+ * and recorded in the session file header (see SessionWriter.setQueueStats()).   A display that
+ * only wants the latest values takes them further on, from an EventFanout.MODE_LATEST
+ * subscription, which costs the queue nothing.
+ *
+ * The producer calls the offer*() methods from one thread at a time.   The consumer calls
+ * poll(), which copies the next event into its own Entry, from one thread at a time.
+ */
+public class MeasurementQueue {
+    public final static int DEFAULT_CAPACITY = 128;
+
+    public final static int KIND_PACKET = 1;        // mPacket holds a raw Heart Rate Measurement.
+    public final static int KIND_MEASUREMENT = 2;   // mMeasurement holds a parsed measurement.
+    public final static int KIND_MESSAGE = 3;       // A HeartRateSource.TYPE_* status message.
+
+    private final static long BLOCK_PARK_NANOS = 50000;
+
+    /**
+     * A queued event.
+     */
+    public static class Entry {
+        public int mKind;
+        public long mEnqueueNanos;      // System.nanoTime() when the entry was queued.
+        public long mTimestamp;         // Packet receive time (ms since epoch) for KIND_PACKET.
+        public final byte[] mPacket = new byte[512];
+        public int mPacketLength;
+        public final HrmMeasurement mMeasurement = new HrmMeasurement();
+        public int mType;
+        public int mData;
+        public String mMsg;
+
+        /**
+         * Copy the contents of another entry into this one (without allocating).
+         */
+        public void copyFrom(Entry other) {
+            mKind = other.mKind;
+            mEnqueueNanos = other.mEnqueueNanos;
+            switch (mKind) {
+                case KIND_PACKET:
+                    mTimestamp = other.mTimestamp;
+                    mPacketLength = other.mPacketLength;
+                    System.arraycopy(other.mPacket, 0, mPacket, 0, Math.min(mPacketLength, mPacket.length));
+                    break;
+                case KIND_MEASUREMENT:
+                    mMeasurement.copyFrom(other.mMeasurement);
+                    break;
+                case KIND_MESSAGE:
+                    mType = other.mType;
+                    mData = other.mData;
+                    mMsg = other.mMsg;
+                    break;
+            }
+        }
+    }
+
+    private final Entry[] mEntries;
+    private final int mMask;
+    private volatile long mHead = 0;     // Next entry to consume (consumer only).
+    private volatile long mTail = 0;     // Next entry to fill (producer only).
+
+    private volatile long mOffered = 0;
+    private volatile long mBlocked = 0;
+    private volatile long mBlockedNanos = 0;
+    private volatile int mMaxDepth = 0;
+
+    public MeasurementQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity - number of entries, rounded up to a power of 2.
+     */
+    public MeasurementQueue(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mEntries = new Entry[n];
+        for (int i = 0; i < n; i++) {
+            mEntries[i] = new Entry();
+        }
+        mMask = n - 1;
+    }
+
+    public int getCapacity() {
+        return mEntries.length;
+    }
+
+    /**
+     * @return the number of entries waiting to be consumed.
+     */
+    public int size() {
+        long n = mTail - mHead;
+        return (int) Math.max(n, 0);
+    }
+
+    /**
+     * @return the largest number of entries that have been waiting at once.
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return the number of events offered.
+     */
+    public long getOfferedCount() {
+        return mOffered;
+    }
+
+    /**
+     * @return the number of events the producer had to wait to queue.
+     */
+    public long getBlockedCount() {
+        return mBlocked;
+    }
+
+    /**
+     * @return the total time (ns) the producer has spent waiting for space.
+     */
+    public long getBlockedNanos() {
+        return mBlockedNanos;
+    }
+
+    /**
+     * Queue a raw packet (producer only).
+     */
+    public void offerPacket(byte[] value, long timestamp) {
+        Entry e = claim();
+        int len = Math.min(value == null ? 0 : value.length, e.mPacket.length);
+        if (len > 0) {
+            System.arraycopy(value, 0, e.mPacket, 0, len);
+        }
+        e.mKind = KIND_PACKET;
+        e.mPacketLength = len;
+        e.mTimestamp = timestamp;
+        publish(e);
+    }
+
+    /**
+     * Queue a copy of a parsed measurement (producer only).
+     */
+    public void offerMeasurement(HrmMeasurement measurement) {
+        Entry e = claim();
+        e.mKind = KIND_MEASUREMENT;
+        e.mMeasurement.copyFrom(measurement);
+        publish(e);
+    }
+
+    /**
+     * Queue a status message (producer only).
+     */
+    public void offerMessage(int type, int data, String msg) {
+        Entry e = claim();
+        e.mKind = KIND_MESSAGE;
+        e.mType = type;
+        e.mData = data;
+        e.mMsg = msg;
+        publish(e);
+    }
+
+    /**
+     * Copy the next event into out and remove it from the queue (consumer only).
+     *
+     * @return false if the queue is empty.
+     */
+    public boolean poll(Entry out) {
+        long head = mHead;
+        if (head >= mTail) {
+            return false;
+        }
+        out.copyFrom(mEntries[(int) head & mMask]);
+        // Only now may the producer reuse the entry.
+        mHead = head + 1;
+        return true;
+    }
+
+    /**
+     * @return the entry to fill for the next event, waiting for space if the queue is full.
+     */
+    private Entry claim() {
+        mOffered++;
+        long tail = mTail;
+        if (tail - mHead >= mEntries.length) {
+            waitForSpace(tail);
+        }
+        Entry e = mEntries[(int) tail & mMask];
+        e.mEnqueueNanos = System.nanoTime();
+        return e;
+    }
+
+    /**
+     * Wait until the consumer has made room in the ring.
+     */
+    private void waitForSpace(long tail) {
+        long start = System.nanoTime();
+        mBlocked++;
+        int spins = 0;
+        while (tail - mHead >= mEntries.length) {
+            if (++spins < 100) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+        }
+        mBlockedNanos += System.nanoTime() - start;
+    }
+
+    private void publish(Entry e) {
+        long tail = mTail + 1;
+        mTail = tail;
+        int depth = (int) (tail - mHead);
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+    }
+}
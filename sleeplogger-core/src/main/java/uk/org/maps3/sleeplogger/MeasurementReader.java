@@ -0,0 +1,93 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.IOException;
+
+/**
+ * Reads a session file back as the heart rate measurements that were recorded - each heart rate
+ * record together with the RR interval records that follow it - and connection state changes.
+ * Use as a cursor:
+ *   int type;
+ *   while ((type = reader.next(measurement)) != 0) { ... }
+ * Sleep stage records are skipped, as they are derived data.
+ */
+public class MeasurementReader {
+    private final SessionReader mReader;
+    private boolean mHeld = false;      // The reader is on a record that has not been returned yet.
+    private long mTime;
+    private int mConnectionState;
+    private long mRecords = 0;
+
+    public MeasurementReader(SessionReader reader) {
+        mReader = reader;
+    }
+
+    public SessionReader getReader() {
+        return mReader;
+    }
+
+    /**
+     * Read the next measurement or connection state change.
+     *
+     * @return SessionFile.TYPE_HR if out holds the next measurement, SessionFile.TYPE_CONNECTION
+     * for a connection state change (see getConnectionState()), or 0 at the end of the session.
+     */
+    public int next(HrmMeasurement out) throws IOException {
+        while (mHeld || mReader.next()) {
+            mHeld = false;
+            mRecords++;
+            int type = mReader.getType();
+            mTime = mReader.getTime();
+            if (type == SessionFile.TYPE_HR) {
+                out.clear();
+                out.mSource = mReader.getSource();
+                out.mTimestamp = mTime;
+                out.mHeartRate = mReader.getValue();
+                if ((mReader.getFlags() & SessionFile.FLAG_NO_CONTACT) != 0) {
+                    out.mSensorContactSupported = true;
+                    out.mFlags = HrmMeasurementParser.FLAG_CONTACT_SUPPORTED;
+                }
+                readRr(out);
+                return SessionFile.TYPE_HR;
+            } else if (type == SessionFile.TYPE_CONNECTION) {
+                mConnectionState = mReader.getValue();
+                return SessionFile.TYPE_CONNECTION;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the time of the record last returned by next().
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return the state (1 connected, 0 disconnected) of the connection record last returned by next().
+     */
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * @return the number of session records read so far.
+     */
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    private void readRr(HrmMeasurement out) throws IOException {
+        while (mReader.next()) {
+            if (mReader.getType() != SessionFile.TYPE_RR) {
+                mHeld = true;
+                return;
+            }
+            mRecords++;
+            if (out.mRrCount < HrmMeasurement.MAX_RR_INTERVALS) {
+                out.mRrIntervals[out.mRrCount++] = HrmMeasurement.msToRr(mReader.getValue());
+                out.mFlags |= HrmMeasurementParser.FLAG_RR_INTERVALS;
+            }
+        }
+    }
+}
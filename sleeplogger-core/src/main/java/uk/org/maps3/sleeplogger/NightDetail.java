@@ -0,0 +1,266 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A recorded night (a session file with its rollups and index), read at the level of detail
+ * needed to draw a span of it.
+ *
+ * chooseLevel() picks the level for a span so that no more than a given number of points (about
+ * one per pixel) are drawn - the hourly, 5 minute or 30 second epoch rollups, or the raw heart
+ * rate and RR records once the span is short enough.   Each rollup tier is read from the rollup
+ * file the first time it is needed (the largest, the 30 second epochs, is about 35 kB for a 12
+ * hour night), and raw records are read through the session index into fixed size arrays, only
+ * from the blocks that cover the span asked for.   So the memory used, and the time taken to show
+ * any part of a night, do not depend on the length of the night.
+ *
+ * The 1 second tier is not used - it is about as large as the raw heart rate records, which the
+ * index lets us read a span at a time.   Not thread safe.
+ */
+public class NightDetail {
+    public final static int LEVEL_RAW = -1;
+    public final static String[] TIER_NAMES = {"1 s", "30 s epochs", "5 min", "hourly"};
+    public final static int MAX_RAW_RECORDS = 8192;     // Of each of heart rate and RR.
+    private final static int RAW_MS_PER_POINT = 500;    // Raw records - about a beat and a heart rate a second.
+
+    /**
+     * A short summary of a night, for listing nights - read from its header and hourly rollups.
+     */
+    public static class Summary {
+        public File mFile;
+        public long mStart;
+        public long mEnd;           // 0 if the session was not closed cleanly.
+        public double mMeanHr;
+        public int mMinHr;
+        public int mMaxHr;
+        public String mError = "";
+    }
+
+    private final File mFile;
+    private SessionReader mReader = null;
+    private SessionIndex mIndex = null;
+    private final Rollup[] mTiers = new Rollup[RollupEngine.TIER_PERIODS_MS.length];
+
+    private final long[] mHrTimes = new long[MAX_RAW_RECORDS];
+    private final int[] mHr = new int[MAX_RAW_RECORDS];
+    private int mHrCount = 0;
+    private final long[] mRrTimes = new long[MAX_RAW_RECORDS];
+    private final int[] mRr = new int[MAX_RAW_RECORDS];
+    private int mRrCount = 0;
+    private long mRawFrom = 0;      // The span held in the raw arrays.
+    private long mRawTo = 0;
+
+    private final SessionIndex.RecordVisitor mRawVisitor = new SessionIndex.RecordVisitor() {
+        @Override
+        public void onRecord(long time, int type, int flags, int value) {
+            if (type == SessionFile.TYPE_HR) {
+                if (mHrCount == MAX_RAW_RECORDS) {
+                    mRawTo = Math.min(mRawTo, time);
+                } else if (time < mRawTo) {
+                    mHrTimes[mHrCount] = time;
+                    mHr[mHrCount++] = value;
+                }
+            } else if (type == SessionFile.TYPE_RR) {
+                if (mRrCount == MAX_RAW_RECORDS) {
+                    mRawTo = Math.min(mRawTo, time);
+                } else if (time < mRawTo) {
+                    mRrTimes[mRrCount] = time;
+                    mRr[mRrCount++] = value;
+                }
+            }
+        }
+    };
+
+    public NightDetail(File sessionFile) {
+        mFile = sessionFile;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the level (LEVEL_RAW or a RollupEngine tier) to draw spanMs with no more than maxPoints points.
+     */
+    public static int chooseLevel(long spanMs, int maxPoints) {
+        maxPoints = Math.max(maxPoints, 1);
+        if (spanMs / RAW_MS_PER_POINT <= maxPoints) {
+            return LEVEL_RAW;
+        }
+        for (int tier = RollupEngine.TIER_EPOCH; tier < RollupEngine.TIER_HOUR; tier++) {
+            if (spanMs / RollupEngine.TIER_PERIODS_MS[tier] <= maxPoints) {
+                return tier;
+            }
+        }
+        return RollupEngine.TIER_HOUR;
+    }
+
+    /**
+     * @return the time of the first record.
+     */
+    public long getStartTime() throws IOException {
+        SessionIndex index = index();
+        return index.size() > 0 ? index.getStartTime() : reader().getStartTime();
+    }
+
+    /**
+     * @return the time of the last record.
+     */
+    public long getEndTime() throws IOException {
+        SessionIndex index = index();
+        return index.size() > 0 ? index.getEndTime() : reader().getStartTime();
+    }
+
+    /**
+     * @return a rollup tier of the night, reading it the first time it is asked for.   If the
+     * session has no up to date rollup file (e.g. it was not closed cleanly, or is still being
+     * written) the rollups are built from it, and written to the rollup file so that they are not
+     * built again unless the session changes (see hasCurrentRollups()).
+     */
+    public Rollup getTier(int tier) throws IOException {
+        if (mTiers[tier] == null) {
+            File file = RollupEngine.rollupFile(mFile);
+            if (hasCurrentRollups(file)) {
+                mTiers[tier] = RollupEngine.readTier(file, tier);
+            } else {
+                RollupEngine rollups = RollupEngine.build(reader());
+                try {
+                    rollups.write(file);
+                } catch (IOException e) {
+                    // Only a cache - the rollups are built again next time.
+                }
+                for (int i = 0; i < mTiers.length; i++) {
+                    mTiers[i] = rollups.getTier(i);
+                }
+            }
+        }
+        return mTiers[tier];
+    }
+
+    /**
+     * @return true if the rollup file covers the whole session - it was written when the session
+     * was closed, or (for a session that was not closed) after the session file last changed.
+     */
+    private boolean hasCurrentRollups(File rollupFile) throws IOException {
+        return rollupFile.exists()
+                && (reader().isComplete() || rollupFile.lastModified() > mFile.lastModified());
+    }
+
+    /**
+     * Read the raw records with from <= time < to, unless they are held already.   If there are
+     * more than MAX_RAW_RECORDS of a type, the span read is cut short (see getRawTo()).
+     */
+    public void loadRaw(long from, long to) throws IOException {
+        if (hasRaw(from, to)) {
+            return;
+        }
+        mHrCount = 0;
+        mRrCount = 0;
+        mRawFrom = from;
+        mRawTo = to;
+        try {
+            index().query(reader(), from, to, mRawVisitor);
+        } catch (IOException e) {
+            mRawFrom = 0;
+            mRawTo = 0;
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the raw records held cover from <= time < to.
+     */
+    public boolean hasRaw(long from, long to) {
+        return from >= mRawFrom && to <= mRawTo;
+    }
+
+    public long getRawFrom() {
+        return mRawFrom;
+    }
+
+    public long getRawTo() {
+        return mRawTo;
+    }
+
+    public int getRawHrCount() {
+        return mHrCount;
+    }
+
+    public long getRawHrTime(int i) {
+        return mHrTimes[i];
+    }
+
+    public int getRawHr(int i) {
+        return mHr[i];
+    }
+
+    public int getRawRrCount() {
+        return mRrCount;
+    }
+
+    public long getRawRrTime(int i) {
+        return mRrTimes[i];
+    }
+
+    public int getRawRr(int i) {
+        return mRr[i];
+    }
+
+    public void close() throws IOException {
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+    }
+
+    private SessionReader reader() throws IOException {
+        if (mReader == null) {
+            mReader = new SessionReader(mFile);
+        }
+        return mReader;
+    }
+
+    private SessionIndex index() throws IOException {
+        if (mIndex == null) {
+            mIndex = SessionIndex.open(reader());
+        }
+        return mIndex;
+    }
+
+    /**
+     * Summarise a night from its header and hourly rollups - a few hundred bytes, so a long list
+     * of nights can be summarised quickly.   A night that was not closed cleanly is read in full
+     * the first time (see getTier()).   Errors are reported in the summary rather than thrown.
+     */
+    public static Summary readSummary(File sessionFile) {
+        Summary s = new Summary();
+        s.mFile = sessionFile;
+        NightDetail night = new NightDetail(sessionFile);
+        try {
+            SessionReader reader = night.reader();
+            s.mStart = reader.getStartTime();
+            s.mEnd = reader.getEndTime();
+            Rollup hours = night.getTier(RollupEngine.TIER_HOUR);
+            long count = 0;
+            double sum = 0;
+            for (int i = 0; i < hours.size(); i++) {
+                int n = hours.getCount(i);
+                sum += (double) hours.getMean(i) * n;
+                count += n;
+                s.mMinHr = i == 0 ? hours.getMin(i) : Math.min(s.mMinHr, hours.getMin(i));
+                s.mMaxHr = Math.max(s.mMaxHr, hours.getMax(i));
+            }
+            s.mMeanHr = count > 0 ? sum / count : 0;
+        } catch (IOException e) {
+            s.mError = e.toString();
+        } finally {
+            try {
+                night.close();
+            } catch (IOException e) {
+                // nothing useful to do.
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,180 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.IOException;
+
+/**
+ * The processing done for every heart rate measurement of a night - the heart rate history,
+ * the rollups, heart rate variability and sleep stage scoring, and (optionally) recording the
+ * data in a session file through a SessionStore.
+ *
+ * This is used by LoggerService for the live night, and can equally be fed from a recorded
+ * session on any JVM.   There must be a single writer thread; the engines may be read from any
+ * thread as described in their own classes.
+ */
+public class NightProcessor {
+    private final HrHistory mHistory = new HrHistory();
+    private final RollupEngine mRollups = new RollupEngine();
+    private final HrvEngine mHrv = new HrvEngine();
+    private final SleepStager mSleepStager;
+    private SessionStore mSessionStore = null;
+    private volatile IOException mStoreError = null;
+    private int mSource = 0;
+
+    public NightProcessor() {
+        this(new HeuristicSleepClassifier());
+    }
+
+    public NightProcessor(SleepStageClassifier classifier) {
+        mSleepStager = new SleepStager(classifier);
+    }
+
+    public HrHistory getHistory() {
+        return mHistory;
+    }
+
+    public RollupEngine getRollups() {
+        return mRollups;
+    }
+
+    public HrvEngine getHrv() {
+        return mHrv;
+    }
+
+    public SleepStager getSleepStager() {
+        return mSleepStager;
+    }
+
+    /**
+     * Set the sensor (source) this night's data comes from, used to tag the connection and
+     * sleep stage records.
+     */
+    public void setSource(int source) {
+        mSource = source;
+    }
+
+    public int getSource() {
+        return mSource;
+    }
+
+    /**
+     * Set the store that the night is recorded to, or null to not record it.
+     */
+    public void setSessionStore(SessionStore store) {
+        mSessionStore = store;
+        mStoreError = null;
+    }
+
+    public SessionStore getSessionStore() {
+        return mSessionStore;
+    }
+
+    /**
+     * @return the error from the last write to the session store, or null if it succeeded (or
+     * nothing has been written).   May be read from any thread.
+     */
+    public IOException getStoreError() {
+        return mStoreError;
+    }
+
+    /**
+     * Discard everything, ready for a new night.   Call it on the thread that adds the data, or
+     * while nothing is being added (e.g. before the processing thread is started).
+     */
+    public void clear() {
+        mHistory.clear();
+        mRollups.clear();
+        mHrv.clear();
+        mSleepStager.clear();
+    }
+
+    /**
+     * Process a heart rate measurement.   If writing it to the session store fails, the exception
+     * is re-thrown and held (see getStoreError()) until a write succeeds - the store is kept, and
+     * the records it still holds are written with the next commit, so recording resumes once
+     * the storage recovers (e.g. space is freed).   Records that do not fit in the store's batch
+     * meanwhile are counted in the session header (see SessionStore).   The analysis carries on
+     * regardless.
+     */
+    public void addMeasurement(HrmMeasurement measurement) throws IOException {
+        mHistory.add(measurement);
+        mRollups.add(measurement.mTimestamp, measurement.mHeartRate);
+        for (int i = 0; i < measurement.mRrCount; i++) {
+            mHrv.add(measurement.getRrBeatTime(i), measurement.getRrIntervalMs(i));
+        }
+        updateSleepStages();
+        if (mSessionStore != null) {
+            try {
+                mSessionStore.add(measurement);
+            } catch (IOException e) {
+                mStoreError = e;
+                throw e;
+            }
+            storeOk();
+        }
+    }
+
+    /**
+     * Record a change of the sensor connection state (1 connected, 0 disconnected).
+     */
+    public void addConnection(long time, int state) throws IOException {
+        writeRecord(time, SessionFile.TYPE_CONNECTION, state);
+    }
+
+    /**
+     * Commit the records batched in the session store if its durability policy says they are due
+     * - call this periodically, so they are committed even if no more data arrives.
+     *
+     * @param now - the wall clock time (ms since epoch).
+     */
+    public void commitIfDue(long now) throws IOException {
+        if (mSessionStore != null) {
+            try {
+                mSessionStore.commitIfDue(now);
+            } catch (IOException e) {
+                mStoreError = e;
+                throw e;
+            }
+            storeOk();
+        }
+    }
+
+    /**
+     * Complete the last epoch of the night so that it is scored (and recorded).
+     */
+    public void finish() throws IOException {
+        mRollups.flush();
+        mHrv.flush();
+        updateSleepStages();
+    }
+
+    /**
+     * Score any newly completed epochs and record their stages in the session file.
+     */
+    private void updateSleepStages() throws IOException {
+        int first = mSleepStager.getStageCount();
+        if (mSleepStager.update(mRollups.getTier(RollupEngine.TIER_EPOCH), mHrv) > 0) {
+            int n = mSleepStager.getStageCount();
+            for (int i = first; i < n; i++) {
+                writeRecord(mSleepStager.getStageStart(i), SessionFile.TYPE_SLEEP_STAGE, mSleepStager.getStage(i));
+            }
+        }
+    }
+
+    private void writeRecord(long time, int type, int value) throws IOException {
+        if (mSessionStore != null) {
+            try {
+                mSessionStore.add(time, type, mSource, 0, value);
+            } catch (IOException e) {
+                mStoreError = e;
+                throw e;
+            }
+            storeOk();
+        }
+    }
+
+    private void storeOk() {
+        if (mStoreError != null) {
+            mStoreError = null;
+        }
+    }
+}
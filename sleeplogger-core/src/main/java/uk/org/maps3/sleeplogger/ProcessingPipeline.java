@@ -0,0 +1,384 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the processing of heart rate data off the threads that deliver it (e.g. the Bluetooth
+ * binder threads) onto a single dedicated processing thread.
+ *
+ * Each source is given an Input (see addInput()) to use as its listener.   The Input only copies
+ * the event into that source's bounded MeasurementQueue and returns; the processing thread takes
+ * events from all the queues, parses raw packets, and passes them to the source's downstream
+ * listener, which does the analytics, storage and fan-out.   A slow downstream therefore does not
+ * stall the delivery of notifications unless it falls so far behind that a queue fills - the
+ * source then waits for space (see MeasurementQueue), so nothing is lost.
+ *
+ * If an EnergyPolicy is set and is batching, a source does not wake the processing thread for
+ * each event; the thread sleeps until the next wake window and processes everything queued then
+ * (or is woken early if a queue is half full, or when batching is switched off - so events
+ * put off are processed as soon as somebody wants them promptly).
+ *
+ * The batch listener is run after each batch, so work such as UI updates can be done once per
+ * batch rather than once per event.   The tick listener is run each time the thread wakes, with
+ * or without events, for periodic work such as committing a session that has stopped receiving
+ * data.
+ *
+ * Queue depths and the latency of each stage (waiting in the queue, and processing) are
+ * recorded and may be read from any thread.
+ */
+public class ProcessingPipeline implements Runnable {
+    private final static long IDLE_PARK_NANOS = 1000000000L;  // Wake at least this often when idle.
+
+    private final int mQueueCapacity;
+    private volatile Input[] mInputs = new Input[0];
+    private volatile Thread mThread = null;
+    private volatile boolean mRunning = false;
+    private volatile boolean mWaiting = false;      // The processing thread is (about to be) parked.
+    private final HrmMeasurement mMeasurement = new HrmMeasurement();   // Parsed packets.
+    private final MeasurementQueue.Entry mEntry = new MeasurementQueue.Entry();  // The event being processed.
+    private volatile EnergyPolicy mEnergyPolicy = null;
+    private volatile Runnable mBatchListener = null;
+    private volatile Runnable mTickListener = null;
+
+    private volatile long mProcessed = 0;
+    private volatile long mInvalidPackets = 0;
+    private volatile long mTotalWaitNanos = 0;
+    private volatile long mMaxWaitNanos = 0;
+    private volatile long mTotalProcessNanos = 0;
+    private volatile long mMaxProcessNanos = 0;
+
+    private final Runnable mWakeNow = new Runnable() {
+        @Override
+        public void run() {
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    };
+
+    /**
+     * The listener a source delivers to.   Each Input must only be used by one source, and that
+     * source must deliver from one thread at a time.
+     */
+    public class Input implements HrmPacketListener {
+        private final int mSource;
+        private final MeasurementQueue mQueue;
+        private final BleHrmMonitorListener mDownstream;
+
+        Input(int source, BleHrmMonitorListener downstream) {
+            mSource = source;
+            mQueue = new MeasurementQueue(mQueueCapacity);
+            mDownstream = downstream;
+        }
+
+        public MeasurementQueue getQueue() {
+            return mQueue;
+        }
+
+        @Override
+        public void onHrmPacketReceived(byte[] value, long timestamp) {
+            mQueue.offerPacket(value, timestamp);
+            wake(mQueue);
+        }
+
+        @Override
+        public void onHrmMeasurementReceived(HrmMeasurement measurement) {
+            mQueue.offerMeasurement(measurement);
+            wake(mQueue);
+        }
+
+        @Override
+        public void onHrmDataReceived(int type, int data, String msg) {
+            mQueue.offerMessage(type, data, msg);
+            wake(mQueue);
+        }
+    }
+
+    public ProcessingPipeline() {
+        this(MeasurementQueue.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity - the size of each source's queue.
+     */
+    public ProcessingPipeline(int queueCapacity) {
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Batch processing into the policy's wake windows while it is batching, and count the
+     * processing thread's wake-ups in it.   May be null.   The pipeline becomes the policy's
+     * batching listener, so that switching batching off wakes the processing thread at once.
+     */
+    public void setEnergyPolicy(EnergyPolicy policy) {
+        EnergyPolicy old = mEnergyPolicy;
+        if (old != null && old != policy) {
+            old.setBatchingListener(null);
+        }
+        mEnergyPolicy = policy;
+        if (policy != null) {
+            policy.setBatchingListener(mWakeNow);
+        }
+        mWakeNow.run();
+    }
+
+    /**
+     * Set a task to run on the processing thread after each batch of events is processed.
+     */
+    public void setBatchListener(Runnable listener) {
+        mBatchListener = listener;
+    }
+
+    /**
+     * Set a task to run on the processing thread each time it wakes - after each batch of events,
+     * and at least once a second (or once per wake window while batching) when there are none.
+     */
+    public void setTickListener(Runnable listener) {
+        mTickListener = listener;
+    }
+
+    /**
+     * Add a source.   Events delivered to the returned Input are passed to downstream on the
+     * processing thread; packets and measurements are tagged with source.
+     */
+    public synchronized Input addInput(int source, BleHrmMonitorListener downstream) {
+        Input input = new Input(source, downstream);
+        Input[] inputs = Arrays.copyOf(mInputs, mInputs.length + 1);
+        inputs[inputs.length - 1] = input;
+        mInputs = inputs;
+        return input;
+    }
+
+    public int getInputCount() {
+        return mInputs.length;
+    }
+
+    public Input getInput(int i) {
+        return mInputs[i];
+    }
+
+    /**
+     * Start the processing thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "ProcessingPipeline");
+        mThread.start();
+    }
+
+    /**
+     * Process everything already queued, then stop the processing thread.   The sources should
+     * be stopped first.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean running = mRunning;
+            if (drain() > 0) {
+                Runnable listener = mBatchListener;
+                if (listener != null) {
+                    listener.run();
+                }
+                tick();
+                continue;
+            }
+            if (!running) {
+                // Everything queued before stop() has now been processed.
+                break;
+            }
+            EnergyPolicy policy = mEnergyPolicy;
+            long parkNanos = IDLE_PARK_NANOS;
+            if (policy != null && policy.isBatching()) {
+                long now = System.currentTimeMillis();
+                parkNanos = (policy.nextWakeWindow(now) - now) * 1000000L;
+            }
+            mWaiting = true;
+            // Re-check after announcing that we are waiting, so a wake() can not be missed.
+            if (needsWake()) {
+                mWaiting = false;
+                continue;
+            }
+            LockSupport.parkNanos(this, parkNanos);
+            mWaiting = false;
+            if (policy != null) {
+                policy.countWakeup();
+            }
+            tick();
+        }
+    }
+
+    private void tick() {
+        Runnable listener = mTickListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Process every queued event.
+     *
+     * @return the number of events processed.
+     */
+    private int drain() {
+        Input[] inputs = mInputs;
+        int n = 0;
+        for (Input input : inputs) {
+            while (input.mQueue.poll(mEntry)) {
+                process(input, mEntry);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private void process(Input input, MeasurementQueue.Entry e) {
+        long start = System.nanoTime();
+        long wait = start - e.mEnqueueNanos;
+        switch (e.mKind) {
+            case MeasurementQueue.KIND_PACKET:
+                mMeasurement.mTimestamp = e.mTimestamp;
+                mMeasurement.mSource = input.mSource;
+                if (HrmMeasurementParser.parse(e.mPacket, 0, e.mPacketLength, mMeasurement)) {
+                    input.mDownstream.onHrmMeasurementReceived(mMeasurement);
+                } else {
+                    mInvalidPackets++;
+                }
+                break;
+            case MeasurementQueue.KIND_MEASUREMENT:
+                e.mMeasurement.mSource = input.mSource;
+                input.mDownstream.onHrmMeasurementReceived(e.mMeasurement);
+                break;
+            case MeasurementQueue.KIND_MESSAGE:
+                input.mDownstream.onHrmDataReceived(e.mType, e.mData, e.mMsg);
+                e.mMsg = null;
+                break;
+        }
+        long elapsed = System.nanoTime() - start;
+        mProcessed++;
+        mTotalWaitNanos += wait;
+        if (wait > mMaxWaitNanos) {
+            mMaxWaitNanos = wait;
+        }
+        mTotalProcessNanos += elapsed;
+        if (elapsed > mMaxProcessNanos) {
+            mMaxProcessNanos = elapsed;
+        }
+    }
+
+    private boolean needsWake() {
+        for (Input input : mInputs) {
+            if (needsWake(input.mQueue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the processing thread should be woken for the events in queue now,
+     * rather than at the next wake window.
+     */
+    private boolean needsWake(MeasurementQueue queue) {
+        EnergyPolicy policy = mEnergyPolicy;
+        if (policy != null && policy.isBatching()) {
+            return queue.size() >= queue.getCapacity() / 2;
+        }
+        return queue.size() > 0;
+    }
+
+    private void wake(MeasurementQueue queue) {
+        if (mWaiting && needsWake(queue)) {
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * @return the number of events waiting in all the queues.
+     */
+    public int getQueueDepth() {
+        int n = 0;
+        for (Input input : mInputs) {
+            n += input.mQueue.size();
+        }
+        return n;
+    }
+
+    /**
+     * @return the largest depth any single queue has reached.
+     */
+    public int getMaxQueueDepth() {
+        int n = 0;
+        for (Input input : mInputs) {
+            n = Math.max(n, input.mQueue.getMaxDepth());
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of times a source had to wait for space in its queue.
+     */
+    public long getBlockedCount() {
+        long n = 0;
+        for (Input input : mInputs) {
+            n += input.mQueue.getBlockedCount();
+        }
+        return n;
+    }
+
+    public long getProcessedCount() {
+        return mProcessed;
+    }
+
+    public long getInvalidPacketCount() {
+        return mInvalidPackets;
+    }
+
+    /**
+     * @return the mean time (ns) events waited in a queue before processing started.
+     */
+    public long getMeanWaitNanos() {
+        long n = mProcessed;
+        return n > 0 ? mTotalWaitNanos / n : 0;
+    }
+
+    public long getMaxWaitNanos() {
+        return mMaxWaitNanos;
+    }
+
+    /**
+     * @return the mean time (ns) taken to process an event (parsing, analytics, storage and fan-out).
+     */
+    public long getMeanProcessNanos() {
+        long n = mProcessed;
+        return n > 0 ? mTotalProcessNanos / n : 0;
+    }
+
+    public long getMaxProcessNanos() {
+        return mMaxProcessNanos;
+    }
+}
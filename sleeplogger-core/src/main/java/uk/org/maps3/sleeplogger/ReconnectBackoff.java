@@ -0,0 +1,64 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.Random;
+
+/**
+ * Chooses how long to wait before each attempt to reconnect to a sensor - jittered exponential
+ * backoff.   The n'th attempt since the last reset() waits a random time between half and all of
+ * min(base * 2^n, max), so the first retry is quick (the strap usually comes back within seconds
+ * when it has only slipped), repeated failures do not keep the radio busy, and several sensors
+ * that dropped out together do not all retry at the same moment.
+ * Thread safe.
+ */
+public class ReconnectBackoff {
+    public final static long DEFAULT_BASE_MS = 1000;
+    public final static long DEFAULT_MAX_MS = 60000;
+
+    private final long mBaseMs;
+    private final long mMaxMs;
+    private final Random mRandom;
+    private int mAttempts = 0;
+
+    public ReconnectBackoff() {
+        this(DEFAULT_BASE_MS, DEFAULT_MAX_MS, new Random());
+    }
+
+    /**
+     * @param baseMs - the longest wait before the first attempt.
+     * @param maxMs  - the longest wait before any attempt.
+     * @param random - the source of the jitter.
+     */
+    public ReconnectBackoff(long baseMs, long maxMs, Random random) {
+        mBaseMs = baseMs;
+        mMaxMs = maxMs;
+        mRandom = random;
+    }
+
+    /**
+     * @return the time (ms) to wait before the next attempt, and count the attempt.
+     */
+    public synchronized long nextDelay() {
+        long ceiling = mMaxMs;
+        int shift = mAttempts;
+        if (shift < 62 && mBaseMs <= (mMaxMs >> shift)) {
+            ceiling = mBaseMs << shift;
+        }
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Start again from the shortest delay - call this once a connection has succeeded.
+     */
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+
+    /**
+     * @return the number of attempts since the last reset().
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,125 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A HeartRateSource that replays a recorded session file on a background thread, at real time
+ * (speed 1) or accelerated (e.g. 100 or 1000 times real time, or 0 for as fast as possible).
+ *
+ * Each heart rate record and the RR interval records that follow it are delivered as one
+ * HrmMeasurement.   Timestamps keep their spacing in the recording but are shifted so the
+ * replayed night starts when start() is called, so the data always looks like 1x to the
+ * listener - only the wall clock runs faster.
+ */
+public class ReplayHeartRateSource implements HeartRateSource, Runnable {
+    private final File mFile;
+    private final BleHrmMonitorListener mCallback;
+    private final double mSpeed;
+    private final HrmMeasurement mMeasurement = new HrmMeasurement();
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+    private volatile long mPacketCount = 0;
+
+    /**
+     * @param file     - the session file to replay.
+     * @param speed    - replay speed relative to real time, or 0 to replay as fast as possible.
+     * @param callback - the listener to send the data to.
+     */
+    public ReplayHeartRateSource(File file, double speed, BleHrmMonitorListener callback) {
+        mFile = file;
+        mSpeed = speed;
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "ReplayHeartRateSource");
+        mThread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of measurements delivered so far.
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    @Override
+    public void run() {
+        SessionReader reader = null;
+        String status = "Disconnected";
+        try {
+            reader = new SessionReader(mFile);
+            mCallback.onHrmDataReceived(TYPE_CONNECTION, 1, "Connected");
+            mCallback.onHrmDataReceived(TYPE_READY, 1, "Ready - replaying " + mFile.getName());
+            long wallStart = System.currentTimeMillis();
+            long dataStart = Long.MIN_VALUE;
+            MeasurementReader measurements = new MeasurementReader(reader);
+            int type;
+            while (mRunning && (type = measurements.next(mMeasurement)) != 0) {
+                long t = measurements.getTime();
+                if (dataStart == Long.MIN_VALUE) {
+                    dataStart = t;
+                }
+                pace(wallStart, t - dataStart);
+                if (type == SessionFile.TYPE_HR) {
+                    mMeasurement.mTimestamp = wallStart + (t - dataStart);
+                    mCallback.onHrmMeasurementReceived(mMeasurement);
+                    mPacketCount++;
+                } else {
+                    int state = measurements.getConnectionState();
+                    mCallback.onHrmDataReceived(TYPE_CONNECTION, state, state != 0 ? "Connected" : "Disconnected");
+                }
+            }
+        } catch (IOException e) {
+            status = "Disconnected - error reading " + mFile + " - " + e.toString();
+        } catch (InterruptedException e) {
+            // stop() was called.
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing useful to do.
+                }
+            }
+            mCallback.onHrmDataReceived(TYPE_CONNECTION, 0, status);
+        }
+    }
+
+    /**
+     * Wait until the wall clock reaches the point in the replay for data offset ms.
+     */
+    private void pace(long wallStart, long offset) throws InterruptedException {
+        if (mSpeed <= 0) {
+            return;
+        }
+        long wait = wallStart + (long) (offset / mSpeed) - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+}
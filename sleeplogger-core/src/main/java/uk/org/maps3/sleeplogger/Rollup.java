@@ -0,0 +1,184 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics (count, min, max, mean, standard deviation) of a sample stream over fixed
+ * length time buckets, built incrementally in O(1) per sample.   Buckets are aligned to multiples
+ * of the period since the epoch, and only buckets that contain samples are stored.
+ *
+ * There must be a single writer thread.   Other threads may read completed buckets without
+ * locking provided they call size() first and only read buckets below the value it returned.
+ */
+public class Rollup {
+    private final int mPeriodMs;
+
+    private volatile int mSize = 0;     // Published after the bucket arrays are written.
+    private long[] mStart;
+    private int[] mCount;
+    private int[] mMin;
+    private int[] mMax;
+    private float[] mMean;
+    private float[] mStdDev;
+
+    // The bucket being accumulated (Welford's running mean and sum of squared differences).
+    private long mCurStart = Long.MIN_VALUE;
+    private int mCurCount = 0;
+    private int mCurMin;
+    private int mCurMax;
+    private double mCurMean;
+    private double mCurM2;
+
+    public Rollup(int periodMs) {
+        this(periodMs, 64);
+    }
+
+    public Rollup(int periodMs, int initialCapacity) {
+        mPeriodMs = periodMs;
+        initialCapacity = Math.max(initialCapacity, 1);
+        mStart = new long[initialCapacity];
+        mCount = new int[initialCapacity];
+        mMin = new int[initialCapacity];
+        mMax = new int[initialCapacity];
+        mMean = new float[initialCapacity];
+        mStdDev = new float[initialCapacity];
+    }
+
+    public int getPeriodMs() {
+        return mPeriodMs;
+    }
+
+    /**
+     * Add a sample at time t (ms).   Samples should arrive in time order - a sample older than the
+     * current bucket is added to the current bucket.
+     */
+    public void add(long t, int value) {
+        long start = t - floorMod(t, mPeriodMs);
+        if (start > mCurStart) {
+            flush();
+            mCurStart = start;
+        }
+        if (mCurCount == 0) {
+            mCurMin = value;
+            mCurMax = value;
+            mCurMean = 0;
+            mCurM2 = 0;
+        } else {
+            if (value < mCurMin) {
+                mCurMin = value;
+            }
+            if (value > mCurMax) {
+                mCurMax = value;
+            }
+        }
+        mCurCount++;
+        double delta = value - mCurMean;
+        mCurMean += delta / mCurCount;
+        mCurM2 += delta * (value - mCurMean);
+    }
+
+    /**
+     * Complete the current bucket (if it holds any samples), making it visible to readers.
+     */
+    public void flush() {
+        if (mCurCount > 0) {
+            double sd = mCurCount > 1 ? Math.sqrt(mCurM2 / (mCurCount - 1)) : 0;
+            addBucket(mCurStart, mCurCount, mCurMin, mCurMax, (float) mCurMean, (float) sd);
+            mCurCount = 0;
+        }
+    }
+
+    /**
+     * Append a completed bucket (used when reading rollups back from a file).
+     */
+    public void addBucket(long start, int count, int min, int max, float mean, float stdDev) {
+        int n = mSize;
+        if (n == mStart.length) {
+            grow(n * 2);
+        }
+        mStart[n] = start;
+        mCount[n] = count;
+        mMin[n] = min;
+        mMax[n] = max;
+        mMean[n] = mean;
+        mStdDev[n] = stdDev;
+        mSize = n + 1;
+    }
+
+    /**
+     * Discard all buckets (writer thread only).
+     */
+    public void clear() {
+        mSize = 0;
+        mCurCount = 0;
+        mCurStart = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the number of completed buckets.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long getStart(int i) {
+        return mStart[i];
+    }
+
+    public int getCount(int i) {
+        return mCount[i];
+    }
+
+    public int getMin(int i) {
+        return mMin[i];
+    }
+
+    public int getMax(int i) {
+        return mMax[i];
+    }
+
+    public float getMean(int i) {
+        return mMean[i];
+    }
+
+    public float getStdDev(int i) {
+        return mStdDev[i];
+    }
+
+    /**
+     * @return the first completed bucket that ends after time t, or size() if there is none.
+     */
+    public int findBucket(long t) {
+        int lo = 0;
+        int hi = mSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mStart[mid] + mPeriodMs <= t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void grow(int n) {
+        long[] start = Arrays.copyOf(mStart, n);
+        int[] count = Arrays.copyOf(mCount, n);
+        int[] min = Arrays.copyOf(mMin, n);
+        int[] max = Arrays.copyOf(mMax, n);
+        float[] mean = Arrays.copyOf(mMean, n);
+        float[] sd = Arrays.copyOf(mStdDev, n);
+        mStart = start;
+        mCount = count;
+        mMin = min;
+        mMax = max;
+        mMean = mean;
+        mStdDev = sd;
+    }
+
+    private static long floorMod(long t, int period) {
+        long m = t % period;
+        return m < 0 ? m + period : m;
+    }
+}
@@ -0,0 +1,188 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental heart rate rollups at several resolutions - 1 second, the 30 second sleep scoring
+ * epoch, 5 minutes and 1 hour - so that summaries and charts of a night (or of many nights)
+ * never need the raw data.
+ *
+ * The rollups are saved next to the session file (see rollupFile()).  Rollup file format:
+ *   int MAGIC, short VERSION, short tier count, then for each tier:
+ *     int period (ms), int bucket count, long file offset of the tier's buckets
+ *   followed by the buckets of each tier:
+ *     long start, int count, short min, short max, float mean, float standard deviation
+ * readTier() reads a single tier, so an overview of a month of nights only reads a few kB per night.
+ */
+public class RollupEngine {
+    public final static int MAGIC = 0x53525550;  // "SRUP"
+    public final static short VERSION = 1;
+    public final static String EXTENSION = ".rollup";
+
+    public final static int TIER_1S = 0;
+    public final static int TIER_EPOCH = 1;
+    public final static int TIER_5MIN = 2;
+    public final static int TIER_HOUR = 3;
+    public final static int[] TIER_PERIODS_MS = {1000, 30000, 300000, 3600000};
+
+    private final static int TIER_DIR_SIZE = 16;
+    private final static int BUCKET_SIZE = 24;
+    private final static int HEADER_SIZE = 8;
+
+    private final Rollup[] mTiers;
+
+    public RollupEngine() {
+        mTiers = new Rollup[TIER_PERIODS_MS.length];
+        for (int i = 0; i < mTiers.length; i++) {
+            // Size the arrays for a 12 hour night so they do not grow while logging.
+            mTiers[i] = new Rollup(TIER_PERIODS_MS[i], (int) (12 * 3600000L / TIER_PERIODS_MS[i]) + 1);
+        }
+    }
+
+    private RollupEngine(Rollup[] tiers) {
+        mTiers = tiers;
+    }
+
+    /**
+     * @return the rollup file that belongs with a session file.
+     */
+    public static File rollupFile(File sessionFile) {
+        String name = sessionFile.getName();
+        if (name.endsWith(SessionFile.EXTENSION)) {
+            name = name.substring(0, name.length() - SessionFile.EXTENSION.length());
+        }
+        return new File(sessionFile.getParentFile(), name + EXTENSION);
+    }
+
+    /**
+     * Add a heart rate sample to every tier.
+     */
+    public void add(long t, int hr) {
+        for (int i = 0; i < mTiers.length; i++) {
+            mTiers[i].add(t, hr);
+        }
+    }
+
+    /**
+     * Complete the current bucket of every tier (at the end of a session).
+     */
+    public void flush() {
+        for (int i = 0; i < mTiers.length; i++) {
+            mTiers[i].flush();
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < mTiers.length; i++) {
+            mTiers[i].clear();
+        }
+    }
+
+    public int getTierCount() {
+        return mTiers.length;
+    }
+
+    public Rollup getTier(int tier) {
+        return mTiers[tier];
+    }
+
+    /**
+     * Write all tiers to a file.
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(mTiers.length);
+            long offset = HEADER_SIZE + (long) mTiers.length * TIER_DIR_SIZE;
+            for (int i = 0; i < mTiers.length; i++) {
+                int n = mTiers[i].size();
+                out.writeInt(mTiers[i].getPeriodMs());
+                out.writeInt(n);
+                out.writeLong(offset);
+                offset += (long) n * BUCKET_SIZE;
+            }
+            for (int i = 0; i < mTiers.length; i++) {
+                Rollup r = mTiers[i];
+                int n = r.size();
+                for (int b = 0; b < n; b++) {
+                    out.writeLong(r.getStart(b));
+                    out.writeInt(r.getCount(b));
+                    out.writeShort(r.getMin(b));
+                    out.writeShort(r.getMax(b));
+                    out.writeFloat(r.getMean(b));
+                    out.writeFloat(r.getStdDev(b));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a single tier from a rollup file written by write().
+     */
+    public static Rollup readTier(File file, int tier) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+            raf.readFully(hdr.array());
+            if (hdr.getInt(0) != MAGIC || hdr.getShort(4) > VERSION) {
+                throw new IOException("Not a rollup file - " + file);
+            }
+            if (tier < 0 || tier >= hdr.getShort(6)) {
+                throw new IOException("Rollup file " + file + " has no tier " + tier);
+            }
+            ByteBuffer dir = ByteBuffer.allocate(TIER_DIR_SIZE);
+            raf.seek(HEADER_SIZE + (long) tier * TIER_DIR_SIZE);
+            raf.readFully(dir.array());
+            int period = dir.getInt(0);
+            int n = dir.getInt(4);
+            ByteBuffer buf = ByteBuffer.allocate(n * BUCKET_SIZE);
+            raf.seek(dir.getLong(8));
+            raf.readFully(buf.array());
+            Rollup rollup = new Rollup(period, n);
+            for (int b = 0; b < n; b++) {
+                int p = b * BUCKET_SIZE;
+                rollup.addBucket(buf.getLong(p), buf.getInt(p + 8), buf.getShort(p + 12),
+                        buf.getShort(p + 14), buf.getFloat(p + 16), buf.getFloat(p + 20));
+            }
+            return rollup;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read all tiers from a rollup file written by write().
+     */
+    public static RollupEngine read(File file) throws IOException {
+        Rollup[] tiers = new Rollup[TIER_PERIODS_MS.length];
+        for (int i = 0; i < tiers.length; i++) {
+            tiers[i] = readTier(file, i);
+        }
+        return new RollupEngine(tiers);
+    }
+
+    /**
+     * Build the rollups of a recorded session from its heart rate records.
+     */
+    public static RollupEngine build(SessionReader reader) throws IOException {
+        RollupEngine engine = new RollupEngine();
+        reader.seekBlock(0);
+        while (reader.next()) {
+            if (reader.getType() == SessionFile.TYPE_HR) {
+                engine.add(reader.getTime(), reader.getValue());
+            }
+        }
+        engine.flush();
+        return engine;
+    }
+}
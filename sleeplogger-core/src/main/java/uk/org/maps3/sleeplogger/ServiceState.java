@@ -0,0 +1,181 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The state of the logging service - running, connected, ready, the time of the last sample, the
+ * number of samples, the session files being written and any error writing them - held in the
+ * service's process so that activities can read it directly rather than asking the system which
+ * services are running.
+ *
+ * Every change increments the version, so a reader can tell cheaply whether anything has changed
+ * (getVersion()), and snapshot() gives a consistent copy of all the fields.   Listeners are told
+ * when running, connected, ready or the storage error change (not for every sample), on the
+ * thread that changed them - so they should only post the work they need to their own thread.
+ * Thread safe.
+ */
+public class ServiceState {
+    /**
+     * A copy of the state at one version.
+     */
+    public static class Snapshot {
+        public long mVersion;
+        public boolean mRunning;
+        public boolean mConnected;
+        public boolean mReady;
+        public long mLastSampleTime;    // 0 if there has not been a sample.
+        public long mSampleCount;
+        public String mStorageError;    // null if the session files are being written.
+    }
+
+    /**
+     * Told when running, connected, ready or the storage error change.
+     */
+    public interface Listener {
+        void onServiceStateChanged(ServiceState state);
+    }
+
+    private volatile long mVersion = 0;
+    private volatile boolean mRunning = false;
+    private volatile boolean mConnected = false;
+    private volatile boolean mReady = false;
+    private long mLastSampleTime = 0;
+    private long mSampleCount = 0;
+    private volatile String mStorageError = null;
+    private volatile File[] mSessionFiles = new File[0];
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * @return a description of the error writing the session files, or null if there is none.
+     */
+    public String getStorageError() {
+        return mStorageError;
+    }
+
+    /**
+     * @return true if file is a session file the service is writing now.
+     */
+    public boolean isSessionFile(File file) {
+        for (File f : mSessionFiles) {
+            if (f.equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the session files being written (an empty array once they are closed).
+     */
+    public synchronized void setSessionFiles(File[] files) {
+        mSessionFiles = files.clone();
+        mVersion++;
+    }
+
+    /**
+     * Copy the current state into snapshot (so it can be reused), and return it.
+     */
+    public synchronized Snapshot snapshot(Snapshot snapshot) {
+        snapshot.mVersion = mVersion;
+        snapshot.mRunning = mRunning;
+        snapshot.mConnected = mConnected;
+        snapshot.mReady = mReady;
+        snapshot.mLastSampleTime = mLastSampleTime;
+        snapshot.mSampleCount = mSampleCount;
+        snapshot.mStorageError = mStorageError;
+        return snapshot;
+    }
+
+    /**
+     * The service has started (true) or stopped (false).   Stopping also clears the connection state.
+     */
+    public void setRunning(boolean running) {
+        synchronized (this) {
+            if (running == mRunning) {
+                return;
+            }
+            mRunning = running;
+            if (running) {
+                mLastSampleTime = 0;
+                mSampleCount = 0;
+                mStorageError = null;
+            } else {
+                mConnected = false;
+                mReady = false;
+            }
+            mVersion++;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Set the connection state - a sensor cannot be ready (sending data) unless it is connected,
+     * so ready is only kept while connected is true.
+     */
+    public void setConnection(boolean connected, boolean ready) {
+        ready &= connected;
+        synchronized (this) {
+            if (connected == mConnected && ready == mReady) {
+                return;
+            }
+            mConnected = connected;
+            mReady = ready;
+            mVersion++;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Set (or, with null, clear) the error writing the session files.
+     */
+    public void setStorageError(String error) {
+        synchronized (this) {
+            if (error == null ? mStorageError == null : error.equals(mStorageError)) {
+                return;
+            }
+            mStorageError = error;
+            mVersion++;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Count a sample received at time t.
+     */
+    public synchronized void addSample(long t) {
+        mLastSampleTime = t;
+        mSampleCount++;
+        mVersion++;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : mListeners) {
+            listener.onServiceStateChanged(this);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package uk.org.maps3.sleeplogger;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Constants and helpers describing the binary session (.slog) file format written by
+ * SessionWriter and read by SessionReader.
+ *
+ * The file is a sequence of BLOCK_SIZE byte blocks.  Block 0 is the file header:
+ *   0  int   MAGIC
+ *   4  short VERSION
+ *   6  short RECORD_SIZE
+ *   8  int   BLOCK_SIZE
+ *   12 int   RECORDS_PER_BLOCK
+ *   16 long  start time (ms since epoch)
+ *   24 long  end time (ms), 0 if the session was not closed cleanly
+ *   32 long  total record count, 0 if the session was not closed cleanly
+ *   40..     reserved (zero)
+ *   64 long  times the sensor had to wait because the queue feeding the session was full
+ *   72 long  records lost because the session file could not be written (see SessionStore)
+ *   80..     reserved (zero)
+ * Each following block holds up to RECORDS_PER_BLOCK fixed size records:
+ *   0  int   block sequence number (1 for the first data block)
+ *   4  short record count
+ *   6  short flags (BLOCK_SEALED once the block is complete and its CRC written)
+ *   8  records, RECORD_SIZE bytes each
+ *   BLOCK_CRC_OFFSET int CRC32 of bytes 0 .. 8 + count * RECORD_SIZE (with the flags as sealed)
+ * Each record is:
+ *   0  long  time (ms since epoch)
+ *   8  byte  record type (TYPE_*)
+ *   9  byte  source - the sensor the record came from (0 for the first or only sensor)
+ *   10 short flags (FLAG_*)
+ *   12 int   value (bpm for TYPE_HR, ms for TYPE_RR, state for TYPE_CONNECTION, stage for TYPE_SLEEP_STAGE)
+ * All values are big endian.
+ */
+public class SessionFile {
+    public final static int MAGIC = 0x534c4f47;  // "SLOG"
+    public final static short VERSION = 1;
+    public final static String EXTENSION = ".slog";
+
+    public final static int BLOCK_SIZE = 4096;
+    public final static int HEADER_SIZE = BLOCK_SIZE;
+    public final static int BLOCK_HEADER_SIZE = 8;
+    public final static int RECORD_SIZE = 16;
+    public final static int RECORDS_PER_BLOCK = 255;
+    public final static int BLOCK_CRC_OFFSET = BLOCK_HEADER_SIZE + RECORDS_PER_BLOCK * RECORD_SIZE;
+
+    public final static int HDR_MAGIC = 0;
+    public final static int HDR_VERSION = 4;
+    public final static int HDR_RECORD_SIZE = 6;
+    public final static int HDR_BLOCK_SIZE = 8;
+    public final static int HDR_RECORDS_PER_BLOCK = 12;
+    public final static int HDR_START_TIME = 16;
+    public final static int HDR_END_TIME = 24;
+    public final static int HDR_RECORD_COUNT = 32;
+    public final static int HDR_BLOCKED = 64;
+    public final static int HDR_LOST = 72;
+
+    public final static int BLK_SEQ = 0;
+    public final static int BLK_COUNT = 4;
+    public final static int BLK_FLAGS = 6;
+    public final static short BLOCK_SEALED = 0x0001;
+
+    public final static int TYPE_HR = 1;
+    public final static int TYPE_RR = 2;
+    public final static int TYPE_CONNECTION = 3;
+    public final static int TYPE_SLEEP_STAGE = 4;   // time = epoch start, value = SleepStageClassifier.STAGE_*
+
+    public final static int FLAG_NO_CONTACT = 0x0001;  // Sensor reported that it has lost skin contact.
+
+    private SessionFile() {
+    }
+
+    /**
+     * @return the byte offset in the file of data block n (0 based).
+     */
+    public static long blockOffset(int n) {
+        return HEADER_SIZE + (long) n * BLOCK_SIZE;
+    }
+
+    /**
+     * Calculate the CRC of the block held in buf (with a backing array) starting at buf offset start.
+     */
+    public static int blockCrc(CRC32 crc, ByteBuffer buf, int start) {
+        int count = buf.getShort(start + BLK_COUNT);
+        crc.reset();
+        crc.update(buf.array(), buf.arrayOffset() + start, BLOCK_HEADER_SIZE + count * RECORD_SIZE);
+        return (int) crc.getValue();
+    }
+}
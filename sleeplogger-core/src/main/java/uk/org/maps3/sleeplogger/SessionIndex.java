@@ -0,0 +1,341 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A sparse index of a session file - one entry per data block giving its time span, file offset
+ * and heart rate range - so that a time range can be found with a binary search, and blocks
+ * that can not hold matching heart rates skipped without being read.
+ *
+ * Records are not written in time order - RR records carry their (earlier) beat times and sleep
+ * stage records the start of their epoch - so the spans of the blocks overlap, and a later block
+ * may start before an earlier one.   A query therefore reads every block whose own span overlaps
+ * the range asked for, from the first block whose records can reach it (found by a binary search
+ * of the running maximum of the block end times) to the last block that can start before its end
+ * (the running minimum, from the end, of the block start times).
+ *
+ * SessionWriter writes the index next to the session file (see indexFile()) when the session is
+ * closed; build() recreates it from a session that was not closed cleanly.   Index file format:
+ *   int MAGIC, short VERSION, short reserved, int entry count, then for each block:
+ *   long first time, long last time, long byte offset, short min HR, short max HR, int record count
+ * where the first and last times are the earliest and latest record times in the block.   Blocks
+ * without any heart rate records have a min and max HR of -1.
+ */
+public class SessionIndex {
+    public final static int MAGIC = 0x53494458;  // "SIDX"
+    public final static short VERSION = 1;
+    public final static String EXTENSION = ".idx";
+
+    /**
+     * Receives the records found by a query.
+     */
+    public interface RecordVisitor {
+        void onRecord(long time, int type, int flags, int value);
+    }
+
+    private int mSize = 0;
+    private long[] mFirstTime = new long[64];
+    private long[] mLastTime = new long[64];
+    private long[] mOffset = new long[64];
+    private int[] mMinHr = new int[64];
+    private int[] mMaxHr = new int[64];
+    private int[] mRecordCount = new int[64];
+    private long[] mMaxLastTime = new long[64];     // The latest record time in blocks 0 .. i.
+    private long[] mMinFirstTime = new long[0];     // The earliest record time in blocks i .. size() - 1.
+    private int mMinFirstSize = -1;                 // The size() mMinFirstTime was calculated for.
+    private int mBlocksRead = 0;
+
+    /**
+     * @return the index file that belongs with a session file.
+     */
+    public static File indexFile(File sessionFile) {
+        String name = sessionFile.getName();
+        if (name.endsWith(SessionFile.EXTENSION)) {
+            name = name.substring(0, name.length() - SessionFile.EXTENSION.length());
+        }
+        return new File(sessionFile.getParentFile(), name + EXTENSION);
+    }
+
+    /**
+     * Add the entry for the next block.
+     */
+    public void add(long firstTime, long lastTime, long offset, int minHr, int maxHr, int recordCount) {
+        if (mSize == mFirstTime.length) {
+            grow();
+        }
+        mMaxLastTime[mSize] = mSize > 0 ? Math.max(lastTime, mMaxLastTime[mSize - 1]) : lastTime;
+        mFirstTime[mSize] = firstTime;
+        mLastTime[mSize] = lastTime;
+        mOffset[mSize] = offset;
+        mMinHr[mSize] = minHr;
+        mMaxHr[mSize] = maxHr;
+        mRecordCount[mSize] = recordCount;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the earliest record time in the session, or 0 if the index is empty.
+     */
+    public long getStartTime() {
+        return mSize > 0 ? minFirstTimes()[0] : 0;
+    }
+
+    /**
+     * @return the latest record time in the session, or 0 if the index is empty.
+     */
+    public long getEndTime() {
+        return mSize > 0 ? mMaxLastTime[mSize - 1] : 0;
+    }
+
+    /**
+     * @return the earliest record time in block i.
+     */
+    public long getFirstTime(int i) {
+        return mFirstTime[i];
+    }
+
+    /**
+     * @return the latest record time in block i.
+     */
+    public long getLastTime(int i) {
+        return mLastTime[i];
+    }
+
+    public long getOffset(int i) {
+        return mOffset[i];
+    }
+
+    public int getMinHr(int i) {
+        return mMinHr[i];
+    }
+
+    public int getMaxHr(int i) {
+        return mMaxHr[i];
+    }
+
+    public int getRecordCount(int i) {
+        return mRecordCount[i];
+    }
+
+    /**
+     * @return the number of blocks read by the most recent query (for checking how much was skipped).
+     */
+    public int getBlocksRead() {
+        return mBlocksRead;
+    }
+
+    /**
+     * @return the first block that may contain records at or after time, or size() if there is none.
+     */
+    public int findBlock(long time) {
+        int lo = 0;
+        int hi = mSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mMaxLastTime[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Visit every record with from <= time < to.
+     *
+     * @return the number of records visited.
+     */
+    public int query(SessionReader reader, long from, long to, RecordVisitor visitor) throws IOException {
+        return query(reader, from, to, Integer.MIN_VALUE, Integer.MAX_VALUE, false, visitor);
+    }
+
+    /**
+     * Visit every heart rate record with from <= time < to and hrLow <= heart rate <= hrHigh,
+     * skipping blocks whose heart rate range does not overlap [hrLow, hrHigh].
+     *
+     * @return the number of records visited.
+     */
+    public int queryHr(SessionReader reader, long from, long to, int hrLow, int hrHigh,
+                       RecordVisitor visitor) throws IOException {
+        return query(reader, from, to, hrLow, hrHigh, true, visitor);
+    }
+
+    private int query(SessionReader reader, long from, long to, int hrLow, int hrHigh, boolean hrOnly,
+                      RecordVisitor visitor) throws IOException {
+        mBlocksRead = 0;
+        int visited = 0;
+        long[] minFirstTimes = minFirstTimes();
+        for (int b = findBlock(from); b < mSize && minFirstTimes[b] < to; b++) {
+            if (mLastTime[b] < from || mFirstTime[b] >= to) {
+                continue;
+            }
+            if (hrOnly && (mMaxHr[b] < hrLow || mMinHr[b] > hrHigh || mMinHr[b] < 0)) {
+                continue;
+            }
+            reader.seekBlock(blockNumber(b));
+            mBlocksRead++;
+            while (reader.next() && reader.getBlock() == blockNumber(b)) {
+                long t = reader.getTime();
+                if (t < from || t >= to) {
+                    continue;
+                }
+                int type = reader.getType();
+                int value = reader.getValue();
+                if (hrOnly && (type != SessionFile.TYPE_HR || value < hrLow || value > hrHigh)) {
+                    continue;
+                }
+                visitor.onRecord(t, type, reader.getFlags(), value);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * @return the running minimum of the block first times, from the last block back - worked
+     * out again only when blocks have been added.
+     */
+    private long[] minFirstTimes() {
+        if (mMinFirstSize != mSize) {
+            if (mMinFirstTime.length < mSize) {
+                mMinFirstTime = new long[mFirstTime.length];
+            }
+            long min = Long.MAX_VALUE;
+            for (int i = mSize - 1; i >= 0; i--) {
+                min = Math.min(min, mFirstTime[i]);
+                mMinFirstTime[i] = min;
+            }
+            mMinFirstSize = mSize;
+        }
+        return mMinFirstTime;
+    }
+
+    private int blockNumber(int i) {
+        return (int) ((mOffset[i] - SessionFile.HEADER_SIZE) / SessionFile.BLOCK_SIZE);
+    }
+
+    /**
+     * Write the index to a file.
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(mSize);
+            for (int i = 0; i < mSize; i++) {
+                out.writeLong(mFirstTime[i]);
+                out.writeLong(mLastTime[i]);
+                out.writeLong(mOffset[i]);
+                out.writeShort(mMinHr[i]);
+                out.writeShort(mMaxHr[i]);
+                out.writeInt(mRecordCount[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read an index written by write().
+     */
+    public static SessionIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readShort() > VERSION) {
+                throw new IOException("Not a session index file - " + file);
+            }
+            in.readShort();
+            int n = in.readInt();
+            SessionIndex index = new SessionIndex();
+            for (int i = 0; i < n; i++) {
+                long first = in.readLong();
+                long last = in.readLong();
+                long offset = in.readLong();
+                int minHr = in.readShort();
+                int maxHr = in.readShort();
+                index.add(first, last, offset, minHr, maxHr, in.readInt());
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Build an index by scanning a session (e.g. one that was not closed cleanly).
+     */
+    public static SessionIndex build(SessionReader reader) throws IOException {
+        SessionIndex index = new SessionIndex();
+        reader.seekBlock(0);
+        int block = -1;
+        long first = 0, last = 0;
+        int minHr = -1, maxHr = -1, count = 0;
+        while (reader.next()) {
+            if (reader.getBlock() != block) {
+                if (count > 0) {
+                    index.add(first, last, SessionFile.blockOffset(block), minHr, maxHr, count);
+                }
+                block = reader.getBlock();
+                first = Long.MAX_VALUE;
+                last = Long.MIN_VALUE;
+                minHr = -1;
+                maxHr = -1;
+                count = 0;
+            }
+            long t = reader.getTime();
+            first = Math.min(first, t);
+            last = Math.max(last, t);
+            if (reader.getType() == SessionFile.TYPE_HR) {
+                int hr = reader.getValue();
+                minHr = minHr < 0 ? hr : Math.min(minHr, hr);
+                maxHr = Math.max(maxHr, hr);
+            }
+            count++;
+        }
+        if (count > 0) {
+            index.add(first, last, SessionFile.blockOffset(block), minHr, maxHr, count);
+        }
+        return index;
+    }
+
+    /**
+     * Read the index for a session file, building it (and writing it out) if it is missing.
+     */
+    public static SessionIndex open(SessionReader reader) throws IOException {
+        File file = indexFile(reader.getFile());
+        if (file.exists() && reader.isComplete()) {
+            return read(file);
+        }
+        SessionIndex index = build(reader);
+        if (reader.isComplete()) {
+            index.write(file);
+        }
+        return index;
+    }
+
+    private void grow() {
+        int n = mFirstTime.length * 2;
+        mFirstTime = Arrays.copyOf(mFirstTime, n);
+        mLastTime = Arrays.copyOf(mLastTime, n);
+        mOffset = Arrays.copyOf(mOffset, n);
+        mMinHr = Arrays.copyOf(mMinHr, n);
+        mMaxHr = Arrays.copyOf(mMaxHr, n);
+        mRecordCount = Arrays.copyOf(mRecordCount, n);
+        mMaxLastTime = Arrays.copyOf(mMaxLastTime, n);
+    }
+}
@@ -0,0 +1,243 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Streams the records of a session file (see SessionFile) one block at a time, so a whole
+ * night never has to be held in memory.   Use as a cursor:
+ *   while (reader.next()) { reader.getTime(); reader.getValue(); ... }
+ * Blocks with a wrong sequence number or record count, and sealed blocks whose CRC does not
+ * match, are skipped and counted (getCorruptBlockCount()).   An unsealed block (from a session
+ * that was not closed cleanly) is read up to its record count, and a block with an all zero
+ * header (never written) ends the session.
+ */
+public class SessionReader {
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final long mStartTime;
+    private final long mEndTime;
+    private final long mHeaderRecordCount;
+    private final int mBlockCount;
+    private final long mBlocked;
+    private final long mLost;
+
+    private final ByteBuffer mBuf = ByteBuffer.allocate(SessionFile.BLOCK_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private int mNextBlock = 0;     // The next data block to load.
+    private int mBlock = -1;        // The data block currently loaded.
+    private int mCount = 0;         // Records in the loaded block.
+    private int mIndex = -1;        // Current record in the loaded block.
+    private boolean mEnd = false;
+    private int mCorruptBlocks = 0;
+
+    private long mTime;
+    private int mType;
+    private int mSource;
+    private int mFlags;
+    private int mValue;
+
+    public SessionReader(File file) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "r");
+        mChannel = mRaf.getChannel();
+        ByteBuffer hdr = ByteBuffer.allocate(SessionFile.HDR_LOST + 8);
+        if (readFully(0, hdr) < hdr.capacity()
+                || hdr.getInt(SessionFile.HDR_MAGIC) != SessionFile.MAGIC) {
+            mRaf.close();
+            throw new IOException("Not a session file - " + file);
+        }
+        if (hdr.getShort(SessionFile.HDR_VERSION) > SessionFile.VERSION
+                || hdr.getInt(SessionFile.HDR_BLOCK_SIZE) != SessionFile.BLOCK_SIZE
+                || hdr.getShort(SessionFile.HDR_RECORD_SIZE) != SessionFile.RECORD_SIZE) {
+            mRaf.close();
+            throw new IOException("Unsupported session file version - " + file);
+        }
+        mStartTime = hdr.getLong(SessionFile.HDR_START_TIME);
+        mEndTime = hdr.getLong(SessionFile.HDR_END_TIME);
+        mHeaderRecordCount = hdr.getLong(SessionFile.HDR_RECORD_COUNT);
+        mBlocked = hdr.getLong(SessionFile.HDR_BLOCKED);
+        mLost = hdr.getLong(SessionFile.HDR_LOST);
+        long dataBytes = mChannel.size() - SessionFile.HEADER_SIZE;
+        mBlockCount = dataBytes <= 0 ? 0 : (int) ((dataBytes + SessionFile.BLOCK_SIZE - 1) / SessionFile.BLOCK_SIZE);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return the session end time, or 0 if the session was not closed cleanly.
+     */
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    /**
+     * @return the record count from the header, or 0 if the session was not closed cleanly.
+     */
+    public long getHeaderRecordCount() {
+        return mHeaderRecordCount;
+    }
+
+    /**
+     * @return true if the session was closed cleanly.
+     */
+    public boolean isComplete() {
+        return mEndTime != 0;
+    }
+
+    /**
+     * @return the number of data blocks in the file (including any zero filled ones after a crash).
+     */
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return the number of times the sensor had to wait while recording because the queue was full.
+     */
+    public long getBlockedCount() {
+        return mBlocked;
+    }
+
+    /**
+     * @return the number of records lost while recording because the session file could not be
+     * written (see SessionStore).
+     */
+    public long getLostCount() {
+        return mLost;
+    }
+
+    public int getCorruptBlockCount() {
+        return mCorruptBlocks;
+    }
+
+    /**
+     * @return the data block holding the current record.
+     */
+    public int getBlock() {
+        return mBlock;
+    }
+
+    /**
+     * Position the reader so that the next call to next() returns the first record of data block n.
+     */
+    public void seekBlock(int n) {
+        mNextBlock = n;
+        mBlock = -1;
+        mCount = 0;
+        mIndex = -1;
+        mEnd = false;
+    }
+
+    /**
+     * Advance to the next record.
+     *
+     * @return false at the end of the session.
+     */
+    public boolean next() throws IOException {
+        while (mIndex + 1 >= mCount) {
+            if (mEnd || !loadBlock(mNextBlock)) {
+                mEnd = true;
+                return false;
+            }
+        }
+        mIndex++;
+        int p = SessionFile.BLOCK_HEADER_SIZE + mIndex * SessionFile.RECORD_SIZE;
+        mTime = mBuf.getLong(p);
+        mType = mBuf.get(p + 8);
+        mSource = mBuf.get(p + 9) & 0xff;
+        mFlags = mBuf.getShort(p + 10);
+        mValue = mBuf.getInt(p + 12);
+        return true;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return the sensor the current record came from.
+     */
+    public int getSource() {
+        return mSource;
+    }
+
+    public int getValue() {
+        return mValue;
+    }
+
+    public void close() throws IOException {
+        mRaf.close();
+    }
+
+    /**
+     * Load data block n into mBuf, skipping forward over corrupt blocks.
+     *
+     * @return false if there are no more valid blocks.
+     */
+    private boolean loadBlock(int n) throws IOException {
+        while (n < mBlockCount) {
+            mBuf.clear();
+            int len = readFully(SessionFile.blockOffset(n), mBuf);
+            if (len < SessionFile.BLOCK_HEADER_SIZE
+                    || (mBuf.getInt(SessionFile.BLK_SEQ) == 0 && mBuf.getInt(SessionFile.BLK_COUNT) == 0)) {
+                return false;  // Zero filled tail of a session that was not closed cleanly.
+            }
+            int count = mBuf.getShort(SessionFile.BLK_COUNT);
+            boolean sealed = (mBuf.getShort(SessionFile.BLK_FLAGS) & SessionFile.BLOCK_SEALED) != 0;
+            boolean ok = mBuf.getInt(SessionFile.BLK_SEQ) == n + 1
+                    && count >= 0 && count <= SessionFile.RECORDS_PER_BLOCK
+                    && len >= SessionFile.BLOCK_HEADER_SIZE + count * SessionFile.RECORD_SIZE;
+            if (ok && sealed) {
+                ok = len >= SessionFile.BLOCK_CRC_OFFSET + 4
+                        && mBuf.getInt(SessionFile.BLOCK_CRC_OFFSET) == SessionFile.blockCrc(mCrc, mBuf, 0);
+            }
+            n++;
+            mNextBlock = n;
+            if (!ok) {
+                mCorruptBlocks++;
+                continue;
+            }
+            mBlock = n - 1;
+            mCount = count;
+            mIndex = -1;
+            if (!sealed) {
+                // An unsealed block is the last one written before the session stopped.
+                mNextBlock = mBlockCount;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int readFully(long pos, ByteBuffer buf) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = mChannel.read(buf, pos + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,242 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.IOException;
+
+/**
+ * The storage stage between NightProcessor and a SessionWriter.
+ *
+ * Records are batched in preallocated arrays and committed to the session file in groups, as
+ * decided by a DurabilityPolicy, so that a BLE notification does not cost a write to flash.
+ * A commit appends the batch to the writer and syncs it to storage; close() always commits.
+ * If the batch arrays fill up between commits they are appended to the writer without a sync.
+ *
+ * If the writer fails (e.g. the storage is full), the records it did not take stay in the batch
+ * and are tried again with the next commit, and records go on being added to the batch until it
+ * is full.   Only then is a record lost - it is counted (getLostCount()) and the count written to
+ * the session header (SessionFile.HDR_LOST), so a gap in the data is never silent.
+ *
+ * The age of the batch is measured on the wall clock from when its first record was added (not
+ * from the record times, which may be backdated - e.g. RR beats and sleep stages), and is checked
+ * by commitIfDue() as well as by add(), so a batch is still committed on time if the records stop
+ * arriving (e.g. the sensor disconnects) - see ProcessingPipeline.setTickListener().
+ * Not thread safe - add(), commit() and close() must be called from a single thread, although
+ * the statistics may be read from any thread.
+ */
+public class SessionStore {
+    public final static int DEFAULT_BATCH_CAPACITY = 4096;
+
+    private final SessionWriter mWriter;
+    private volatile DurabilityPolicy mPolicy;
+
+    private final int mCapacity;
+    private final long[] mTime;
+    private final byte[] mType;
+    private final byte[] mSource;
+    private final short[] mFlags;
+    private final int[] mValue;
+    private int mPending = 0;
+    private long mPendingSince = 0;     // Wall clock time the oldest uncommitted record was added.
+    private int mUnsynced = 0;          // Records appended to the writer but not yet synced.
+
+    private volatile long mBytesWritten = 0;
+    private volatile long mCommits = 0;
+    private volatile long mCommittedRecords = 0;
+    private volatile long mLost = 0;
+
+    public SessionStore(SessionWriter writer, DurabilityPolicy policy) {
+        this(writer, policy, DEFAULT_BATCH_CAPACITY);
+    }
+
+    public SessionStore(SessionWriter writer, DurabilityPolicy policy, int batchCapacity) {
+        mWriter = writer;
+        mPolicy = policy;
+        mCapacity = batchCapacity;
+        mTime = new long[batchCapacity];
+        mType = new byte[batchCapacity];
+        mSource = new byte[batchCapacity];
+        mFlags = new short[batchCapacity];
+        mValue = new int[batchCapacity];
+    }
+
+    public SessionWriter getWriter() {
+        return mWriter;
+    }
+
+    public DurabilityPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    public void setPolicy(DurabilityPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Add a record (see SessionWriter.append()), committing the batch if the policy says so.
+     */
+    public void add(long time, int type, int flags, int value) throws IOException {
+        add(time, type, 0, flags, value);
+    }
+
+    /**
+     * Add a record from a given source (see SessionWriter.append()), committing the batch if
+     * the policy says so.
+     */
+    public void add(long time, int type, int source, int flags, int value) throws IOException {
+        IOException error = null;
+        if (mPending == mCapacity) {
+            try {
+                flush();
+            } catch (IOException e) {
+                error = e;
+            }
+            if (mPending == mCapacity) {
+                // The writer took none of the batch, so there is nowhere to keep the record.
+                mLost++;
+                mWriter.setLostCount(mLost);
+                throw error;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (mPending == 0 && mUnsynced == 0) {
+            mPendingSince = now;
+        }
+        mTime[mPending] = time;
+        mType[mPending] = (byte) type;
+        mSource[mPending] = (byte) source;
+        mFlags[mPending] = (short) flags;
+        mValue[mPending] = value;
+        mPending++;
+        if (error != null) {
+            throw error;
+        }
+        commitIfDue(now);
+    }
+
+    /**
+     * Commit the batch if the policy says it is due.
+     *
+     * @param now - the wall clock time (ms since epoch).
+     * @return true if the batch was committed.
+     */
+    public boolean commitIfDue(long now) throws IOException {
+        if (mPolicy.shouldCommit(mPending + mUnsynced, mPendingSince, now)) {
+            commit();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add the heart rate and each RR interval from a measurement.   Each record is added even if
+     * an earlier one failed; the first failure is then thrown.
+     */
+    public void add(HrmMeasurement measurement) throws IOException {
+        int flags = measurement.hasContact() ? 0 : SessionFile.FLAG_NO_CONTACT;
+        int source = measurement.mSource;
+        IOException error = null;
+        try {
+            add(measurement.mTimestamp, SessionFile.TYPE_HR, source, flags, measurement.mHeartRate);
+        } catch (IOException e) {
+            error = e;
+        }
+        for (int i = 0; i < measurement.mRrCount; i++) {
+            try {
+                add(measurement.getRrBeatTime(i), SessionFile.TYPE_RR, source, flags, measurement.getRrIntervalMs(i));
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Write all batched records to the session file and sync it to storage.
+     */
+    public void commit() throws IOException {
+        int n = mPending + mUnsynced;
+        if (n == 0) {
+            return;
+        }
+        flush();
+        mWriter.sync();
+        mUnsynced = 0;
+        mCommits++;
+        mCommittedRecords += n;
+    }
+
+    /**
+     * Commit any batched records and close the session file.
+     */
+    public void close(long endTime) throws IOException {
+        int n = mPending + mUnsynced;
+        flush();
+        mWriter.close(endTime);
+        mUnsynced = 0;
+        if (n > 0) {
+            mCommits++;
+            mCommittedRecords += n;
+        }
+    }
+
+    /**
+     * @return the number of records added but not yet committed.
+     */
+    public int getPendingCount() {
+        return mPending + mUnsynced;
+    }
+
+    /**
+     * @return the number of records lost because the batch was full and the writer failed.
+     */
+    public long getLostCount() {
+        return mLost;
+    }
+
+    /**
+     * @return the number of bytes of records written to the session file.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public long getCommitCount() {
+        return mCommits;
+    }
+
+    /**
+     * @return the average number of records per commit.
+     */
+    public double getAverageBatchSize() {
+        long commits = mCommits;
+        return commits == 0 ? 0 : (double) mCommittedRecords / commits;
+    }
+
+    /**
+     * Append the batch arrays to the writer (without syncing).   If the writer fails, the records
+     * it did not take are kept, to be appended by the next flush.
+     */
+    private void flush() throws IOException {
+        int i = 0;
+        try {
+            for (; i < mPending; i++) {
+                mWriter.append(mTime[i], mType[i], mSource[i] & 0xff, mFlags[i], mValue[i]);
+            }
+        } finally {
+            int left = mPending - i;
+            if (left > 0 && i > 0) {
+                System.arraycopy(mTime, i, mTime, 0, left);
+                System.arraycopy(mType, i, mType, 0, left);
+                System.arraycopy(mSource, i, mSource, 0, left);
+                System.arraycopy(mFlags, i, mFlags, 0, left);
+                System.arraycopy(mValue, i, mValue, 0, left);
+            }
+            mBytesWritten += (long) i * SessionFile.RECORD_SIZE;
+            mUnsynced += i;
+            mPending = left;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Appends records to a binary session file (see SessionFile for the format).
+ *
+ * The file is written through memory mapped chunks of MAP_CHUNK_BLOCKS blocks, so appending a
+ * record is a few buffer puts - the only system calls are mapping a new chunk (about once per
+ * 65000 records), sync() and close().   The record count in each block header is updated as
+ * records are added, so a session that was not closed cleanly can still be read back up to the
+ * last record the kernel wrote to storage.   If append() fails (e.g. the storage is full when a
+ * new chunk is mapped) it may be called again - nothing has been written twice.   Not thread
+ * safe - use from a single thread.
+ */
+public class SessionWriter {
+    public final static int MAP_CHUNK_BLOCKS = 256;   // 1 MB per mapping.
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mHeader;
+    private MappedByteBuffer mMap = null;
+    private MappedByteBuffer mPrevMap = null;   // The previous chunk, if it has not been synced since we moved on.
+    private int mMapFirstBlock = 0;    // Data block index of the start of mMap.
+    private int mBlock = -1;           // Data block index being filled.
+    private int mBlockPos = 0;         // Offset of the current block within mMap.
+    private int mBlockCount = 0;       // Records in the current block.
+    private long mRecordCount = 0;
+    private boolean mBlockSealed = false;   // The current block is sealed, but the next has not been started.
+    private boolean mClosed = false;
+
+    private final SessionIndex mIndex = new SessionIndex();
+    private long mBlockFirstTime;       // Statistics of the current block for its index entry.
+    private long mBlockLastTime;
+    private int mBlockMinHr;
+    private int mBlockMaxHr;
+
+    private final byte[] mScratch = new byte[SessionFile.BLOCK_SIZE];
+    private final ByteBuffer mScratchBuf = ByteBuffer.wrap(mScratch);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Create (or overwrite) a session file.
+     *
+     * @param file      - the file to write.
+     * @param startTime - the session start time (ms since epoch).
+     */
+    public SessionWriter(File file, long startTime) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        mChannel = mRaf.getChannel();
+        mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, SessionFile.HEADER_SIZE);
+        mHeader.putInt(SessionFile.HDR_MAGIC, SessionFile.MAGIC);
+        mHeader.putShort(SessionFile.HDR_VERSION, SessionFile.VERSION);
+        mHeader.putShort(SessionFile.HDR_RECORD_SIZE, (short) SessionFile.RECORD_SIZE);
+        mHeader.putInt(SessionFile.HDR_BLOCK_SIZE, SessionFile.BLOCK_SIZE);
+        mHeader.putInt(SessionFile.HDR_RECORDS_PER_BLOCK, SessionFile.RECORDS_PER_BLOCK);
+        mHeader.putLong(SessionFile.HDR_START_TIME, startTime);
+        startBlock(0);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return the number of data blocks used so far (including the one being filled).
+     */
+    public int getBlockCount() {
+        return mBlockCount > 0 ? mBlock + 1 : mBlock;
+    }
+
+    /**
+     * Append a single record from source 0.
+     */
+    public void append(long time, int type, int flags, int value) throws IOException {
+        append(time, type, 0, flags, value);
+    }
+
+    /**
+     * Append a single record.   Throws an IOException once the writer is closed - the file has
+     * been truncated, so writing to the old mapping would fault.
+     *
+     * @param time   - record time (ms since epoch).
+     * @param type   - SessionFile.TYPE_*
+     * @param source - the sensor the record came from (0 - 255).
+     * @param flags  - SessionFile.FLAG_*
+     * @param value  - record value.
+     */
+    public void append(long time, int type, int source, int flags, int value) throws IOException {
+        if (mClosed) {
+            throw new IOException("Session file is closed - " + mFile);
+        }
+        if (mBlockCount == SessionFile.RECORDS_PER_BLOCK) {
+            sealBlock();
+            startBlock(mBlock + 1);
+        }
+        int p = mBlockPos + SessionFile.BLOCK_HEADER_SIZE + mBlockCount * SessionFile.RECORD_SIZE;
+        mMap.putLong(p, time);
+        mMap.put(p + 8, (byte) type);
+        mMap.put(p + 9, (byte) source);
+        mMap.putShort(p + 10, (short) flags);
+        mMap.putInt(p + 12, value);
+        if (time < mBlockFirstTime) {
+            mBlockFirstTime = time;
+        }
+        if (time > mBlockLastTime) {
+            mBlockLastTime = time;
+        }
+        if (type == SessionFile.TYPE_HR) {
+            if (mBlockMinHr < 0 || value < mBlockMinHr) {
+                mBlockMinHr = value;
+            }
+            if (value > mBlockMaxHr) {
+                mBlockMaxHr = value;
+            }
+        }
+        mBlockCount++;
+        mMap.putShort(mBlockPos + SessionFile.BLK_COUNT, (short) mBlockCount);
+        mRecordCount++;
+    }
+
+    /**
+     * @return the index of the blocks sealed so far.
+     */
+    public SessionIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Force everything written so far out to storage (nothing to do once the writer is closed).
+     */
+    public void sync() {
+        if (!mChannel.isOpen()) {
+            return;
+        }
+        if (mPrevMap != null) {
+            mPrevMap.force();
+            mPrevMap = null;
+        }
+        mMap.force();
+        mHeader.force();
+    }
+
+    /**
+     * Record the number of times the sensor had to wait because the queue feeding this session
+     * was full (see MeasurementQueue) in the header.   It reaches storage at the next sync().
+     */
+    public void setQueueStats(long blocked) {
+        mHeader.putLong(SessionFile.HDR_BLOCKED, blocked);
+    }
+
+    /**
+     * Record the number of records lost because they could not be written (see SessionStore) in
+     * the header.   It reaches storage at the next sync() or close().
+     */
+    public void setLostCount(long lost) {
+        mHeader.putLong(SessionFile.HDR_LOST, lost);
+    }
+
+    /**
+     * Seal the last block, complete the header, write everything to storage and close the file.
+     * The block index is written alongside (see SessionIndex.indexFile()).
+     *
+     * @param endTime - the session end time (ms since epoch).
+     */
+    public void close(long endTime) throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        sealBlock();
+        mHeader.putLong(SessionFile.HDR_END_TIME, endTime);
+        mHeader.putLong(SessionFile.HDR_RECORD_COUNT, mRecordCount);
+        sync();
+        // Drop the unused, zero filled, end of the last mapped chunk.
+        mChannel.truncate(SessionFile.blockOffset(getBlockCount()));
+        mRaf.close();
+        mIndex.write(SessionIndex.indexFile(mFile));
+    }
+
+    private void startBlock(int n) throws IOException {
+        if (mMap == null || n - mMapFirstBlock >= MAP_CHUNK_BLOCKS) {
+            // Map first, so nothing changes if it fails.
+            MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_WRITE, SessionFile.blockOffset(n),
+                    (long) MAP_CHUNK_BLOCKS * SessionFile.BLOCK_SIZE);
+            mPrevMap = mMap;
+            mMapFirstBlock = n;
+            mMap = map;
+        }
+        mBlock = n;
+        mBlockPos = (n - mMapFirstBlock) * SessionFile.BLOCK_SIZE;
+        mBlockCount = 0;
+        mBlockSealed = false;
+        mBlockFirstTime = Long.MAX_VALUE;
+        mBlockLastTime = Long.MIN_VALUE;
+        mBlockMinHr = -1;
+        mBlockMaxHr = -1;
+        mMap.putInt(mBlockPos + SessionFile.BLK_SEQ, n + 1);
+        mMap.putShort(mBlockPos + SessionFile.BLK_COUNT, (short) 0);
+        mMap.putShort(mBlockPos + SessionFile.BLK_FLAGS, (short) 0);
+    }
+
+    private void sealBlock() {
+        if (mBlockCount == 0 || mBlockSealed) {
+            return;
+        }
+        mBlockSealed = true;
+        mMap.putShort(mBlockPos + SessionFile.BLK_FLAGS, SessionFile.BLOCK_SEALED);
+        int len = SessionFile.BLOCK_HEADER_SIZE + mBlockCount * SessionFile.RECORD_SIZE;
+        mMap.position(mBlockPos);
+        mMap.get(mScratch, 0, len);
+        mMap.putInt(mBlockPos + SessionFile.BLOCK_CRC_OFFSET, SessionFile.blockCrc(mCrc, mScratchBuf, 0));
+        mIndex.add(mBlockFirstTime, mBlockLastTime, SessionFile.blockOffset(mBlock),
+                mBlockMinHr, mBlockMaxHr, mBlockCount);
+    }
+}
@@ -0,0 +1,25 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * A model that scores 30 second epochs as a sleep stage.   SleepStager calls classify() once for
+ * each epoch, in time order, as the night progresses, so implementations may keep state between
+ * epochs (reset() is called at the start of each night).
+ */
+public interface SleepStageClassifier {
+    int STAGE_UNKNOWN = 0;   // Not enough data to score the epoch.
+    int STAGE_WAKE = 1;
+    int STAGE_LIGHT = 2;
+    int STAGE_DEEP = 3;
+    int STAGE_REM = 4;
+
+    /**
+     * Forget any state from a previous night.
+     */
+    void reset();
+
+    /**
+     * @param features - the features of the epoch (only valid for the duration of the call).
+     * @return the sleep stage (STAGE_*) of the epoch.
+     */
+    int classify(EpochFeatures features);
+}
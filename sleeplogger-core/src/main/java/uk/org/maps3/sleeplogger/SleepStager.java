@@ -0,0 +1,195 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.Arrays;
+
+/**
+ * Scores each 30 second epoch of the night with a SleepStageClassifier as soon as the epoch is
+ * complete, using the epoch tier of a RollupEngine for heart rate features and an HrvEngine for
+ * heart rate variability features.   Call update() after adding samples to those engines - it
+ * only does work when new epochs have been completed, and that work is O(1) per epoch.
+ *
+ * There must be a single writer thread.   Scored epochs may be read from any thread provided
+ * getStageCount() is called first.
+ */
+public class SleepStager {
+    public final static int TREND_EPOCHS = 10;         // Epochs used for the heart rate trend (5 minutes).
+    private final static float BASELINE_ALPHA = 0.02f; // Weight of each epoch in the baselines.
+
+    private volatile SleepStageClassifier mClassifier;
+    private final EpochFeatures mFeatures = new EpochFeatures();
+    private int mRollupIndex = 0;       // Next epoch of the rollup tier to score.
+    private int mHrvIndex = 0;          // Next HRV epoch to consider.
+
+    private final float[] mTrendMean = new float[TREND_EPOCHS];
+    private final long[] mTrendTime = new long[TREND_EPOCHS];
+    private int mTrendSize = 0;
+    private int mTrendHead = 0;
+    private float mBaselineHr = 0;
+    private float mBaselineRmssd = 0;
+
+    private volatile int mStageCount = 0;
+    private volatile int mCurrentStage = SleepStageClassifier.STAGE_UNKNOWN;
+    private long[] mStageStart = new long[1440];
+    private byte[] mStage = new byte[1440];
+
+    public SleepStager(SleepStageClassifier classifier) {
+        mClassifier = classifier;
+    }
+
+    public SleepStageClassifier getClassifier() {
+        return mClassifier;
+    }
+
+    /**
+     * Swap the classifier.   Epochs already scored keep their stage.
+     */
+    public void setClassifier(SleepStageClassifier classifier) {
+        classifier.reset();
+        mClassifier = classifier;
+    }
+
+    /**
+     * Start a new night (writer thread only).
+     */
+    public void clear() {
+        mRollupIndex = 0;
+        mHrvIndex = 0;
+        mTrendSize = 0;
+        mTrendHead = 0;
+        mBaselineHr = 0;
+        mBaselineRmssd = 0;
+        mStageCount = 0;
+        mCurrentStage = SleepStageClassifier.STAGE_UNKNOWN;
+        mClassifier.reset();
+    }
+
+    /**
+     * Score any epochs completed since the last call.
+     *
+     * @param epochs - the 30 second tier of the heart rate rollups.
+     * @param hrv    - the HRV engine (may be null if no RR intervals are available).
+     * @return the number of epochs scored.
+     */
+    public int update(Rollup epochs, HrvEngine hrv) {
+        int n = epochs.size();
+        int scored = 0;
+        while (mRollupIndex < n) {
+            score(epochs, mRollupIndex, hrv);
+            mRollupIndex++;
+            scored++;
+        }
+        return scored;
+    }
+
+    public int getStageCount() {
+        return mStageCount;
+    }
+
+    public long getStageStart(int i) {
+        return mStageStart[i];
+    }
+
+    public int getStage(int i) {
+        return mStage[i];
+    }
+
+    /**
+     * @return the stage of the most recently scored epoch.
+     */
+    public int getCurrentStage() {
+        return mCurrentStage;
+    }
+
+    private void score(Rollup epochs, int i, HrvEngine hrv) {
+        EpochFeatures f = mFeatures;
+        long start = epochs.getStart(i);
+        f.mEpochStart = start;
+        f.mHrCount = epochs.getCount(i);
+        f.mMeanHr = epochs.getMean(i);
+        f.mMinHr = epochs.getMin(i);
+        f.mMaxHr = epochs.getMax(i);
+        f.mHrStdDev = epochs.getStdDev(i);
+
+        // Heart rate trend - least squares slope of the recent epoch means.
+        mTrendMean[mTrendHead] = f.mMeanHr;
+        mTrendTime[mTrendHead] = start;
+        mTrendHead = (mTrendHead + 1) % TREND_EPOCHS;
+        if (mTrendSize < TREND_EPOCHS) {
+            mTrendSize++;
+        }
+        f.mHrTrend = trend();
+
+        f.mRmssd = 0;
+        f.mSdnn = 0;
+        f.mPnn50 = 0;
+        f.mBeats = 0;
+        if (hrv != null) {
+            int hrvCount = hrv.getEpochCount();
+            while (mHrvIndex < hrvCount && hrv.getEpochStart(mHrvIndex) < start) {
+                mHrvIndex++;
+            }
+            if (mHrvIndex < hrvCount && hrv.getEpochStart(mHrvIndex) == start) {
+                f.mRmssd = hrv.getEpochRmssd(mHrvIndex);
+                f.mSdnn = hrv.getEpochSdnn(mHrvIndex);
+                f.mPnn50 = hrv.getEpochPnn50(mHrvIndex);
+                f.mBeats = hrv.getEpochBeats(mHrvIndex);
+            } else {
+                // The HRV epoch has not been completed yet - use the current window.
+                f.mRmssd = hrv.getRmssd();
+                f.mSdnn = hrv.getSdnn();
+                f.mPnn50 = hrv.getPnn50();
+                f.mBeats = hrv.getBeatCount();
+            }
+        }
+
+        if (mBaselineHr == 0) {
+            mBaselineHr = f.mMeanHr;
+        }
+        if (mBaselineRmssd == 0) {
+            mBaselineRmssd = f.mRmssd;
+        }
+        f.mBaselineHr = mBaselineHr;
+        f.mBaselineRmssd = mBaselineRmssd;
+
+        int stage = mClassifier.classify(f);
+        addStage(start, stage);
+
+        mBaselineHr += BASELINE_ALPHA * (f.mMeanHr - mBaselineHr);
+        if (f.mRmssd > 0) {
+            mBaselineRmssd += BASELINE_ALPHA * (f.mRmssd - mBaselineRmssd);
+        }
+    }
+
+    private float trend() {
+        if (mTrendSize < 2) {
+            return 0;
+        }
+        // Times relative to the oldest epoch, in minutes.
+        int oldest = (mTrendHead - mTrendSize + TREND_EPOCHS) % TREND_EPOCHS;
+        long t0 = mTrendTime[oldest];
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (int k = 0; k < mTrendSize; k++) {
+            int j = (oldest + k) % TREND_EPOCHS;
+            double x = (mTrendTime[j] - t0) / 60000.0;
+            double y = mTrendMean[j];
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+        }
+        double den = mTrendSize * sxx - sx * sx;
+        return den == 0 ? 0 : (float) ((mTrendSize * sxy - sx * sy) / den);
+    }
+
+    private void addStage(long start, int stage) {
+        int n = mStageCount;
+        if (n == mStage.length) {
+            mStageStart = Arrays.copyOf(mStageStart, n * 2);
+            mStage = Arrays.copyOf(mStage, n * 2);
+        }
+        mStageStart[n] = start;
+        mStage[n] = (byte) stage;
+        mStageCount = n + 1;
+        mCurrentStage = stage;
+    }
+}
@@ -0,0 +1,163 @@
+package uk.org.maps3.sleeplogger;
+
+import java.util.Random;
+
+/**
+ * A HeartRateSource that generates a plausible night of heart rate and RR intervals, for
+ * testing the app (and the processing downstream of it) without a sensor or a recording.
+ *
+ * The heart rate follows 90 minute sleep cycles (lower in deep sleep, higher and more variable
+ * in REM), with respiratory sinus arrhythmia on each beat and occasional short arousals.   One
+ * measurement is delivered per second holding the beats that ended in that second, as a real
+ * sensor does.   The same seed always gives the same night (and, with setStartTime(), the same
+ * timestamps).
+ */
+public class SyntheticHeartRateSource implements HeartRateSource, Runnable {
+    public final static long DEFAULT_DURATION_MS = 8 * 3600000L;
+    private final static long CYCLE_MS = 90 * 60000L;
+    private final static double BREATH_MS = 4000;
+
+    private final BleHrmMonitorListener mCallback;
+    private final double mSpeed;
+    private final long mDurationMs;
+    private final long mSeed;
+    private long mStartTime = 0;
+    private final HrmMeasurement mMeasurement = new HrmMeasurement();
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+
+    /**
+     * @param speed      - speed relative to real time, or 0 to generate as fast as possible.
+     * @param durationMs - length of the night to generate.
+     * @param seed       - random number seed.
+     * @param callback   - the listener to send the data to.
+     */
+    public SyntheticHeartRateSource(double speed, long durationMs, long seed, BleHrmMonitorListener callback) {
+        mSpeed = speed;
+        mDurationMs = durationMs;
+        mSeed = seed;
+        mCallback = callback;
+    }
+
+    /**
+     * Start the night at startTime (ms since epoch) rather than when the source is started (0).
+     * Call before start() or run().
+     */
+    public void setStartTime(long startTime) {
+        mStartTime = startTime;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "SyntheticHeartRateSource");
+        mThread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Generate the whole night on the calling thread, rather than on a thread of its own (see
+     * start()), and return when it is done.
+     */
+    public void generate() {
+        mRunning = true;
+        run();
+        mRunning = false;
+    }
+
+    @Override
+    public void run() {
+        Random random = new Random(mSeed);
+        try {
+            mCallback.onHrmDataReceived(TYPE_CONNECTION, 1, "Connected");
+            mCallback.onHrmDataReceived(TYPE_READY, 1, "Ready - synthetic data");
+            long clock = System.currentTimeMillis();   // Paces the night in real time.
+            long start = mStartTime != 0 ? mStartTime : clock;
+            long beat = 0;              // Time of the last beat, relative to start.
+            long packet = 1000;
+            long arousalEnd = -1;
+            double arousalHr = 0;
+            int lastRr = 1000;
+            while (mRunning && packet <= mDurationMs) {
+                mMeasurement.clear();
+                mMeasurement.mFlags = HrmMeasurementParser.FLAG_CONTACT_SUPPORTED
+                        | HrmMeasurementParser.FLAG_CONTACT_DETECTED;
+                mMeasurement.mSensorContactSupported = true;
+                mMeasurement.mSensorContactDetected = true;
+                while (true) {
+                    // Roughly one arousal an hour, lasting 15 - 45 seconds.
+                    if (beat > arousalEnd && random.nextInt(3600) == 0) {
+                        arousalEnd = beat + 15000 + random.nextInt(30000);
+                        arousalHr = 10 + random.nextInt(20);
+                    }
+                    double hr = baseHr(beat) + (beat < arousalEnd ? arousalHr : 0);
+                    double rsa = 0.06 * Math.sin(2 * Math.PI * beat / BREATH_MS);
+                    int rr = (int) (60000.0 / hr * (1 + rsa) + random.nextGaussian() * 15);
+                    if (beat + rr > packet) {
+                        break;
+                    }
+                    beat += rr;
+                    lastRr = rr;
+                    if (mMeasurement.mRrCount < HrmMeasurement.MAX_RR_INTERVALS) {
+                        mMeasurement.mRrIntervals[mMeasurement.mRrCount++] = HrmMeasurement.msToRr(rr);
+                    }
+                }
+                if (mMeasurement.mRrCount > 0) {
+                    mMeasurement.mFlags |= HrmMeasurementParser.FLAG_RR_INTERVALS;
+                }
+                mMeasurement.mHeartRate = 60000 / lastRr;
+                // The last RR interval ends at the measurement time.
+                mMeasurement.mTimestamp = start + beat;
+                pace(clock, packet);
+                mCallback.onHrmMeasurementReceived(mMeasurement);
+                packet += 1000;
+            }
+        } catch (InterruptedException e) {
+            // stop() was called.
+        } finally {
+            mCallback.onHrmDataReceived(TYPE_CONNECTION, 0, "Disconnected");
+        }
+    }
+
+    /**
+     * @return the underlying heart rate (bpm) t ms into the night.
+     */
+    private static double baseHr(long t) {
+        double cycle = (double) (t % CYCLE_MS) / CYCLE_MS;
+        // Falls towards deep sleep in the first half of each cycle, rises into REM at the end,
+        // and the whole night drifts down slowly.
+        double depth = Math.sin(Math.PI * Math.min(cycle / 0.8, 1.0));
+        double rem = cycle > 0.8 ? 6 * Math.sin(Math.PI * (cycle - 0.8) / 0.2) : 0;
+        return 62 - 8 * depth + rem - 2.0 * t / 3600000.0;
+    }
+
+    private void pace(long start, long offset) throws InterruptedException {
+        if (mSpeed <= 0) {
+            return;
+        }
+        long wait = start + (long) (offset / mSpeed) - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records a night from SyntheticHeartRateSource to a session file, through NightProcessor and
+ * SessionStore as LoggerService records a live night - so the file also holds the connection
+ * changes and the sleep stages scored live.   The same arguments always give the same file, so
+ * tests and benchmarks can make the sessions they need rather than keeping recordings.
+ */
+public class SyntheticNight {
+    private SyntheticNight() {
+    }
+
+    /**
+     * Record a night of durationMs starting at startTime (ms since epoch) from the given seed.
+     */
+    public static void record(File file, long startTime, long durationMs, long seed) throws IOException {
+        SessionStore store = new SessionStore(new SessionWriter(file, startTime), DurabilityPolicy.onCloseOnly());
+        final NightProcessor night = new NightProcessor();
+        night.setSessionStore(store);
+        final long[] lastTime = {startTime};
+        final IOException[] error = {null};
+        BleHrmMonitorListener listener = new BleHrmMonitorListener() {
+            @Override
+            public void onHrmDataReceived(int type, int data, String msg) {
+                if (type == HeartRateSource.TYPE_CONNECTION) {
+                    try {
+                        night.addConnection(lastTime[0], data);
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }
+
+            @Override
+            public void onHrmMeasurementReceived(HrmMeasurement measurement) {
+                lastTime[0] = measurement.mTimestamp;
+                try {
+                    night.addMeasurement(measurement);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            private void fail(IOException e) {
+                if (error[0] == null) {
+                    error[0] = e;
+                }
+            }
+        };
+        SyntheticHeartRateSource source = new SyntheticHeartRateSource(0, durationMs, seed, listener);
+        source.setStartTime(startTime);
+        try {
+            source.generate();
+            if (error[0] != null) {
+                throw error[0];
+            }
+            night.finish();
+        } finally {
+            store.close(lastTime[0]);
+        }
+    }
+}
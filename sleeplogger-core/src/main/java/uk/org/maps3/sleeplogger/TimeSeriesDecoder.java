@@ -0,0 +1,167 @@
+package uk.org.maps3.sleeplogger;
+
+/**
+ * Reads back a stream written by TimeSeriesEncoder.   Use as a cursor:
+ *   while (decoder.next()) { decoder.getTime(); decoder.getValue(); }
+ */
+public class TimeSeriesDecoder {
+    private final byte[] mBuf;
+    private final int mFlags;
+    private final int[] mValueBits;
+    private final int mCount;
+    private final int mEnd;
+    private int mPos;
+    private long mBits = 0;
+    private int mBitCount = 0;
+    private int mIndex = 0;
+    private long mTime;
+    private long mDelta;
+    private int mValue;
+
+    /**
+     * @param buf    - buffer holding an encoded stream (as returned by TimeSeriesEncoder.toByteArray()).
+     * @param offset - offset of the stream in buf.
+     */
+    public TimeSeriesDecoder(byte[] buf, int offset) {
+        mBuf = buf;
+        mPos = offset;
+        mFlags = buf[mPos++] & 0xff;
+        mValueBits = TimeSeriesEncoder.valueBits(mFlags);
+        mCount = (int) readVarint(buf.length);
+        int payload = (int) readVarint(buf.length);
+        mEnd = mPos + payload;
+        if (mEnd > buf.length) {
+            throw new IllegalArgumentException("Truncated time series - " + payload + " byte payload");
+        }
+    }
+
+    public TimeSeriesDecoder(byte[] buf) {
+        this(buf, 0);
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the offset in the buffer just after this stream.
+     */
+    public int getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * Advance to the next sample.
+     *
+     * @return false at the end of the stream.
+     */
+    public boolean next() {
+        if (mIndex >= mCount) {
+            return false;
+        }
+        if (mIndex == 0) {
+            mTime = unzigzag(readVarint(mEnd));
+            mValue = (int) unzigzag(readVarint(mEnd));
+            mDelta = 0;
+        } else {
+            long dod;
+            long dv;
+            if ((mFlags & TimeSeriesEncoder.FLAG_BIT_PACKED) != 0) {
+                dod = unzigzag(readTimeBits());
+                dv = unzigzag(readValueBits());
+            } else {
+                dod = unzigzag(readVarint(mEnd));
+                dv = unzigzag(readVarint(mEnd));
+            }
+            mValue = (int) (mValue + dv);
+            if ((mFlags & TimeSeriesEncoder.FLAG_TIME_FROM_VALUE) != 0) {
+                mDelta = dod + mValue;
+            } else {
+                mDelta = dod + mDelta;
+            }
+            mTime += mDelta;
+        }
+        mIndex++;
+        return true;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public int getValue() {
+        return mValue;
+    }
+
+    public static long unzigzag(long z) {
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    /**
+     * Read a varint that must end before offset end.
+     */
+    private long readVarint(int end) {
+        mBitCount = 0;  // varints are byte aligned.
+        long v = 0;
+        int shift = 0;
+        for (;;) {
+            if (mPos >= end) {
+                throw new IllegalArgumentException("Truncated time series varint");
+            }
+            int b = mBuf[mPos++];
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+            shift += 7;
+        }
+    }
+
+    private long readTimeBits() {
+        if (readBits(1) == 0) {
+            return 0;
+        } else if (readBits(1) == 0) {
+            return readBits(7);
+        } else if (readBits(1) == 0) {
+            return readBits(9);
+        } else if (readBits(1) == 0) {
+            return readBits(12);
+        } else {
+            return (readBits(32) << 32) | readBits(32);
+        }
+    }
+
+    private long readValueBits() {
+        int[] bits = mValueBits;
+        if (readBits(1) == 0) {
+            return 0;
+        } else if (readBits(1) == 0) {
+            return readBits(bits[0]);
+        } else if (readBits(1) == 0) {
+            return readBits(bits[1]);
+        } else if (readBits(1) == 0) {
+            return readBits(bits[2]);
+        } else {
+            return (readBits(32) << 32) | readBits(32);
+        }
+    }
+
+    /**
+     * Read n (<= 32) bits, most significant first.
+     */
+    private long readBits(int n) {
+        while (mBitCount < n) {
+            if (mPos >= mEnd) {
+                throw new IllegalArgumentException("Truncated time series bit stream");
+            }
+            mBits = (mBits << 8) | (mBuf[mPos++] & 0xff);
+            mBitCount += 8;
+        }
+        mBitCount -= n;
+        return (mBits >>> mBitCount) & ((1L << n) - 1);
+    }
+}
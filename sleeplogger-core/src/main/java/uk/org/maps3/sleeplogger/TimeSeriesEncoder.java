@@ -0,0 +1,265 @@
+package uk.org.maps3.sleeplogger;
+
+import java.io.IOException;
+
+/**
+ * Compresses a stream of (time, value) samples - heart rates or RR intervals - by storing the
+ * delta-of-delta of the timestamps and the delta of the values, both zigzag encoded.
+ *
+ * Two encodings are available:
+ *   varint      - each zigzag value is written as a byte aligned LEB128 varint.
+ *   bit packed  - Gorilla style variable length bit fields (FLAG_BIT_PACKED):
+ *                   time  '0' | '10'+7 bits | '110'+9 bits | '1110'+12 bits | '1111'+64 bits
+ *                   value '0' | '10'+3 bits | '110'+6 bits | '1110'+10 bits | '1111'+64 bits
+ * For RR interval streams FLAG_TIME_FROM_VALUE predicts each time delta from the interval itself
+ * (a beat follows the previous one by its RR interval), so only the residual is stored - and the
+ * value fields are 6, 8 and 11 bits instead, as RR intervals change by tens of ms from beat to
+ * beat where heart rates change by a few bpm.
+ *
+ * Encoded form (see toByteArray()): flags byte, varint sample count, varint payload length, payload.
+ * The payload starts with the first time and value as zigzag varints.   Use TimeSeriesDecoder
+ * to read it back.   The output buffer grows by doubling, so encoding does not allocate per sample.
+ */
+public class TimeSeriesEncoder {
+    public final static int FLAG_BIT_PACKED = 0x01;
+    public final static int FLAG_TIME_FROM_VALUE = 0x02;
+
+    // Widths of the bit packed value fields (see above).
+    final static int[] HR_VALUE_BITS = {3, 6, 10};
+    final static int[] RR_VALUE_BITS = {6, 8, 11};
+
+    private final int mFlags;
+    private final int[] mValueBits;
+    private byte[] mBuf;
+    private int mPos = 0;
+    private long mBits = 0;     // Bit packed mode - bits not yet written to mBuf (left aligned in the low mBitCount bits).
+    private int mBitCount = 0;
+    private int mCount = 0;
+    private long mPrevTime;
+    private long mPrevDelta;
+    private int mPrevValue;
+
+    public TimeSeriesEncoder(int flags) {
+        this(flags, 1024);
+    }
+
+    public TimeSeriesEncoder(int flags, int initialCapacity) {
+        mFlags = flags;
+        mValueBits = valueBits(flags);
+        mBuf = new byte[Math.max(initialCapacity, 32)];
+    }
+
+    static int[] valueBits(int flags) {
+        return (flags & FLAG_TIME_FROM_VALUE) != 0 ? RR_VALUE_BITS : HR_VALUE_BITS;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Discard all samples, re-using the output buffer.
+     */
+    public void reset() {
+        mPos = 0;
+        mBits = 0;
+        mBitCount = 0;
+        mCount = 0;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the size of the encoded payload so far (bytes).
+     */
+    public int getPayloadSize() {
+        return mPos + (mBitCount + 7) / 8;
+    }
+
+    /**
+     * @return the size of the encoded stream so far, as returned by toByteArray() (bytes).
+     */
+    public int getSize() {
+        int payload = getPayloadSize();
+        return 1 + varintSize(mCount) + varintSize(payload) + payload;
+    }
+
+    /**
+     * Add a sample.
+     */
+    public void add(long time, int value) {
+        if (mCount == 0) {
+            putVarint(zigzag(time));
+            putVarint(zigzag(value));
+            mPrevDelta = 0;
+        } else {
+            long delta = time - mPrevTime;
+            long dod;
+            if ((mFlags & FLAG_TIME_FROM_VALUE) != 0) {
+                dod = delta - value;
+            } else {
+                dod = delta - mPrevDelta;
+            }
+            long dv = zigzag((long) value - mPrevValue);
+            if ((mFlags & FLAG_BIT_PACKED) != 0) {
+                putTimeBits(zigzag(dod));
+                putValueBits(dv);
+            } else {
+                putVarint(zigzag(dod));
+                putVarint(dv);
+            }
+            mPrevDelta = delta;
+        }
+        mPrevTime = time;
+        mPrevValue = value;
+        mCount++;
+    }
+
+    /**
+     * @return the encoded stream so far (header and payload).   More samples may still be added.
+     */
+    public byte[] toByteArray() {
+        int payload = getPayloadSize();
+        byte[] hdr = new byte[1 + 10 + 10];
+        hdr[0] = (byte) mFlags;
+        int n = writeVarint(hdr, 1, mCount);
+        n = writeVarint(hdr, n, payload);
+        byte[] out = new byte[n + payload];
+        System.arraycopy(hdr, 0, out, 0, n);
+        System.arraycopy(mBuf, 0, out, n, mPos);
+        if (mBitCount > 0) {
+            out[n + mPos] = (byte) (mBits << (8 - mBitCount));
+        }
+        return out;
+    }
+
+    /**
+     * Encode the heart rate and RR interval records of a session into two encoders (either may
+     * be null).   Encoders should be created with FLAG_TIME_FROM_VALUE for the RR stream.
+     */
+    public static void encodeSession(SessionReader reader, TimeSeriesEncoder hr, TimeSeriesEncoder rr)
+            throws IOException {
+        while (reader.next()) {
+            int type = reader.getType();
+            if (type == SessionFile.TYPE_HR && hr != null) {
+                hr.add(reader.getTime(), reader.getValue());
+            } else if (type == SessionFile.TYPE_RR && rr != null) {
+                rr.add(reader.getTime(), reader.getValue());
+            }
+        }
+    }
+
+    public static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /**
+     * Write v as an unsigned LEB128 varint into buf at pos.
+     *
+     * @return the position after the varint.
+     */
+    public static int writeVarint(byte[] buf, int pos, long v) {
+        while ((v & ~0x7fL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    /**
+     * @return the number of bytes writeVarint() takes for v.
+     */
+    public static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7fL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private void putVarint(long v) {
+        flushBits();
+        ensure(10);
+        mPos = writeVarint(mBuf, mPos, v);
+    }
+
+    /**
+     * Write a zigzag value in the shortest field that holds it - z is unsigned, so a value of
+     * 2^63 or more (a negative long) must take the 64 bit field.
+     */
+    private void putTimeBits(long z) {
+        if (z == 0) {
+            putBits(0, 1);
+        } else if ((z >>> 7) == 0) {
+            putBits(0x2, 2);
+            putBits(z, 7);
+        } else if ((z >>> 9) == 0) {
+            putBits(0x6, 3);
+            putBits(z, 9);
+        } else if ((z >>> 12) == 0) {
+            putBits(0xe, 4);
+            putBits(z, 12);
+        } else {
+            putBits(0xf, 4);
+            putBits(z >>> 32, 32);
+            putBits(z, 32);
+        }
+    }
+
+    private void putValueBits(long z) {
+        int[] bits = mValueBits;
+        if (z == 0) {
+            putBits(0, 1);
+        } else if ((z >>> bits[0]) == 0) {
+            putBits(0x2, 2);
+            putBits(z, bits[0]);
+        } else if ((z >>> bits[1]) == 0) {
+            putBits(0x6, 3);
+            putBits(z, bits[1]);
+        } else if ((z >>> bits[2]) == 0) {
+            putBits(0xe, 4);
+            putBits(z, bits[2]);
+        } else {
+            putBits(0xf, 4);
+            putBits(z >>> 32, 32);
+            putBits(z, 32);
+        }
+    }
+
+    /**
+     * Append the low n (<= 32) bits of v, most significant first.
+     */
+    private void putBits(long v, int n) {
+        mBits = (mBits << n) | (v & ((1L << n) - 1));
+        mBitCount += n;
+        while (mBitCount >= 8) {
+            ensure(1);
+            mBitCount -= 8;
+            mBuf[mPos++] = (byte) (mBits >>> mBitCount);
+        }
+    }
+
+    /**
+     * Pad any partly written byte with zero bits.
+     */
+    private void flushBits() {
+        if (mBitCount > 0) {
+            ensure(1);
+            mBuf[mPos++] = (byte) (mBits << (8 - mBitCount));
+            mBits = 0;
+            mBitCount = 0;
+        }
+    }
+
+    private void ensure(int n) {
+        if (mPos + n > mBuf.length) {
+            byte[] buf = new byte[Math.max(mBuf.length * 2, mPos + n)];
+            System.arraycopy(mBuf, 0, buf, 0, mPos);
+            mBuf = buf;
+        }
+    }
+}
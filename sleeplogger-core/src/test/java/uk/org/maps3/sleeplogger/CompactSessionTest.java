@@ -0,0 +1,136 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactSessionTest {
+    private final static long START = 1400000400000L;
+    private final static long DURATION_MS = 2 * 3600000L;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private File recordNight() throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + SessionFile.EXTENSION);
+        SyntheticNight.record(file, START, DURATION_MS, 42);
+        return file;
+    }
+
+    private static File writeCompact(File session) throws IOException {
+        File file = CompactSession.compactFile(session);
+        SessionReader reader = new SessionReader(session);
+        try {
+            assertEquals(CompactSession.write(reader, file), file.length());
+        } finally {
+            reader.close();
+        }
+        return file;
+    }
+
+    /**
+     * Check that decoder holds exactly the records of the given type in the session.
+     *
+     * @return the number of records.
+     */
+    private static int assertSameSeries(File session, int type, TimeSeriesDecoder decoder) throws IOException {
+        SessionReader reader = new SessionReader(session);
+        try {
+            int n = 0;
+            while (reader.next()) {
+                if (reader.getType() == type) {
+                    assertTrue(decoder.next());
+                    assertEquals("time " + n, reader.getTime(), decoder.getTime());
+                    assertEquals("value " + n, reader.getValue(), decoder.getValue());
+                    n++;
+                }
+            }
+            assertFalse(decoder.next());
+            return n;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void holdsEveryHeartRateAndRrInterval() throws IOException {
+        File session = recordNight();
+        CompactSession compact = CompactSession.read(writeCompact(session));
+        assertEquals(START, compact.getStartTime());
+        assertTrue(compact.getEndTime() > START);
+        int hr = assertSameSeries(session, SessionFile.TYPE_HR, compact.getHeartRates());
+        int rr = assertSameSeries(session, SessionFile.TYPE_RR, compact.getRrIntervals());
+        assertEquals(DURATION_MS / 1000, hr);
+        assertTrue(rr > 0);
+    }
+
+    @Test
+    public void isUnderTwoBytesASample() throws IOException {
+        File session = recordNight();
+        File file = writeCompact(session);
+        CompactSession compact = CompactSession.read(file);
+        long samples = compact.getHeartRates().getCount() + compact.getRrIntervals().getCount();
+        assertTrue(file.length() + " bytes for " + samples + " samples", file.length() < 2 * samples);
+    }
+
+    @Test
+    public void emptySessionRoundTrips() throws IOException {
+        File session = new File(mTmp.getRoot(), "empty" + SessionFile.EXTENSION);
+        new SessionWriter(session, START).close(START + 1000);
+        CompactSession compact = CompactSession.read(writeCompact(session));
+        assertEquals(START + 1000, compact.getEndTime());
+        assertFalse(compact.getHeartRates().next());
+        assertFalse(compact.getRrIntervals().next());
+    }
+
+    @Test
+    public void compactFileIsNextToTheSession() {
+        File dir = mTmp.getRoot();
+        assertEquals(new File(dir, "night" + CompactSession.EXTENSION),
+                CompactSession.compactFile(new File(dir, "night" + SessionFile.EXTENSION)));
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        File file = new File(mTmp.getRoot(), "other" + CompactSession.EXTENSION);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+        try {
+            CompactSession.read(file);
+            fail("Read a file without the compact session magic number");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        File file = writeCompact(recordNight());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        try {
+            CompactSession.read(file);
+            fail("Read a truncated compact session");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
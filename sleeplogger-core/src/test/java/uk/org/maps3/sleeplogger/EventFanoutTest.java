@@ -0,0 +1,172 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventFanoutTest {
+    /**
+     * A subscriber's thread that only runs its deliveries when told to.
+     */
+    private static class ManualDispatcher implements EventFanout.Dispatcher {
+        final List<Runnable> mPending = new ArrayList<Runnable>();
+        long mLastDelayMs = -1;
+
+        @Override
+        public void dispatch(Runnable delivery, long delayMs) {
+            mPending.add(delivery);
+            mLastDelayMs = delayMs;
+        }
+
+        void runAll() {
+            while (!mPending.isEmpty()) {
+                mPending.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Records the events delivered to it as {type, value, time}.
+     */
+    private static class Recorder implements EventFanout.Listener {
+        final List<long[]> mEvents = new ArrayList<long[]>();
+
+        @Override
+        public void onEvent(int type, int value, long time) {
+            mEvents.add(new long[]{type, value, time});
+        }
+    }
+
+    private static void assertEvent(long[] event, int type, int value, long time) {
+        assertEquals(type, event[0]);
+        assertEquals(value, event[1]);
+        assertEquals(time, event[2]);
+    }
+
+    @Test
+    public void everyEventIsDeliveredInOrder() {
+        EventFanout fanout = new EventFanout();
+        ManualDispatcher dispatcher = new ManualDispatcher();
+        Recorder recorder = new Recorder();
+        EventFanout.Subscription s = fanout.subscribe(recorder, EventFanout.MODE_EVERY, 0, dispatcher);
+        for (int i = 0; i < 5; i++) {
+            fanout.publish(1, 60 + i, 1000L * i);
+        }
+        // Only one delivery is asked for while one is waiting.
+        assertEquals(1, dispatcher.mPending.size());
+        assertEquals(0, dispatcher.mLastDelayMs);
+        dispatcher.runAll();
+        assertEquals(5, recorder.mEvents.size());
+        for (int i = 0; i < 5; i++) {
+            assertEvent(recorder.mEvents.get(i), 1, 60 + i, 1000L * i);
+        }
+        assertEquals(5, s.getDeliveredCount());
+        assertEquals(0, s.getDroppedCount());
+
+        fanout.publish(2, 1, 6000);
+        assertEquals(1, dispatcher.mPending.size());
+    }
+
+    @Test
+    public void fullRingDropsAndCounts() {
+        EventFanout fanout = new EventFanout();
+        ManualDispatcher dispatcher = new ManualDispatcher();
+        Recorder recorder = new Recorder();
+        EventFanout.Subscription s = fanout.subscribe(recorder, EventFanout.MODE_EVERY, 0, dispatcher, 4);
+        for (int i = 0; i < 10; i++) {
+            fanout.publish(1, i, i);
+        }
+        assertEquals(6, s.getDroppedCount());
+        dispatcher.runAll();
+        assertEquals(4, recorder.mEvents.size());
+        // The oldest are kept - it is the new events that are dropped.
+        assertEvent(recorder.mEvents.get(3), 1, 3, 3);
+    }
+
+    @Test
+    public void latestKeepsTheLastOfEachType() {
+        EventFanout fanout = new EventFanout();
+        ManualDispatcher dispatcher = new ManualDispatcher();
+        Recorder recorder = new Recorder();
+        EventFanout.Subscription s = fanout.subscribe(recorder, EventFanout.MODE_LATEST, 0, dispatcher);
+        long t0 = 1400000000000L;
+        fanout.publish(1, 60, t0);
+        fanout.publish(2, 1, t0 + 500);
+        fanout.publish(1, 61, t0 + 1000);
+        fanout.publish(1, 62, t0 + 2000);
+        // Types out of range are ignored.
+        fanout.publish(EventFanout.MAX_TYPES, 5, t0 + 3000);
+        dispatcher.runAll();
+        assertEquals(2, recorder.mEvents.size());
+        assertEvent(recorder.mEvents.get(0), 1, 62, t0 + 2000);
+        assertEvent(recorder.mEvents.get(1), 2, 1, t0 + 500);
+        assertEquals(0, s.getDroppedCount());
+
+        // Negative values survive being packed with the time.
+        fanout.publish(3, -7, t0 + 4000);
+        dispatcher.runAll();
+        assertEvent(recorder.mEvents.get(2), 3, -7, t0 + 4000);
+    }
+
+    @Test
+    public void batchedWaitsForThePeriod() {
+        EventFanout fanout = new EventFanout();
+        ManualDispatcher dispatcher = new ManualDispatcher();
+        Recorder recorder = new Recorder();
+        fanout.subscribe(recorder, EventFanout.MODE_BATCHED, 30000, dispatcher);
+        assertFalse(fanout.needsPromptDelivery());
+        for (int i = 0; i < 20; i++) {
+            fanout.publish(1, i, i);
+        }
+        assertEquals(1, dispatcher.mPending.size());
+        assertEquals(30000, dispatcher.mLastDelayMs);
+        dispatcher.runAll();
+        assertEquals(20, recorder.mEvents.size());
+    }
+
+    @Test
+    public void subscribersAreIndependent() {
+        EventFanout fanout = new EventFanout();
+        ManualDispatcher slow = new ManualDispatcher();
+        ManualDispatcher fast = new ManualDispatcher();
+        Recorder slowRecorder = new Recorder();
+        Recorder fastRecorder = new Recorder();
+        EventFanout.Subscription slowSub = fanout.subscribe(slowRecorder, EventFanout.MODE_EVERY, 0, slow, 2);
+        fanout.subscribe(fastRecorder, EventFanout.MODE_EVERY, 0, fast);
+        assertTrue(fanout.needsPromptDelivery());
+        for (int i = 0; i < 5; i++) {
+            fanout.publish(1, i, i);
+            fast.runAll();
+        }
+        assertEquals(5, fastRecorder.mEvents.size());
+        assertEquals(3, slowSub.getDroppedCount());
+        slow.runAll();
+        assertEquals(2, slowRecorder.mEvents.size());
+    }
+
+    @Test
+    public void unsubscribeStopsDelivery() {
+        EventFanout fanout = new EventFanout();
+        ManualDispatcher dispatcher = new ManualDispatcher();
+        Recorder recorder = new Recorder();
+        EventFanout.Subscription s = fanout.subscribe(recorder, EventFanout.MODE_EVERY, 0, dispatcher);
+        fanout.publish(1, 60, 0);
+        fanout.unsubscribe(s);
+        assertEquals(0, fanout.getSubscriberCount());
+        // A delivery already asked for gives nothing.
+        dispatcher.runAll();
+        assertEquals(0, recorder.mEvents.size());
+        fanout.publish(1, 61, 1000);
+        assertEquals(0, dispatcher.mPending.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownModeIsRefused() {
+        new EventFanout().subscribe(new Recorder(), 0, 0, new ManualDispatcher());
+    }
+}
@@ -0,0 +1,206 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+    private final static int SERVICE = GattAttributes.HEART_RATE_SERVICE;
+    private final static int HRM = GattAttributes.HEART_RATE_MEASUREMENT;
+    private final static int LOCATION = GattAttributes.BODY_SENSOR_LOCATION;
+
+    /**
+     * A GATT connection that records the operations started on it, and can refuse them.
+     */
+    private static class FakeGatt implements GattOperationQueue.Target {
+        final List<GattOperationQueue.Operation> mStarted = new ArrayList<GattOperationQueue.Operation>();
+        final List<Long> mTags = new ArrayList<Long>();
+        boolean mBusy = false;
+
+        @Override
+        public boolean execute(GattOperationQueue.Operation op) {
+            if (mBusy) {
+                return false;
+            }
+            mStarted.add(op);
+            mTags.add(op.getTag());
+            return true;
+        }
+    }
+
+    /**
+     * A timer that only runs its task when told to.
+     */
+    private static class FakeScheduler implements GattOperationQueue.Scheduler {
+        Runnable mTask = null;
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            mTask = task;
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            if (mTask == task) {
+                mTask = null;
+            }
+        }
+
+        void fire() {
+            Runnable task = mTask;
+            mTask = null;
+            task.run();
+        }
+    }
+
+    private FakeGatt mGatt;
+    private FakeScheduler mScheduler;
+    private final List<GattOperationQueue.Operation> mDone = new ArrayList<GattOperationQueue.Operation>();
+    private final List<Boolean> mSuccess = new ArrayList<Boolean>();
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mGatt = new FakeGatt();
+        mScheduler = new FakeScheduler();
+        mQueue = new GattOperationQueue(mGatt, mScheduler, new GattOperationQueue.Listener() {
+            @Override
+            public void onGattOperationComplete(GattOperationQueue.Operation op, boolean success) {
+                mDone.add(op);
+                mSuccess.add(success);
+            }
+        });
+    }
+
+    @Test
+    public void operationsRunOneAtATimeInOrder() {
+        mQueue.enqueue(GattOperationQueue.OP_ENABLE_NOTIFICATIONS, SERVICE, HRM, null);
+        mQueue.enqueue(GattOperationQueue.OP_READ, SERVICE, LOCATION, null);
+        assertEquals(1, mGatt.mStarted.size());
+        assertEquals(2, mQueue.size());
+        // A completion for the queued operation, not the running one, is ignored.
+        assertFalse(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        assertTrue(mQueue.onComplete(GattOperationQueue.OP_ENABLE_NOTIFICATIONS, HRM, true));
+        assertEquals(2, mGatt.mStarted.size());
+        assertEquals(LOCATION, mGatt.mStarted.get(1).mCharacteristic);
+        assertTrue(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        assertEquals(0, mQueue.size());
+        assertEquals(2, mQueue.getCompletedCount());
+        assertEquals(2, mDone.size());
+        assertNull(mScheduler.mTask);
+    }
+
+    @Test
+    public void lateCompletionOfATimedOutAttemptIsIgnored() {
+        mQueue.enqueue(GattOperationQueue.OP_READ, SERVICE, LOCATION, null);
+        mQueue.enqueue(GattOperationQueue.OP_READ, GattAttributes.BATTERY_SERVICE, GattAttributes.BATTERY_LEVEL, null);
+        GattOperationQueue.Operation op = mGatt.mStarted.get(0);
+        mScheduler.fire();
+        assertEquals(1, mQueue.getTimeoutCount());
+        assertEquals(2, mGatt.mStarted.size());
+        assertSame(op, mGatt.mStarted.get(1));
+        assertTrue(mGatt.mTags.get(0) != mGatt.mTags.get(1).longValue());
+
+        // The first attempt completes late - that is not the completion of the retry.
+        assertFalse(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        assertEquals(1, mQueue.getLateCompletionCount());
+        assertEquals(0, mDone.size());
+        assertEquals(2, mGatt.mStarted.size());
+        assertTrue(mScheduler.mTask != null);
+
+        assertTrue(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        assertEquals(1, mDone.size());
+        assertTrue(mSuccess.get(0));
+        assertEquals(2, op.getAttempts());
+        assertEquals(GattAttributes.BATTERY_LEVEL, mGatt.mStarted.get(2).mCharacteristic);
+    }
+
+    @Test
+    public void lateCompletionByTagIsIgnored() {
+        mQueue.enqueue(GattOperationQueue.OP_WRITE, SERVICE, HRM, new byte[]{1});
+        long first = mGatt.mTags.get(0);
+        mScheduler.fire();
+        long second = mGatt.mTags.get(1);
+        // The retry completes first, then the timed out attempt.
+        assertTrue(mQueue.onComplete(second, false));
+        assertEquals(3, mGatt.mStarted.size());
+        assertFalse(mQueue.onComplete(first, true));
+        assertEquals(1, mQueue.size());
+        assertTrue(mQueue.onComplete(mGatt.mTags.get(2), true));
+        assertEquals(0, mQueue.size());
+        assertEquals(1, mQueue.getLateCompletionCount());
+        assertEquals(2, mQueue.getRetryCount());
+    }
+
+    @Test
+    public void failsAfterTheLastRetry() {
+        mQueue.enqueue(GattOperationQueue.OP_READ, SERVICE, LOCATION, null);
+        mQueue.enqueue(GattOperationQueue.OP_READ, GattAttributes.BATTERY_SERVICE, GattAttributes.BATTERY_LEVEL, null);
+        for (int i = 0; i <= GattOperationQueue.MAX_RETRIES; i++) {
+            mScheduler.fire();
+        }
+        assertEquals(1, mDone.size());
+        assertFalse(mSuccess.get(0));
+        assertEquals(GattOperationQueue.MAX_RETRIES + 1, mDone.get(0).getAttempts());
+        assertEquals(1, mQueue.getFailedCount());
+        // The rest of the queue still runs.
+        assertEquals(GattAttributes.BATTERY_LEVEL, mGatt.mStarted.get(mGatt.mStarted.size() - 1).mCharacteristic);
+        assertTrue(mQueue.onComplete(GattOperationQueue.OP_READ, GattAttributes.BATTERY_LEVEL, true));
+        assertEquals(1, mQueue.getCompletedCount());
+    }
+
+    @Test
+    public void busyConnectionIsRetriedAfterTheTimeout() {
+        mGatt.mBusy = true;
+        mQueue.enqueue(GattOperationQueue.OP_READ, SERVICE, LOCATION, null);
+        assertEquals(0, mGatt.mStarted.size());
+        // Nothing was started, so there is nothing to complete.
+        assertFalse(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        mGatt.mBusy = false;
+        mScheduler.fire();
+        assertEquals(1, mGatt.mStarted.size());
+        assertTrue(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        assertEquals(2, mDone.get(0).getAttempts());
+    }
+
+    @Test
+    public void targetMayCompleteAtOnce() {
+        final GattOperationQueue[] queue = new GattOperationQueue[1];
+        final int[] started = {0};
+        queue[0] = new GattOperationQueue(new GattOperationQueue.Target() {
+            @Override
+            public boolean execute(GattOperationQueue.Operation op) {
+                started[0]++;
+                assertTrue(queue[0].onComplete(op.getTag(), true));
+                return true;
+            }
+        }, mScheduler, null);
+        queue[0].enqueue(GattOperationQueue.OP_READ, SERVICE, LOCATION, null);
+        queue[0].enqueue(GattOperationQueue.OP_READ, GattAttributes.BATTERY_SERVICE, GattAttributes.BATTERY_LEVEL, null);
+        assertEquals(2, started[0]);
+        assertEquals(2, queue[0].getCompletedCount());
+        assertEquals(0, queue[0].size());
+        assertNull(mScheduler.mTask);
+    }
+
+    @Test
+    public void clearForgetsOutstandingAttempts() {
+        mQueue.enqueue(GattOperationQueue.OP_READ, SERVICE, LOCATION, null);
+        mQueue.clear();
+        assertEquals(0, mQueue.size());
+        assertNull(mScheduler.mTask);
+        // On the next connection, a completion from the old one must not match a new attempt.
+        mQueue.enqueue(GattOperationQueue.OP_READ, SERVICE, LOCATION, null);
+        assertTrue(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        assertFalse(mQueue.onComplete(GattOperationQueue.OP_READ, LOCATION, true));
+        assertEquals(0, mQueue.getLateCompletionCount());
+    }
+}
@@ -0,0 +1,135 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HrHistoryTest {
+    private final static int CAPACITY = 64;
+    private final static int RACE_CAPACITY = 16384;   // Large, so the writer often overtakes a copy.
+
+    @Test
+    public void snapshotIsTheLatestSamplesOldestFirst() {
+        HrHistory history = new HrHistory(CAPACITY, CAPACITY);
+        long[] times = new long[CAPACITY];
+        int[] values = new int[CAPACITY];
+        assertEquals(0, history.snapshotHr(times, values, CAPACITY));
+        assertEquals(0, history.getLatestHr());
+        for (int i = 0; i < CAPACITY * 3 + 5; i++) {
+            history.addHr(i * 1000L, i);
+        }
+        assertEquals(CAPACITY * 3 + 5, history.getHrCount());
+        assertEquals(CAPACITY, history.getHrSize());
+        assertEquals(CAPACITY * 3 + 4, history.getLatestHr());
+        int n = history.snapshotHr(times, values, CAPACITY);
+        assertEquals(CAPACITY, n);
+        for (int i = 0; i < n; i++) {
+            assertEquals(CAPACITY * 2 + 5 + i, values[i]);
+            assertEquals(values[i] * 1000L, times[i]);
+        }
+        // Fewer than held - the most recent.
+        assertEquals(10, history.snapshotHr(times, values, 10));
+        assertEquals(CAPACITY * 3 - 5, values[0]);
+        assertEquals(CAPACITY * 3 + 4, values[9]);
+    }
+
+    @Test
+    public void rrIntervalsAreTimedByTheirBeats() {
+        HrHistory history = new HrHistory(CAPACITY, CAPACITY);
+        HrmMeasurement m = new HrmMeasurement();
+        m.mTimestamp = 10000;
+        m.mHeartRate = 60;
+        m.mRrCount = 2;
+        m.mRrIntervals[0] = 1024;
+        m.mRrIntervals[1] = 512;
+        history.add(m);
+        long[] times = new long[CAPACITY];
+        int[] values = new int[CAPACITY];
+        assertEquals(2, history.snapshotRr(times, values, CAPACITY));
+        assertEquals(1000, values[0]);
+        assertEquals(500, values[1]);
+        assertEquals(m.getRrBeatTime(0), times[0]);
+        assertEquals(m.getRrBeatTime(1), times[1]);
+        assertEquals(1, history.getHrSize());
+    }
+
+    @Test
+    public void clearDiscardsEverything() {
+        HrHistory history = new HrHistory(CAPACITY, CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            history.addHr(i, 60);
+            history.addRr(i, 1000);
+        }
+        history.clear();
+        long[] times = new long[CAPACITY];
+        int[] values = new int[CAPACITY];
+        assertEquals(0, history.snapshotHr(times, values, CAPACITY));
+        assertEquals(0, history.snapshotRr(times, values, CAPACITY));
+        assertEquals(0, history.getLatestHrTime());
+        history.addHr(5, 70);
+        assertEquals(1, history.snapshotHr(times, values, CAPACITY));
+        assertEquals(70, values[0]);
+    }
+
+    /**
+     * Take snapshots for half a second while a writer overwrites the ring many times over (and,
+     * if clearEvery > 0, clears it as a new night would) - every snapshot must be a run of
+     * consecutive samples, each intact (value = time), never one overwritten while copying it.
+     */
+    private static void checkSnapshotsWhileWriting(final int clearEvery) throws InterruptedException {
+        final HrHistory history = new HrHistory(RACE_CAPACITY, RACE_CAPACITY);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!stop.get()) {
+                    history.addHr(i, i);
+                    history.addRr(i, i);
+                    i++;
+                    if (clearEvery > 0 && i % clearEvery == 0) {
+                        history.clear();
+                    }
+                }
+            }
+        });
+        writer.start();
+        long[] times = new long[RACE_CAPACITY];
+        int[] values = new int[RACE_CAPACITY];
+        int snapshots = 0;
+        long end = System.currentTimeMillis() + 500;
+        try {
+            while (System.currentTimeMillis() < end) {
+                for (int rr = 0; rr < 2; rr++) {
+                    int n = rr == 0 ? history.snapshotHr(times, values, RACE_CAPACITY)
+                            : history.snapshotRr(times, values, RACE_CAPACITY);
+                    assertTrue(n >= 0 && n <= RACE_CAPACITY);
+                    for (int i = 0; i < n; i++) {
+                        assertEquals(times[i], values[i]);
+                        if (i > 0) {
+                            assertEquals(times[i - 1] + 1, times[i]);
+                        }
+                    }
+                    snapshots++;
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+        assertTrue(snapshots > 0);
+    }
+
+    @Test
+    public void snapshotsWhileWritingAreConsistent() throws InterruptedException {
+        checkSnapshotsWhileWriting(0);
+    }
+
+    @Test
+    public void snapshotsAcrossAClearAreConsistent() throws InterruptedException {
+        checkSnapshotsWhileWriting(100000);
+    }
+}
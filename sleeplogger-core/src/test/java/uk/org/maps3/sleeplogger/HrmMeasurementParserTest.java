@@ -0,0 +1,143 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HrmMeasurementParserTest {
+    private HrmMeasurement mM;
+
+    @Before
+    public void setUp() {
+        mM = new HrmMeasurement();
+        mM.mTimestamp = 1000;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    @Test
+    public void uint8HeartRate() {
+        assertTrue(HrmMeasurementParser.parse(bytes(0x00, 72), mM));
+        assertEquals(72, mM.mHeartRate);
+        assertEquals(-1, mM.mEnergyExpended);
+        assertEquals(0, mM.mRrCount);
+        assertEquals(1000, mM.mTimestamp);
+    }
+
+    @Test
+    public void uint8HeartRateAbove127() {
+        assertTrue(HrmMeasurementParser.parse(bytes(0x00, 200), mM));
+        assertEquals(200, mM.mHeartRate);
+    }
+
+    @Test
+    public void uint16HeartRate() {
+        assertTrue(HrmMeasurementParser.parse(bytes(0x01, 0x2c, 0x01), mM));
+        assertEquals(300, mM.mHeartRate);
+    }
+
+    @Test
+    public void energyExpended() {
+        assertTrue(HrmMeasurementParser.parse(bytes(0x08, 60, 0x34, 0x12), mM));
+        assertEquals(60, mM.mHeartRate);
+        assertEquals(0x1234, mM.mEnergyExpended);
+    }
+
+    @Test
+    public void energyExpendedAfterUint16HeartRate() {
+        assertTrue(HrmMeasurementParser.parse(bytes(0x09, 61, 0x00, 0xff, 0xff), mM));
+        assertEquals(61, mM.mHeartRate);
+        assertEquals(0xffff, mM.mEnergyExpended);
+    }
+
+    @Test
+    public void sensorContactBits() {
+        HrmMeasurementParser.parse(bytes(0x00, 60), mM);
+        assertFalse(mM.mSensorContactSupported);
+        assertTrue(mM.hasContact());
+
+        HrmMeasurementParser.parse(bytes(0x04, 60), mM);
+        assertTrue(mM.mSensorContactSupported);
+        assertFalse(mM.mSensorContactDetected);
+        assertFalse(mM.hasContact());
+
+        HrmMeasurementParser.parse(bytes(0x06, 60), mM);
+        assertTrue(mM.mSensorContactSupported);
+        assertTrue(mM.mSensorContactDetected);
+        assertTrue(mM.hasContact());
+    }
+
+    @Test
+    public void severalRrIntervals() {
+        // 1024 = 1000 ms, 819 = 800 ms, 1229 = 1200 ms.
+        assertTrue(HrmMeasurementParser.parse(bytes(0x10, 60, 0x00, 0x04, 0x33, 0x03, 0xcd, 0x04), mM));
+        assertEquals(3, mM.mRrCount);
+        assertEquals(1024, mM.mRrIntervals[0]);
+        assertEquals(819, mM.mRrIntervals[1]);
+        assertEquals(1229, mM.mRrIntervals[2]);
+        assertEquals(1000, mM.getRrIntervalMs(0));
+        assertEquals(800, mM.getRrIntervalMs(1));
+        assertEquals(1200, mM.getRrIntervalMs(2));
+        // The last beat is at the packet time, the earlier ones before it.
+        assertEquals(1000, mM.getRrBeatTime(2));
+        assertEquals(-200, mM.getRrBeatTime(1));
+        assertEquals(-1000, mM.getRrBeatTime(0));
+    }
+
+    @Test
+    public void rrIntervalsAfterEnergyExpended() {
+        assertTrue(HrmMeasurementParser.parse(bytes(0x19, 55, 0x00, 0x10, 0x00, 0x00, 0x04), mM));
+        assertEquals(55, mM.mHeartRate);
+        assertEquals(16, mM.mEnergyExpended);
+        assertEquals(1, mM.mRrCount);
+        assertEquals(1024, mM.mRrIntervals[0]);
+    }
+
+    @Test
+    public void parseAtOffset() {
+        byte[] buf = bytes(0xaa, 0xbb, 0x10, 70, 0x00, 0x04, 0xcc);
+        assertTrue(HrmMeasurementParser.parse(buf, 2, 4, mM));
+        assertEquals(70, mM.mHeartRate);
+        assertEquals(1, mM.mRrCount);
+    }
+
+    @Test
+    public void truncatedPackets() {
+        assertFalse(HrmMeasurementParser.parse(null, mM));
+        assertFalse(HrmMeasurementParser.parse(bytes(), mM));
+        assertFalse(HrmMeasurementParser.parse(bytes(0x00), mM));
+        // UINT16 heart rate with only one byte of it.
+        assertFalse(HrmMeasurementParser.parse(bytes(0x01, 0x3c), mM));
+        assertEquals(0, mM.mHeartRate);
+        // Energy expended flagged but missing.
+        assertFalse(HrmMeasurementParser.parse(bytes(0x08, 60, 0x01), mM));
+        assertEquals(0, mM.mHeartRate);
+        assertEquals(-1, mM.mEnergyExpended);
+        // The timestamp is kept even when the packet is rejected.
+        assertEquals(1000, mM.mTimestamp);
+    }
+
+    @Test
+    public void truncatedRrIntervalIsIgnored() {
+        assertTrue(HrmMeasurementParser.parse(bytes(0x10, 60, 0x00, 0x04, 0x33), mM));
+        assertEquals(1, mM.mRrCount);
+        assertEquals(1024, mM.mRrIntervals[0]);
+    }
+
+    @Test
+    public void failedParseClearsPreviousPacket() {
+        HrmMeasurementParser.parse(bytes(0x18, 60, 0x10, 0x00, 0x00, 0x04), mM);
+        assertFalse(HrmMeasurementParser.parse(bytes(0x01, 0x3c), mM));
+        assertEquals(0, mM.mRrCount);
+        assertEquals(-1, mM.mEnergyExpended);
+    }
+}
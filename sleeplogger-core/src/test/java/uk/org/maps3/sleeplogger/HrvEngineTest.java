@@ -0,0 +1,153 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HrvEngineTest {
+    private final static int WINDOW_MS = 60000;
+    private final static long START = 1400000000000L;
+
+    /**
+     * The HRV of a window worked out from scratch - the beats with valid intervals, and for each
+     * whether it follows the one before it (no artefact or gap between them).
+     */
+    private static class Reference {
+        final List<long[]> mBeats = new ArrayList<long[]>();    // {time, rr, follows}
+        boolean mBreak = false;
+        long mLastBeat = Long.MIN_VALUE;
+
+        void add(long t, int rr) {
+            if (rr < HrvEngine.MIN_RR_MS || rr > HrvEngine.MAX_RR_MS) {
+                mBreak = true;
+                return;
+            }
+            boolean follows = !mBreak && mLastBeat != Long.MIN_VALUE && t - mLastBeat <= HrvEngine.MAX_GAP_MS;
+            mBeats.add(new long[]{t, rr, follows ? 1 : 0});
+            mBreak = false;
+            mLastBeat = t;
+        }
+
+        /**
+         * @return {rmssd, sdnn, pnn50, beats} over the beats in the window ending at time t.
+         */
+        double[] compute(long t) {
+            int first = mBeats.size();
+            while (first > 0 && mBeats.get(first - 1)[0] > t - WINDOW_MS) {
+                first--;
+            }
+            int n = mBeats.size() - first;
+            double sum = 0;
+            for (int i = first; i < mBeats.size(); i++) {
+                sum += mBeats.get(i)[1];
+            }
+            double mean = n > 0 ? sum / n : 0;
+            double sq = 0;
+            for (int i = first; i < mBeats.size(); i++) {
+                double d = mBeats.get(i)[1] - mean;
+                sq += d * d;
+            }
+            double sumSqDiff = 0;
+            int diffs = 0;
+            int nn50 = 0;
+            // The first beat in the window has no difference - the one before it has left.
+            for (int i = first + 1; i < mBeats.size(); i++) {
+                if (mBeats.get(i)[2] == 0) {
+                    continue;
+                }
+                long diff = mBeats.get(i)[1] - mBeats.get(i - 1)[1];
+                sumSqDiff += diff * diff;
+                diffs++;
+                if (Math.abs(diff) > 50) {
+                    nn50++;
+                }
+            }
+            return new double[]{
+                    diffs > 0 ? Math.sqrt(sumSqDiff / diffs) : 0,
+                    n > 1 ? Math.sqrt(sq / (n - 1)) : 0,
+                    diffs > 0 ? 100.0 * nn50 / diffs : 0,
+                    n};
+        }
+    }
+
+    private static void assertMatches(String at, Reference ref, HrvEngine hrv, long t) {
+        double[] expected = ref.compute(t);
+        assertEquals(at + " RMSSD", expected[0], hrv.getRmssd(), 0.01);
+        assertEquals(at + " SDNN", expected[1], hrv.getSdnn(), 0.01);
+        assertEquals(at + " pNN50", expected[2], hrv.getPnn50(), 0.01);
+        assertEquals(at + " beats", (int) expected[3], hrv.getBeatCount());
+    }
+
+    @Test
+    public void slidingWindowMatchesARecompute() {
+        Random random = new Random(42);
+        HrvEngine hrv = new HrvEngine(WINDOW_MS);
+        Reference ref = new Reference();
+        long t = START;
+        for (int i = 0; i < 20000; i++) {
+            int rr = 700 + random.nextInt(500);
+            int r = random.nextInt(1000);
+            if (r < 30) {
+                rr = random.nextBoolean() ? 150 : 2600;     // Artefact.
+            } else if (r < 35) {
+                t += 10000 + random.nextInt(120000);        // Disconnected - beats missing.
+            }
+            t += rr;
+            hrv.add(t, rr);
+            ref.add(t, rr);
+            assertMatches("Beat " + i, ref, hrv, t);
+        }
+        assertTrue(hrv.getArtefactCount() > 0);
+    }
+
+    @Test
+    public void noDifferenceAcrossAGap() {
+        HrvEngine hrv = new HrvEngine(WINDOW_MS);
+        hrv.add(START, 1000);
+        hrv.add(START + 1000, 1000);
+        hrv.add(START + 2000, 1000);
+        assertEquals(0, hrv.getRmssd(), 0.001);
+        // Back after 20 s with a different rate - the jump is not a successive difference.
+        hrv.add(START + 22000, 600);
+        hrv.add(START + 22600, 600);
+        assertEquals(0, hrv.getRmssd(), 0.001);
+        assertEquals(0, hrv.getPnn50(), 0.001);
+        assertEquals(5, hrv.getBeatCount());
+    }
+
+    @Test
+    public void noDifferenceAcrossAnArtefact() {
+        HrvEngine hrv = new HrvEngine(WINDOW_MS);
+        hrv.add(START, 1000);
+        hrv.add(START + 1000, 1000);
+        hrv.add(START + 1100, 100);
+        hrv.add(START + 1800, 700);
+        assertEquals(0, hrv.getRmssd(), 0.001);
+        assertEquals(1, hrv.getArtefactCount());
+        hrv.add(START + 2600, 800);
+        assertEquals(Math.sqrt(100 * 100 / 2.0), hrv.getRmssd(), 0.01);
+        assertEquals(50, hrv.getPnn50(), 0.01);
+    }
+
+    @Test
+    public void epochsHoldTheWindowAtTheirEnd() {
+        HrvEngine hrv = new HrvEngine(WINDOW_MS);
+        long t = START - START % HrvEngine.EPOCH_MS;
+        for (int i = 0; i < 95; i++) {
+            t += 1000;
+            hrv.add(t, 1000 + (i % 2) * 100);
+        }
+        hrv.flush();
+        assertEquals(4, hrv.getEpochCount());
+        assertEquals(START - START % HrvEngine.EPOCH_MS, hrv.getEpochStart(0));
+        assertEquals(100, hrv.getEpochRmssd(1), 0.01);
+        assertEquals(100, hrv.getEpochPnn50(1), 0.01);
+        // The window is a minute long, so later epochs hold 60 beats.
+        assertEquals(60, hrv.getEpochBeats(2));
+    }
+}
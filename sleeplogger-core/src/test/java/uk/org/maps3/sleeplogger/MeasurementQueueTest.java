@@ -0,0 +1,135 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MeasurementQueueTest {
+    private final static int CAPACITY = 8;
+
+    private static void offerSample(MeasurementQueue queue, int hr) {
+        HrmMeasurement m = new HrmMeasurement();
+        m.mTimestamp = hr * 1000L;
+        m.mHeartRate = hr;
+        queue.offerMeasurement(m);
+    }
+
+    /**
+     * Take every queued event, returning the heart rates in order, with -type for a status message.
+     */
+    private static int[] drain(MeasurementQueue queue) {
+        int[] out = new int[queue.size()];
+        MeasurementQueue.Entry e = new MeasurementQueue.Entry();
+        int n = 0;
+        while (queue.poll(e)) {
+            out[n++] = e.mKind == MeasurementQueue.KIND_MESSAGE ? -e.mType : e.mMeasurement.mHeartRate;
+        }
+        assertEquals(out.length, n);
+        return out;
+    }
+
+    /**
+     * Consume from another thread until stopped, counting the events.
+     */
+    private static Thread consumer(final MeasurementQueue queue, final AtomicBoolean stop, final int[] count) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MeasurementQueue.Entry e = new MeasurementQueue.Entry();
+                while (true) {
+                    boolean stopping = stop.get();
+                    if (queue.poll(e)) {
+                        count[e.mKind]++;
+                    } else if (stopping) {
+                        break;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new MeasurementQueue(5).getCapacity());
+        assertEquals(8, new MeasurementQueue(8).getCapacity());
+    }
+
+    @Test
+    public void eventsAreDeliveredInOrder() {
+        MeasurementQueue queue = new MeasurementQueue(CAPACITY);
+        offerSample(queue, 60);
+        queue.offerMessage(HeartRateSource.TYPE_CONNECTION, 1, "connected");
+        queue.offerPacket(new byte[]{0, 61}, 1234);
+        MeasurementQueue.Entry e = new MeasurementQueue.Entry();
+        assertTrue(queue.poll(e));
+        assertEquals(MeasurementQueue.KIND_MEASUREMENT, e.mKind);
+        assertEquals(60, e.mMeasurement.mHeartRate);
+        assertTrue(queue.poll(e));
+        assertEquals(MeasurementQueue.KIND_MESSAGE, e.mKind);
+        assertEquals("connected", e.mMsg);
+        assertTrue(queue.poll(e));
+        assertEquals(MeasurementQueue.KIND_PACKET, e.mKind);
+        assertEquals(2, e.mPacketLength);
+        assertEquals(1234, e.mTimestamp);
+        assertFalse(queue.poll(e));
+        assertEquals(3, queue.getOfferedCount());
+        assertEquals(3, queue.getMaxDepth());
+    }
+
+    @Test
+    public void nothingIsLostWhenFull() throws InterruptedException {
+        MeasurementQueue queue = new MeasurementQueue(CAPACITY);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        int[] count = new int[MeasurementQueue.KIND_MESSAGE + 1];
+        Thread t = consumer(queue, stop, count);
+        int messages = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (i % 100 == 0) {
+                queue.offerMessage(HeartRateSource.TYPE_BATTERY, i % 101, "battery");
+                messages++;
+            } else {
+                offerSample(queue, i & 0xff);
+            }
+        }
+        stop.set(true);
+        t.join();
+        assertEquals(messages, count[MeasurementQueue.KIND_MESSAGE]);
+        assertEquals(100000 - messages, count[MeasurementQueue.KIND_MEASUREMENT]);
+        assertEquals(100000, queue.getOfferedCount());
+        assertTrue(queue.getMaxDepth() <= CAPACITY);
+    }
+
+    @Test
+    public void producerWaitsWhenFull() throws InterruptedException {
+        final MeasurementQueue queue = new MeasurementQueue(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            offerSample(queue, 100 + i);
+        }
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offerMessage(HeartRateSource.TYPE_CONNECTION, 0, "disconnected");
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        MeasurementQueue.Entry e = new MeasurementQueue.Entry();
+        assertTrue(queue.poll(e));
+        assertEquals(100, e.mMeasurement.mHeartRate);
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, queue.getBlockedCount());
+        int[] rest = drain(queue);
+        assertEquals(CAPACITY, rest.length);
+        assertEquals(-HeartRateSource.TYPE_CONNECTION, rest[CAPACITY - 1]);
+    }
+}
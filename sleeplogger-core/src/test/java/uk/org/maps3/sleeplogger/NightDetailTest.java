@@ -0,0 +1,108 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NightDetailTest {
+    private final static long START = 1400000000000L;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    /**
+     * Write an hour of heart rate at 60 bpm, leaving the session open (as after a crash, or
+     * while it is being recorded).
+     */
+    private File writeUnclosedNight() throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + SessionFile.EXTENSION);
+        SessionWriter writer = new SessionWriter(file, START);
+        for (int s = 0; s < 3600; s++) {
+            writer.append(START + s * 1000L, SessionFile.TYPE_HR, 0, 60);
+        }
+        writer.sync();
+        return file;
+    }
+
+    /**
+     * Write rollups of an hour at 100 bpm - not those of the session - so we can tell whether
+     * they were read or built.
+     */
+    private static void writeOtherRollups(File rollupFile) throws IOException {
+        RollupEngine rollups = new RollupEngine();
+        for (int s = 0; s < 3600; s++) {
+            rollups.add(START + s * 1000L, 100);
+        }
+        rollups.flush();
+        rollups.write(rollupFile);
+    }
+
+    @Test
+    public void unclosedNightIsOnlyBuiltOnce() throws IOException {
+        File file = writeUnclosedNight();
+        File rollupFile = RollupEngine.rollupFile(file);
+        NightDetail.Summary s = NightDetail.readSummary(file);
+        assertEquals("", s.mError);
+        assertEquals(0, s.mEnd);
+        assertEquals(60, s.mMeanHr, 0.01);
+        assertTrue("Rollups built from the session were not kept", rollupFile.exists());
+
+        // Rollups written after the session last changed are used.
+        writeOtherRollups(rollupFile);
+        assertTrue(file.setLastModified(START));
+        assertTrue(rollupFile.setLastModified(START + 10000));
+        assertEquals(100, NightDetail.readSummary(file).mMeanHr, 0.01);
+
+        // Once the session changes (e.g. it is still being recorded) they are built again.
+        assertTrue(file.setLastModified(START + 20000));
+        assertEquals(60, NightDetail.readSummary(file).mMeanHr, 0.01);
+        assertTrue(rollupFile.lastModified() > START + 20000);
+    }
+
+    @Test
+    public void closedNightUsesItsRollups() throws IOException {
+        File file = new File(mTmp.getRoot(), "closed" + SessionFile.EXTENSION);
+        SessionWriter writer = new SessionWriter(file, START);
+        for (int s = 0; s < 600; s++) {
+            writer.append(START + s * 1000L, SessionFile.TYPE_HR, 0, 60);
+        }
+        writer.close(START + 600000);
+        File rollupFile = RollupEngine.rollupFile(file);
+        writeOtherRollups(rollupFile);
+        // However old, the rollup file of a closed session is used.
+        assertTrue(rollupFile.setLastModified(START));
+        NightDetail.Summary s = NightDetail.readSummary(file);
+        assertEquals(START + 600000, s.mEnd);
+        assertEquals(100, s.mMeanHr, 0.01);
+    }
+
+    @Test
+    public void levelKeepsThePointsUnderTheLimit() {
+        long minute = 60000;
+        long hour = 60 * minute;
+        // Raw records at about two a second.
+        assertEquals(NightDetail.LEVEL_RAW, NightDetail.chooseLevel(10 * minute, 1200));
+        assertEquals(RollupEngine.TIER_EPOCH, NightDetail.chooseLevel(10 * minute, 1199));
+        assertEquals(RollupEngine.TIER_EPOCH, NightDetail.chooseLevel(hour, 1000));
+        assertEquals(RollupEngine.TIER_5MIN, NightDetail.chooseLevel(12 * hour, 200));
+        assertEquals(RollupEngine.TIER_HOUR, NightDetail.chooseLevel(12 * hour, 100));
+        // However few points are allowed, the hourly rollups are the coarsest.
+        assertEquals(RollupEngine.TIER_HOUR, NightDetail.chooseLevel(12 * hour, 0));
+        assertEquals(NightDetail.LEVEL_RAW, NightDetail.chooseLevel(0, 0));
+    }
+
+    @Test
+    public void oneSecondTierIsNeverChosen() {
+        for (long span = 1000; span < 24 * 3600000L; span *= 2) {
+            for (int points = 1; points < 100000; points *= 3) {
+                assertTrue(NightDetail.chooseLevel(span, points) != RollupEngine.TIER_1S);
+            }
+        }
+    }
+}
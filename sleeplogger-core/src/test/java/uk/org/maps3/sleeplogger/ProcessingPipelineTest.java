@@ -0,0 +1,89 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingPipelineTest {
+    private final static long HOUR_MS = 3600000;
+
+    private ProcessingPipeline mPipeline;
+    private CountDownLatch mReceived;
+
+    private final BleHrmMonitorListener mListener = new BleHrmMonitorListener() {
+        @Override
+        public void onHrmDataReceived(int type, int data, String msg) {
+        }
+
+        @Override
+        public void onHrmMeasurementReceived(HrmMeasurement measurement) {
+            mReceived.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mPipeline = new ProcessingPipeline(16);
+        mReceived = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        mPipeline.stop();
+    }
+
+    private static HrmMeasurement measurement() {
+        HrmMeasurement m = new HrmMeasurement();
+        m.mTimestamp = System.currentTimeMillis();
+        m.mHeartRate = 60;
+        return m;
+    }
+
+    @Test
+    public void eventsAreProcessedPromptlyWithoutBatching() throws InterruptedException {
+        ProcessingPipeline.Input input = mPipeline.addInput(0, mListener);
+        mPipeline.start();
+        input.onHrmMeasurementReceived(measurement());
+        assertTrue(mReceived.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void switchingBatchingOffWakesThePipeline() throws InterruptedException {
+        EnergyPolicy policy = new EnergyPolicy(EnergyPolicy.DEFAULT_STABLE_MS, HOUR_MS);
+        policy.setBatching(true);
+        ProcessingPipeline.Input input = mPipeline.addInput(0, mListener);
+        mPipeline.setEnergyPolicy(policy);
+        mPipeline.start();
+        // Let the processing thread go to sleep until the next wake window.
+        Thread.sleep(200);
+        input.onHrmMeasurementReceived(measurement());
+        // Put off to the next wake window, up to an hour away.
+        assertFalse(mReceived.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(1, mPipeline.getQueueDepth());
+        policy.setBatching(false);
+        assertTrue(mReceived.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopProcessesEverythingQueued() {
+        EnergyPolicy policy = new EnergyPolicy(EnergyPolicy.DEFAULT_STABLE_MS, HOUR_MS);
+        policy.setBatching(true);
+        mReceived = new CountDownLatch(5);
+        ProcessingPipeline.Input input = mPipeline.addInput(0, mListener);
+        mPipeline.setEnergyPolicy(policy);
+        mPipeline.start();
+        for (int i = 0; i < 5; i++) {
+            input.onHrmMeasurementReceived(measurement());
+        }
+        mPipeline.stop();
+        assertEquals(0, mReceived.getCount());
+        assertEquals(5, mPipeline.getProcessedCount());
+    }
+}
@@ -0,0 +1,68 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectBackoffTest {
+    /**
+     * A source of jitter that always gives the same value.
+     */
+    private static class FixedRandom extends Random {
+        private final static long serialVersionUID = 1L;
+
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+
+    @Test
+    public void delaysDoubleUpToTheMaximum() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new FixedRandom(0.999999));
+        long[] expected = {1000, 2000, 4000, 8000, 16000, 32000, 60000, 60000};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], backoff.nextDelay(), 1);
+        }
+        assertEquals(expected.length, backoff.getAttempts());
+    }
+
+    @Test
+    public void shortestDelayIsHalfTheCeiling() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new FixedRandom(0));
+        assertEquals(500, backoff.nextDelay());
+        assertEquals(1000, backoff.nextDelay());
+        assertEquals(2000, backoff.nextDelay());
+    }
+
+    @Test
+    public void delaysStayInRange() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(1));
+        // Far past the point where the shift would overflow a long.
+        for (int i = 0; i < 100; i++) {
+            long ceiling = i < 6 ? 1000L << i : 60000;
+            long delay = backoff.nextDelay();
+            assertTrue("Attempt " + i + " waited " + delay, delay >= ceiling / 2 && delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void resetStartsAgain() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new FixedRandom(0));
+        for (int i = 0; i < 10; i++) {
+            backoff.nextDelay();
+        }
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertEquals(500, backoff.nextDelay());
+    }
+}
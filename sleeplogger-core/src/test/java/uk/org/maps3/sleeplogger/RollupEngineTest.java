@@ -0,0 +1,156 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RollupEngineTest {
+    private final static long START = 1400000400000L;   // A multiple of every tier's period.
+    private final static int SAMPLES = 2 * 3600;    // Two hours at 1 Hz.
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    /**
+     * An engine holding SAMPLES heart rates a second apart, with a few gaps.
+     */
+    private static RollupEngine buildEngine() {
+        Random random = new Random(42);
+        RollupEngine engine = new RollupEngine();
+        long t = START;
+        for (int i = 0; i < SAMPLES; i++) {
+            engine.add(t, 50 + random.nextInt(40));
+            t += random.nextInt(500) == 0 ? 600000 : 1000;
+        }
+        engine.flush();
+        return engine;
+    }
+
+    private static void assertSameRollup(Rollup expected, Rollup actual) {
+        assertEquals(expected.getPeriodMs(), actual.getPeriodMs());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getStart(i), actual.getStart(i));
+            assertEquals(expected.getCount(i), actual.getCount(i));
+            assertEquals(expected.getMin(i), actual.getMin(i));
+            assertEquals(expected.getMax(i), actual.getMax(i));
+            assertEquals(expected.getMean(i), actual.getMean(i), 0);
+            assertEquals(expected.getStdDev(i), actual.getStdDev(i), 0);
+        }
+    }
+
+    @Test
+    public void tiersHoldTheSameSamples() {
+        RollupEngine engine = buildEngine();
+        assertEquals(RollupEngine.TIER_PERIODS_MS.length, engine.getTierCount());
+        for (int tier = 0; tier < engine.getTierCount(); tier++) {
+            Rollup rollup = engine.getTier(tier);
+            assertEquals(RollupEngine.TIER_PERIODS_MS[tier], rollup.getPeriodMs());
+            long count = 0;
+            for (int i = 0; i < rollup.size(); i++) {
+                assertEquals(0, rollup.getStart(i) % rollup.getPeriodMs());
+                count += rollup.getCount(i);
+            }
+            assertEquals("tier " + tier, SAMPLES, count);
+        }
+        assertEquals(SAMPLES, engine.getTier(RollupEngine.TIER_1S).size());
+    }
+
+    @Test
+    public void writeAndReadBack() throws IOException {
+        RollupEngine engine = buildEngine();
+        File file = new File(mTmp.getRoot(), "night" + RollupEngine.EXTENSION);
+        engine.write(file);
+        RollupEngine read = RollupEngine.read(file);
+        assertEquals(engine.getTierCount(), read.getTierCount());
+        for (int tier = 0; tier < engine.getTierCount(); tier++) {
+            assertSameRollup(engine.getTier(tier), read.getTier(tier));
+            assertSameRollup(engine.getTier(tier), RollupEngine.readTier(file, tier));
+        }
+    }
+
+    @Test
+    public void emptyEngineRoundTrips() throws IOException {
+        File file = new File(mTmp.getRoot(), "empty" + RollupEngine.EXTENSION);
+        new RollupEngine().write(file);
+        RollupEngine read = RollupEngine.read(file);
+        for (int tier = 0; tier < read.getTierCount(); tier++) {
+            assertEquals(0, read.getTier(tier).size());
+            assertEquals(RollupEngine.TIER_PERIODS_MS[tier], read.getTier(tier).getPeriodMs());
+        }
+    }
+
+    @Test
+    public void buildFromASessionMatchesLiveRollups() throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + SessionFile.EXTENSION);
+        RollupEngine live = new RollupEngine();
+        SessionWriter writer = new SessionWriter(file, START);
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            long t = START + i * 1000L;
+            int hr = 50 + random.nextInt(40);
+            writer.append(t, SessionFile.TYPE_HR, 0, hr);
+            live.add(t, hr);
+            if (i % 100 == 0) {
+                // Other records are not heart rates.
+                writer.append(t, SessionFile.TYPE_RR, 0, 1000);
+            }
+        }
+        writer.close(START + SAMPLES * 1000L);
+        live.flush();
+        SessionReader reader = new SessionReader(file);
+        try {
+            RollupEngine built = RollupEngine.build(reader);
+            for (int tier = 0; tier < live.getTierCount(); tier++) {
+                assertSameRollup(live.getTier(tier), built.getTier(tier));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void rollupFileIsNextToTheSession() {
+        File dir = mTmp.getRoot();
+        assertEquals(new File(dir, "night" + RollupEngine.EXTENSION),
+                RollupEngine.rollupFile(new File(dir, "night" + SessionFile.EXTENSION)));
+    }
+
+    @Test
+    public void missingTierIsRejected() throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + RollupEngine.EXTENSION);
+        new RollupEngine().write(file);
+        try {
+            RollupEngine.readTier(file, RollupEngine.TIER_PERIODS_MS.length);
+            fail("Read a tier that is not in the file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + RollupEngine.EXTENSION);
+        new RollupEngine().write(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+        try {
+            RollupEngine.read(file);
+            fail("Read a file without the rollup magic number");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RollupTest {
+    private final static long START = 1400000400000L;   // A multiple of every tier's period.
+    private final static int PERIOD_MS = 30000;
+
+    /**
+     * Check bucket i of rollup against the statistics of values, computed directly.
+     */
+    private static void checkBucket(Rollup rollup, int i, long start, int[] values, int n) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        double sum = 0;
+        for (int j = 0; j < n; j++) {
+            min = Math.min(min, values[j]);
+            max = Math.max(max, values[j]);
+            sum += values[j];
+        }
+        double mean = sum / n;
+        double squares = 0;
+        for (int j = 0; j < n; j++) {
+            squares += (values[j] - mean) * (values[j] - mean);
+        }
+        double sd = n > 1 ? Math.sqrt(squares / (n - 1)) : 0;
+        assertEquals("start", start, rollup.getStart(i));
+        assertEquals("count", n, rollup.getCount(i));
+        assertEquals("min", min, rollup.getMin(i));
+        assertEquals("max", max, rollup.getMax(i));
+        assertEquals("mean", mean, rollup.getMean(i), 1e-3);
+        assertEquals("stddev", sd, rollup.getStdDev(i), 1e-3);
+    }
+
+    @Test
+    public void statisticsMatchADirectComputation() {
+        Random random = new Random(42);
+        Rollup rollup = new Rollup(PERIOD_MS, 1);   // Grows as buckets are added.
+        int buckets = 100;
+        int[][] values = new int[buckets][];
+        for (int b = 0; b < buckets; b++) {
+            // Uneven numbers of samples, including buckets of a single sample.
+            values[b] = new int[1 + random.nextInt(30)];
+            for (int j = 0; j < values[b].length; j++) {
+                values[b][j] = 40 + random.nextInt(120);
+                rollup.add(START + b * (long) PERIOD_MS + j * 1000L, values[b][j]);
+            }
+        }
+        rollup.flush();
+        assertEquals(buckets, rollup.size());
+        for (int b = 0; b < buckets; b++) {
+            checkBucket(rollup, b, START + b * (long) PERIOD_MS, values[b], values[b].length);
+        }
+    }
+
+    @Test
+    public void smallSpreadOfLargeValues() {
+        // The standard deviation is small compared with the mean, so cancellation would show.
+        Rollup rollup = new Rollup(PERIOD_MS);
+        int[] values = {1000000, 1000001, 1000002, 1000003};
+        for (int j = 0; j < values.length; j++) {
+            rollup.add(START + j, values[j]);
+        }
+        rollup.flush();
+        checkBucket(rollup, 0, START, values, values.length);
+    }
+
+    @Test
+    public void bucketsAreAlignedToThePeriod() {
+        Rollup rollup = new Rollup(PERIOD_MS);
+        rollup.add(START + 29999, 60);
+        rollup.add(START + 30000, 61);
+        rollup.add(START + 30001, 62);
+        rollup.add(START + 5 * PERIOD_MS + 1, 63);  // Empty buckets are not stored.
+        rollup.flush();
+        assertEquals(3, rollup.size());
+        assertEquals(START, rollup.getStart(0));
+        assertEquals(1, rollup.getCount(0));
+        assertEquals(START + PERIOD_MS, rollup.getStart(1));
+        assertEquals(2, rollup.getCount(1));
+        assertEquals(START + 5 * PERIOD_MS, rollup.getStart(2));
+        assertEquals(1, rollup.getCount(2));
+    }
+
+    @Test
+    public void negativeTimesAreAlignedDownwards() {
+        Rollup rollup = new Rollup(PERIOD_MS);
+        rollup.add(-1, 60);
+        rollup.add(0, 61);
+        rollup.flush();
+        assertEquals(2, rollup.size());
+        assertEquals(-PERIOD_MS, rollup.getStart(0));
+        assertEquals(0, rollup.getStart(1));
+    }
+
+    @Test
+    public void lateSampleIsAddedToTheCurrentBucket() {
+        Rollup rollup = new Rollup(PERIOD_MS);
+        rollup.add(START + PERIOD_MS, 60);
+        rollup.add(START, 70);
+        rollup.flush();
+        assertEquals(1, rollup.size());
+        assertEquals(START + PERIOD_MS, rollup.getStart(0));
+        assertEquals(2, rollup.getCount(0));
+        assertEquals(70, rollup.getMax(0));
+    }
+
+    @Test
+    public void currentBucketIsOnlyVisibleOnceComplete() {
+        Rollup rollup = new Rollup(PERIOD_MS);
+        rollup.add(START, 60);
+        assertEquals(0, rollup.size());
+        rollup.add(START + PERIOD_MS, 61);
+        assertEquals(1, rollup.size());
+        rollup.flush();
+        assertEquals(2, rollup.size());
+        rollup.flush();
+        assertEquals(2, rollup.size());
+    }
+
+    @Test
+    public void findBucketReturnsTheFirstBucketEndingAfterT() {
+        Rollup rollup = new Rollup(PERIOD_MS);
+        // Buckets at 0, 1 and 4 periods, with a gap between 1 and 4.
+        rollup.add(START, 60);
+        rollup.add(START + PERIOD_MS, 60);
+        rollup.add(START + 4 * PERIOD_MS, 60);
+        rollup.flush();
+        assertEquals(0, rollup.findBucket(START - 1));
+        assertEquals(0, rollup.findBucket(START));
+        assertEquals(0, rollup.findBucket(START + PERIOD_MS - 1));
+        assertEquals(1, rollup.findBucket(START + PERIOD_MS));
+        assertEquals(2, rollup.findBucket(START + 2 * PERIOD_MS));   // In the gap.
+        assertEquals(2, rollup.findBucket(START + 5 * PERIOD_MS - 1));
+        assertEquals(3, rollup.findBucket(START + 5 * PERIOD_MS));
+    }
+
+    @Test
+    public void findBucketMatchesALinearSearch() {
+        Random random = new Random(7);
+        Rollup rollup = new Rollup(PERIOD_MS);
+        long t = START;
+        for (int i = 0; i < 500; i++) {
+            rollup.add(t, 60);
+            t += PERIOD_MS * (1 + random.nextInt(4));
+        }
+        rollup.flush();
+        int n = rollup.size();
+        for (long q = START - PERIOD_MS; q < t + PERIOD_MS; q += 7919) {
+            int expected = 0;
+            while (expected < n && rollup.getStart(expected) + PERIOD_MS <= q) {
+                expected++;
+            }
+            assertEquals("t = " + q, expected, rollup.findBucket(q));
+        }
+    }
+
+    @Test
+    public void clearDiscardsEverything() {
+        Rollup rollup = new Rollup(PERIOD_MS);
+        rollup.add(START, 60);
+        rollup.add(START + PERIOD_MS, 70);
+        rollup.clear();
+        assertEquals(0, rollup.size());
+        rollup.flush();
+        assertEquals(0, rollup.size());
+        // An earlier time than before the clear starts a new bucket.
+        rollup.add(START - PERIOD_MS, 50);
+        rollup.flush();
+        assertEquals(1, rollup.size());
+        assertEquals(START - PERIOD_MS, rollup.getStart(0));
+        assertEquals(50, rollup.getMin(0));
+    }
+}
@@ -0,0 +1,132 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceStateTest {
+    /**
+     * Counts the changes it is told of.
+     */
+    private static class CountingListener implements ServiceState.Listener {
+        int mChanges = 0;
+
+        @Override
+        public void onServiceStateChanged(ServiceState state) {
+            mChanges++;
+        }
+    }
+
+    @Test
+    public void everyChangeIncrementsTheVersion() {
+        ServiceState state = new ServiceState();
+        long version = state.getVersion();
+        state.setRunning(true);
+        assertTrue(state.getVersion() > version);
+        version = state.getVersion();
+        state.addSample(1000);
+        assertTrue(state.getVersion() > version);
+        version = state.getVersion();
+        // Setting what is already set is not a change.
+        state.setRunning(true);
+        state.setConnection(false, false);
+        state.setStorageError(null);
+        assertEquals(version, state.getVersion());
+    }
+
+    @Test
+    public void listenersAreNotToldOfSamples() {
+        ServiceState state = new ServiceState();
+        CountingListener listener = new CountingListener();
+        state.addListener(listener);
+        state.addListener(listener);
+        state.setRunning(true);
+        state.setConnection(true, false);
+        state.setConnection(true, true);
+        state.addSample(1000);
+        state.addSample(2000);
+        state.setStorageError("Disk full");
+        assertEquals(4, listener.mChanges);
+        state.removeListener(listener);
+        state.setRunning(false);
+        assertEquals(4, listener.mChanges);
+    }
+
+    @Test
+    public void snapshotCopiesEverything() {
+        ServiceState state = new ServiceState();
+        state.setRunning(true);
+        state.setConnection(true, true);
+        state.addSample(1000);
+        state.addSample(2000);
+        state.setStorageError("Disk full");
+        ServiceState.Snapshot s = state.snapshot(new ServiceState.Snapshot());
+        assertEquals(state.getVersion(), s.mVersion);
+        assertTrue(s.mRunning);
+        assertTrue(s.mConnected);
+        assertTrue(s.mReady);
+        assertEquals(2000, s.mLastSampleTime);
+        assertEquals(2, s.mSampleCount);
+        assertEquals("Disk full", s.mStorageError);
+    }
+
+    @Test
+    public void stoppingClearsTheConnectionAndStartingClearsTheRest() {
+        ServiceState state = new ServiceState();
+        state.setRunning(true);
+        state.setConnection(true, true);
+        state.addSample(1000);
+        state.setStorageError("Disk full");
+        state.setRunning(false);
+        assertFalse(state.isConnected());
+        assertFalse(state.isReady());
+        // The last session's error and samples are still shown until the next start.
+        assertEquals("Disk full", state.getStorageError());
+        state.setRunning(true);
+        ServiceState.Snapshot s = state.snapshot(new ServiceState.Snapshot());
+        assertNull(s.mStorageError);
+        assertEquals(0, s.mSampleCount);
+        assertEquals(0, s.mLastSampleTime);
+    }
+
+    @Test
+    public void sessionFilesAreCopied() {
+        ServiceState state = new ServiceState();
+        File a = new File("a.hrs");
+        File b = new File("b.hrs");
+        File[] files = {a};
+        state.setSessionFiles(files);
+        files[0] = b;
+        assertTrue(state.isSessionFile(new File("a.hrs")));
+        assertFalse(state.isSessionFile(b));
+        state.setSessionFiles(new File[0]);
+        assertFalse(state.isSessionFile(a));
+    }
+
+    @Test
+    public void disconnectingClearsReady() {
+        ServiceState state = new ServiceState();
+        CountingListener listener = new CountingListener();
+        state.setRunning(true);
+        state.setConnection(true, true);
+        state.addListener(listener);
+        // A sensor that drops out is not ready, even if nobody said so.
+        state.setConnection(false, true);
+        assertFalse(state.isConnected());
+        assertFalse(state.isReady());
+        assertFalse(state.snapshot(new ServiceState.Snapshot()).mReady);
+        assertEquals(1, listener.mChanges);
+        // Reconnecting is not ready until the sensor says so.
+        state.setConnection(true, false);
+        assertTrue(state.isConnected());
+        assertFalse(state.isReady());
+        state.setConnection(true, true);
+        assertTrue(state.isReady());
+        assertEquals(3, listener.mChanges);
+    }
+}
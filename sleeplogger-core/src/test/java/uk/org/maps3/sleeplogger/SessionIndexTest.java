@@ -0,0 +1,158 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionIndexTest {
+    private final static long START = 1400000000000L;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private static class Counter implements SessionIndex.RecordVisitor {
+        int mCount = 0;
+        long mSum = 0;
+
+        @Override
+        public void onRecord(long time, int type, int flags, int value) {
+            mCount++;
+            mSum += time * 31 + value;
+        }
+    }
+
+    /**
+     * Write a night in the order the service does - a heart rate a second, with the beats it
+     * covers (backdated), and now and then the stage of an epoch that started minutes earlier.
+     */
+    private File writeNight(int seconds) throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + SessionFile.EXTENSION);
+        SessionWriter writer = new SessionWriter(file, START);
+        Random r = new Random(4);
+        for (int s = 0; s < seconds; s++) {
+            long t = START + s * 1000L;
+            writer.append(t, SessionFile.TYPE_HR, 0, 50 + r.nextInt(40));
+            writer.append(t - 1500, SessionFile.TYPE_RR, 0, 750);
+            writer.append(t - 750, SessionFile.TYPE_RR, 0, 750);
+            if (s % 300 == 299) {
+                writer.append(t - 600000, SessionFile.TYPE_SLEEP_STAGE, 0, 1);
+            }
+        }
+        writer.close(START + seconds * 1000L);
+        return file;
+    }
+
+    private static Counter scan(SessionReader reader, long from, long to) throws IOException {
+        Counter c = new Counter();
+        reader.seekBlock(0);
+        while (reader.next()) {
+            if (reader.getTime() >= from && reader.getTime() < to) {
+                c.onRecord(reader.getTime(), reader.getType(), reader.getFlags(), reader.getValue());
+            }
+        }
+        return c;
+    }
+
+    private static void assertQueriesMatchScan(SessionIndex index, SessionReader reader, long seed)
+            throws IOException {
+        Random r = new Random(seed);
+        for (int i = 0; i < 200; i++) {
+            long from = START - 600000 + (long) (r.nextDouble() * 4200000);
+            long to = from + r.nextInt(i % 2 == 0 ? 60000 : 1800000);
+            Counter expected = scan(reader, from, to);
+            Counter found = new Counter();
+            assertEquals(expected.mCount, index.query(reader, from, to, found));
+            assertEquals("records from " + from + " to " + to, expected.mCount, found.mCount);
+            assertEquals(expected.mSum, found.mSum);
+        }
+    }
+
+    @Test
+    public void blockSpansOverlap() throws IOException {
+        SessionReader reader = new SessionReader(writeNight(3600));
+        try {
+            SessionIndex index = SessionIndex.read(SessionIndex.indexFile(reader.getFile()));
+            boolean overlap = false;
+            for (int i = 1; i < index.size(); i++) {
+                overlap |= index.getFirstTime(i) < index.getLastTime(i - 1);
+            }
+            assertTrue("Expected a block to start before the previous one ends", overlap);
+            assertEquals(START + 299000 - 600000, index.getStartTime());
+            assertEquals(START + 3599000, index.getEndTime());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void queriesFindEveryRecordInRange() throws IOException {
+        SessionReader reader = new SessionReader(writeNight(3600));
+        try {
+            assertQueriesMatchScan(SessionIndex.read(SessionIndex.indexFile(reader.getFile())), reader, 5);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void builtIndexMatchesWrittenIndex() throws IOException {
+        SessionReader reader = new SessionReader(writeNight(3600));
+        try {
+            SessionIndex written = SessionIndex.read(SessionIndex.indexFile(reader.getFile()));
+            SessionIndex built = SessionIndex.build(reader);
+            assertEquals(written.size(), built.size());
+            for (int i = 0; i < written.size(); i++) {
+                assertEquals(written.getFirstTime(i), built.getFirstTime(i));
+                assertEquals(written.getLastTime(i), built.getLastTime(i));
+                assertEquals(written.getOffset(i), built.getOffset(i));
+                assertEquals(written.getMinHr(i), built.getMinHr(i));
+                assertEquals(written.getMaxHr(i), built.getMaxHr(i));
+                assertEquals(written.getRecordCount(i), built.getRecordCount(i));
+            }
+            assertQueriesMatchScan(built, reader, 6);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void shortQueriesReadFewBlocks() throws IOException {
+        SessionReader reader = new SessionReader(writeNight(3600));
+        try {
+            SessionIndex index = SessionIndex.open(reader);
+            index.query(reader, START + 1800000, START + 1810000, new Counter());
+            assertTrue(index.getBlocksRead() + " of " + index.size() + " blocks read",
+                    index.getBlocksRead() <= 6);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void heartRateQuery() throws IOException {
+        SessionReader reader = new SessionReader(writeNight(600));
+        try {
+            SessionIndex index = SessionIndex.open(reader);
+            final int[] n = {0};
+            int visited = index.queryHr(reader, START, START + 600000, 60, 70, new SessionIndex.RecordVisitor() {
+                @Override
+                public void onRecord(long time, int type, int flags, int value) {
+                    assertEquals(SessionFile.TYPE_HR, type);
+                    assertTrue(value >= 60 && value <= 70);
+                    n[0]++;
+                }
+            });
+            assertEquals(n[0], visited);
+            assertTrue(visited > 0);
+        } finally {
+            reader.close();
+        }
+    }
+}
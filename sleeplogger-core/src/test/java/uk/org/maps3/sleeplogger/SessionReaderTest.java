@@ -0,0 +1,141 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionReaderTest {
+    private final static long START = 1400000000000L;
+    private final static int BLOCKS = 3;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    /**
+     * Write BLOCKS full blocks of heart rate records, a second apart, with value = record number.
+     */
+    private File writeSession(boolean close) throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + SessionFile.EXTENSION);
+        SessionWriter writer = new SessionWriter(file, START);
+        for (int i = 0; i < BLOCKS * SessionFile.RECORDS_PER_BLOCK; i++) {
+            writer.append(START + i * 1000L, SessionFile.TYPE_HR, 0, i);
+        }
+        if (close) {
+            writer.close(START + BLOCKS * SessionFile.RECORDS_PER_BLOCK * 1000L);
+        } else {
+            writer.sync();
+        }
+        return file;
+    }
+
+    private static void corrupt(File file, long pos, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(pos);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int countRecords(SessionReader reader, int expectedFirst) throws IOException {
+        int n = 0;
+        while (reader.next()) {
+            if (n == 0) {
+                assertEquals(expectedFirst, reader.getValue());
+            }
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void readsEveryRecord() throws IOException {
+        SessionReader reader = new SessionReader(writeSession(true));
+        try {
+            assertTrue(reader.isComplete());
+            int n = 0;
+            while (reader.next()) {
+                assertEquals(n, reader.getValue());
+                assertEquals(START + n * 1000L, reader.getTime());
+                n++;
+            }
+            assertEquals(BLOCKS * SessionFile.RECORDS_PER_BLOCK, n);
+            assertEquals(0, reader.getCorruptBlockCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void badSequenceNumberSkipsOnlyThatBlock() throws IOException {
+        File file = writeSession(true);
+        corrupt(file, SessionFile.blockOffset(0) + SessionFile.BLK_SEQ, 77);
+        SessionReader reader = new SessionReader(file);
+        try {
+            assertEquals((BLOCKS - 1) * SessionFile.RECORDS_PER_BLOCK,
+                    countRecords(reader, SessionFile.RECORDS_PER_BLOCK));
+            assertEquals(1, reader.getCorruptBlockCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void badCrcSkipsOnlyThatBlock() throws IOException {
+        File file = writeSession(true);
+        corrupt(file, SessionFile.blockOffset(1) + SessionFile.BLOCK_HEADER_SIZE, 12345);
+        SessionReader reader = new SessionReader(file);
+        try {
+            assertEquals((BLOCKS - 1) * SessionFile.RECORDS_PER_BLOCK, countRecords(reader, 0));
+            assertEquals(1, reader.getCorruptBlockCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void zeroFilledTailEndsSession() throws IOException {
+        SessionReader reader = new SessionReader(writeSession(false));
+        try {
+            assertFalse(reader.isComplete());
+            assertTrue(reader.getBlockCount() > BLOCKS);
+            assertEquals(BLOCKS * SessionFile.RECORDS_PER_BLOCK, countRecords(reader, 0));
+            assertEquals(0, reader.getCorruptBlockCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void appendAfterCloseFails() throws IOException {
+        File file = new File(mTmp.getRoot(), "closed" + SessionFile.EXTENSION);
+        SessionWriter writer = new SessionWriter(file, START);
+        writer.append(START, SessionFile.TYPE_HR, 0, 60);
+        writer.close(START + 1000);
+        long length = file.length();
+        try {
+            writer.append(START + 1000, SessionFile.TYPE_HR, 0, 61);
+            fail("Appended to a closed session");
+        } catch (IOException e) {
+            // Expected.
+        }
+        writer.sync();
+        assertEquals(length, file.length());
+        SessionReader reader = new SessionReader(file);
+        try {
+            assertEquals(1, countRecords(reader, 60));
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionStoreTest {
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private SessionWriter mWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        mWriter = new SessionWriter(new File(mTmp.getRoot(), "night" + SessionFile.EXTENSION), 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mWriter.close(1);
+    }
+
+    /**
+     * seconds:60 commits on each minute of the wall clock - keep the tests clear of one.
+     */
+    private static void awayFromMinuteBoundary() {
+        while (System.currentTimeMillis() % 60000 > 59000) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void commitsEveryNSamples() throws IOException {
+        SessionStore store = new SessionStore(mWriter, DurabilityPolicy.everySamples(3));
+        store.add(1000, SessionFile.TYPE_HR, 0, 60);
+        store.add(2000, SessionFile.TYPE_HR, 0, 61);
+        assertEquals(2, store.getPendingCount());
+        store.add(3000, SessionFile.TYPE_HR, 0, 62);
+        assertEquals(0, store.getPendingCount());
+        assertEquals(1, store.getCommitCount());
+    }
+
+    @Test
+    public void ageIsMeasuredOnTheWallClock() throws IOException {
+        SessionStore store = new SessionStore(mWriter, DurabilityPolicy.everySeconds(60));
+        awayFromMinuteBoundary();
+        // Records backdated by hours (e.g. RR beats, sleep stages) do not force a commit.
+        store.add(1000, SessionFile.TYPE_RR, 0, 1000);
+        store.add(System.currentTimeMillis() + 3600000, SessionFile.TYPE_HR, 0, 60);
+        assertEquals(2, store.getPendingCount());
+        assertEquals(0, store.getCommitCount());
+    }
+
+    @Test
+    public void commitIfDueCommitsWithoutNewRecords() throws IOException {
+        SessionStore store = new SessionStore(mWriter, DurabilityPolicy.everySeconds(60));
+        awayFromMinuteBoundary();
+        long now = System.currentTimeMillis();
+        store.add(now, SessionFile.TYPE_HR, 0, 60);
+        assertFalse(store.commitIfDue(now));
+        assertEquals(1, store.getPendingCount());
+        assertTrue(store.commitIfDue(now + 60000));
+        assertEquals(0, store.getPendingCount());
+        assertEquals(1, store.getCommitCount());
+        // Nothing pending - nothing to commit.
+        assertFalse(store.commitIfDue(now + 600000));
+    }
+
+    @Test
+    public void closeOnlyPolicyWaitsForClose() throws IOException {
+        SessionStore store = new SessionStore(mWriter, DurabilityPolicy.onCloseOnly());
+        long now = System.currentTimeMillis();
+        store.add(now, SessionFile.TYPE_HR, 0, 60);
+        assertFalse(store.commitIfDue(now + 3600000));
+        store.close(now + 1);
+        assertEquals(1, store.getCommitCount());
+        assertEquals(1, mWriter.getRecordCount());
+    }
+
+    @Test
+    public void fullBatchIsFlushedWithoutCommit() throws IOException {
+        SessionStore store = new SessionStore(mWriter, DurabilityPolicy.onCloseOnly(), 4);
+        for (int i = 0; i < 6; i++) {
+            store.add(i, SessionFile.TYPE_HR, 0, 60 + i);
+        }
+        assertEquals(4, mWriter.getRecordCount());
+        assertEquals(6, store.getPendingCount());
+        assertEquals(0, store.getCommitCount());
+    }
+
+    @Test
+    public void recordsAreKeptWhenAWriteFails() throws IOException {
+        final int[] failAfter = {2};
+        SessionWriter writer = new SessionWriter(new File(mTmp.getRoot(), "failing" + SessionFile.EXTENSION), 0) {
+            @Override
+            public void append(long time, int type, int source, int flags, int value) throws IOException {
+                if (failAfter[0]-- == 0) {
+                    throw new IOException("No space left on device");
+                }
+                super.append(time, type, source, flags, value);
+            }
+        };
+        SessionStore store = new SessionStore(writer, DurabilityPolicy.onCloseOnly());
+        for (int i = 0; i < 5; i++) {
+            store.add(i, SessionFile.TYPE_HR, 0, 60 + i);
+        }
+        try {
+            store.commit();
+            fail("Write error not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(2, writer.getRecordCount());
+        assertEquals(5, store.getPendingCount());
+        // The storage recovers - the next commit writes what was left, once.
+        failAfter[0] = -1;
+        store.commit();
+        assertEquals(5, writer.getRecordCount());
+        assertEquals(0, store.getPendingCount());
+        writer.close(1);
+    }
+
+    @Test
+    public void recordsThatCannotBeKeptAreCounted() throws IOException {
+        // Fail every append while broken, then the one append when failAfter reaches 0.
+        final int[] failAfter = {0};
+        final boolean[] broken = {true};
+        File file = new File(mTmp.getRoot(), "full" + SessionFile.EXTENSION);
+        SessionWriter writer = new SessionWriter(file, 0) {
+            @Override
+            public void append(long time, int type, int source, int flags, int value) throws IOException {
+                if (broken[0] || failAfter[0]-- == 0) {
+                    throw new IOException("No space left on device");
+                }
+                super.append(time, type, source, flags, value);
+            }
+        };
+        SessionStore store = new SessionStore(writer, DurabilityPolicy.onCloseOnly(), 4);
+        for (int i = 0; i < 4; i++) {
+            store.add(i, SessionFile.TYPE_HR, 0, 60 + i);
+        }
+        // The batch is full and nothing can be written, so the next record is lost.
+        try {
+            store.add(4, SessionFile.TYPE_HR, 0, 64);
+            fail("Lost record not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, store.getLostCount());
+        assertEquals(4, store.getPendingCount());
+
+        // The heart rate is lost, but the RR intervals after it are still stored once the
+        // writer takes the batch.
+        broken[0] = false;
+        HrmMeasurement m = new HrmMeasurement();
+        m.mTimestamp = 5000;
+        m.mHeartRate = 65;
+        m.mRrCount = 2;
+        m.mRrIntervals[0] = 1024;
+        m.mRrIntervals[1] = 1024;
+        try {
+            store.add(m);
+            fail("Lost record not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(2, store.getLostCount());
+        assertEquals(6, store.getPendingCount());
+        store.close(6000);
+
+        SessionReader reader = new SessionReader(file);
+        try {
+            assertEquals(2, reader.getLostCount());
+            int hr = 0;
+            int rr = 0;
+            while (reader.next()) {
+                if (reader.getType() == SessionFile.TYPE_HR) {
+                    hr++;
+                } else if (reader.getType() == SessionFile.TYPE_RR) {
+                    rr++;
+                }
+            }
+            assertEquals(4, hr);
+            assertEquals(2, rr);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded night through NightProcessor, as NightBatch does.
+ *
+ * The night is a 90 minute (one sleep cycle) night recorded by SyntheticNight, as LoggerService
+ * records a live night - so it also holds the sleep stages that were scored live, which the
+ * replay must reproduce.   ReplayBenchmark measures how fast the epochs are scored.
+ */
+public class SleepStagerReplayTest {
+    private final static long START = 1400000400000L;
+    private final static long DURATION_MS = 90 * 60000L;
+    private final static long SEED = 42;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private File recordNight() throws IOException {
+        return recordNight("night");
+    }
+
+    private File recordNight(String name) throws IOException {
+        File file = new File(mTmp.getRoot(), name + SessionFile.EXTENSION);
+        SyntheticNight.record(file, START, DURATION_MS, SEED);
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replay a night into night.
+     *
+     * @return the number of heart rate measurements replayed.
+     */
+    private static int replay(File file, NightProcessor night) throws IOException {
+        SessionReader reader = new SessionReader(file);
+        try {
+            MeasurementReader measurements = new MeasurementReader(reader);
+            HrmMeasurement m = new HrmMeasurement();
+            int n = 0;
+            int type;
+            while ((type = measurements.next(m)) != 0) {
+                if (type == SessionFile.TYPE_HR) {
+                    night.addMeasurement(m);
+                    n++;
+                }
+            }
+            night.finish();
+            return n;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void replayReproducesTheLiveStages() throws Exception {
+        File file = recordNight();
+        NightProcessor night = new NightProcessor();
+        assertEquals(DURATION_MS / 1000, replay(file, night));
+        SleepStager stager = night.getSleepStager();
+        assertEquals(DURATION_MS / RollupEngine.TIER_PERIODS_MS[RollupEngine.TIER_EPOCH], stager.getStageCount());
+
+        SessionReader reader = new SessionReader(file);
+        try {
+            int i = 0;
+            while (reader.next()) {
+                if (reader.getType() == SessionFile.TYPE_SLEEP_STAGE) {
+                    assertEquals("epoch " + i + " start", reader.getTime(), stager.getStageStart(i));
+                    assertEquals("epoch " + i + " stage", reader.getValue(), stager.getStage(i));
+                    i++;
+                }
+            }
+            assertEquals(stager.getStageCount(), i);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void everyEpochIsScored() throws Exception {
+        NightProcessor night = new NightProcessor();
+        replay(recordNight(), night);
+        SleepStager stager = night.getSleepStager();
+        int[] counts = new int[SleepStageClassifier.STAGE_REM + 1];
+        for (int i = 0; i < stager.getStageCount(); i++) {
+            int stage = stager.getStage(i);
+            assertTrue(stage >= SleepStageClassifier.STAGE_UNKNOWN && stage <= SleepStageClassifier.STAGE_REM);
+            if (i > 0) {
+                assertEquals(30000, stager.getStageStart(i) - stager.getStageStart(i - 1));
+            }
+            counts[stage]++;
+        }
+        // A whole sleep cycle should reach more than one stage.
+        int stages = 0;
+        for (int stage = SleepStageClassifier.STAGE_WAKE; stage <= SleepStageClassifier.STAGE_REM; stage++) {
+            stages += counts[stage] > 0 ? 1 : 0;
+        }
+        assertTrue("Only " + stages + " stages scored", stages > 1);
+    }
+
+    @Test
+    public void classifierCanBeSwapped() throws Exception {
+        final int[] calls = {0};
+        NightProcessor night = new NightProcessor(new SleepStageClassifier() {
+            @Override
+            public void reset() {
+            }
+
+            @Override
+            public int classify(EpochFeatures features) {
+                calls[0]++;
+                return STAGE_DEEP;
+            }
+        });
+        replay(recordNight(), night);
+        SleepStager stager = night.getSleepStager();
+        assertEquals(stager.getStageCount(), calls[0]);
+        for (int i = 0; i < stager.getStageCount(); i++) {
+            assertEquals(SleepStageClassifier.STAGE_DEEP, stager.getStage(i));
+        }
+    }
+
+    @Test
+    public void sameSeedRecordsTheSameNight() throws Exception {
+        byte[] a = readFile(recordNight("a"));
+        byte[] b = readFile(recordNight("b"));
+        assertArrayEquals(a, b);
+    }
+}
@@ -0,0 +1,200 @@
+package uk.org.maps3.sleeplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trip properties of TimeSeriesEncoder and TimeSeriesDecoder, for every combination of flags.
+ */
+public class TimeSeriesCodecTest {
+    private final static int[] ALL_FLAGS = {
+            0,
+            TimeSeriesEncoder.FLAG_BIT_PACKED,
+            TimeSeriesEncoder.FLAG_TIME_FROM_VALUE,
+            TimeSeriesEncoder.FLAG_BIT_PACKED | TimeSeriesEncoder.FLAG_TIME_FROM_VALUE};
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private static void assertRoundTrip(int flags, long[] times, int[] values) {
+        TimeSeriesEncoder enc = new TimeSeriesEncoder(flags, 16);
+        for (int i = 0; i < times.length; i++) {
+            enc.add(times[i], values[i]);
+        }
+        byte[] buf = enc.toByteArray();
+        assertEquals(buf.length, enc.getSize());
+        // Put other data either side of the stream, as when several are stored together.
+        byte[] padded = new byte[buf.length + 20];
+        for (int i = 0; i < padded.length; i++) {
+            padded[i] = (byte) 0xff;
+        }
+        System.arraycopy(buf, 0, padded, 7, buf.length);
+
+        TimeSeriesDecoder dec = new TimeSeriesDecoder(padded, 7);
+        assertEquals(flags, dec.getFlags());
+        assertEquals(times.length, dec.getCount());
+        for (int i = 0; i < times.length; i++) {
+            assertTrue(dec.next());
+            assertEquals("time " + i + " flags " + flags, times[i], dec.getTime());
+            assertEquals("value " + i + " flags " + flags, values[i], dec.getValue());
+        }
+        assertFalse(dec.next());
+        assertEquals(7 + buf.length, dec.getEnd());
+    }
+
+    @Test
+    public void emptyStream() {
+        for (int flags : ALL_FLAGS) {
+            assertRoundTrip(flags, new long[0], new int[0]);
+        }
+    }
+
+    @Test
+    public void heartRateLikeStreams() {
+        Random r = new Random(1);
+        for (int flags : ALL_FLAGS) {
+            for (int trial = 0; trial < 50; trial++) {
+                int n = 1 + r.nextInt(2000);
+                long[] times = new long[n];
+                int[] values = new int[n];
+                long t = 1400000000000L + r.nextInt(1000000);
+                int hr = 40 + r.nextInt(100);
+                for (int i = 0; i < n; i++) {
+                    // Mostly a second apart with jitter, sometimes a gap or a repeated time.
+                    int step = r.nextInt(20) == 0 ? r.nextInt(600000) : 1000 + r.nextInt(41) - 20;
+                    t += r.nextInt(50) == 0 ? 0 : step;
+                    hr = Math.max(20, Math.min(250, hr + r.nextInt(7) - 3));
+                    times[i] = t;
+                    values[i] = hr;
+                }
+                assertRoundTrip(flags, times, values);
+            }
+        }
+    }
+
+    @Test
+    public void rrLikeStreams() {
+        Random r = new Random(2);
+        for (int flags : ALL_FLAGS) {
+            for (int trial = 0; trial < 50; trial++) {
+                int n = 1 + r.nextInt(2000);
+                long[] times = new long[n];
+                int[] values = new int[n];
+                long t = 1400000000000L;
+                int rr = 1000;
+                for (int i = 0; i < n; i++) {
+                    rr = Math.max(300, Math.min(2000, rr + r.nextInt(61) - 30));
+                    // The beat time follows the previous beat by the RR interval, give or take rounding.
+                    t += rr + r.nextInt(3) - 1;
+                    times[i] = t;
+                    values[i] = rr;
+                }
+                assertRoundTrip(flags, times, values);
+            }
+        }
+    }
+
+    @Test
+    public void arbitraryValues() {
+        Random r = new Random(3);
+        for (int flags : ALL_FLAGS) {
+            for (int trial = 0; trial < 200; trial++) {
+                int n = 1 + r.nextInt(100);
+                long[] times = new long[n];
+                int[] values = new int[n];
+                for (int i = 0; i < n; i++) {
+                    times[i] = r.nextLong();
+                    values[i] = r.nextInt();
+                }
+                assertRoundTrip(flags, times, values);
+            }
+        }
+    }
+
+    @Test
+    public void extremeValues() {
+        long[] times = {0, Long.MAX_VALUE, Long.MIN_VALUE, -1, Long.MAX_VALUE, 1, Long.MIN_VALUE, Long.MIN_VALUE};
+        int[] values = {0, Integer.MAX_VALUE, Integer.MIN_VALUE, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 0};
+        for (int flags : ALL_FLAGS) {
+            assertRoundTrip(flags, times, values);
+        }
+    }
+
+    @Test
+    public void everyFieldWidthBoundary() {
+        // Deltas either side of each bit field size (7, 9, 12 bits for time, 3, 6, 10 for value,
+        // or 6, 8, 11 for RR interval values).
+        int[] steps = {0, 1, 7, 8, 15, 16, 63, 64, 255, 256, 2047, 2048, 4095, 4096, 1 << 20};
+        for (int flags : ALL_FLAGS) {
+            for (int step : steps) {
+                long[] times = new long[8];
+                int[] values = new int[8];
+                for (int i = 0; i < times.length; i++) {
+                    times[i] = (i % 2 == 0 ? 1 : -1) * (long) step * i;
+                    values[i] = (i % 2 == 0 ? 1 : -1) * step;
+                }
+                assertRoundTrip(flags, times, values);
+            }
+        }
+    }
+
+    @Test
+    public void truncatedPayloadIsRejected() {
+        for (int flags : ALL_FLAGS) {
+            TimeSeriesEncoder enc = new TimeSeriesEncoder(flags);
+            for (int i = 0; i < 100; i++) {
+                enc.add(i * 1000L, 1000 + i * 37);
+            }
+            byte[] buf = enc.toByteArray();
+            try {
+                TimeSeriesDecoder dec = new TimeSeriesDecoder(java.util.Arrays.copyOf(buf, buf.length - 10));
+                dec.next();
+                fail("Truncated stream accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void varintsDoNotReadPastThePayload() {
+        // One sample whose value varint would continue into the bytes after the payload.
+        byte[] buf = {0, 1, 2, 0x00, (byte) 0x80, 0x01};
+        TimeSeriesDecoder dec = new TimeSeriesDecoder(buf);
+        try {
+            dec.next();
+            fail("Read past the end of the payload");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void syntheticNightIsUnderTwoBytesASample() throws IOException {
+        File file = new File(mTmp.getRoot(), "night" + SessionFile.EXTENSION);
+        SyntheticNight.record(file, 1400000400000L, SyntheticHeartRateSource.DEFAULT_DURATION_MS, 42);
+        TimeSeriesEncoder hr = new TimeSeriesEncoder(CompactSession.HR_FLAGS);
+        TimeSeriesEncoder rr = new TimeSeriesEncoder(CompactSession.RR_FLAGS);
+        SessionReader reader = new SessionReader(file);
+        try {
+            TimeSeriesEncoder.encodeSession(reader, hr, rr);
+        } finally {
+            reader.close();
+        }
+        int samples = hr.getCount() + rr.getCount();
+        assertTrue(hr.getCount() > 0 && rr.getCount() > 0);
+        int size = hr.getSize() + rr.getSize();
+        assertTrue(size + " bytes for " + samples + " samples", size < 2 * samples);
+        assertTrue(rr.getSize() + " bytes for " + rr.getCount() + " RR intervals", rr.getSize() < 2 * rr.getCount());
+    }
+}